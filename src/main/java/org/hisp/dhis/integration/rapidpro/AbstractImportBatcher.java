@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import org.hisp.dhis.integration.sdk.api.Dhis2Client;
+import org.hisp.dhis.integration.sdk.api.RemoteDhis2ClientException;
+import org.hisp.dhis.integration.sdk.api.operation.PostOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Base class for coalescing items submitted by concurrent callers into batched DHIS2 imports. A batch is imported once
+ * it holds <code>maxSize</code> items or once <code>windowInMillis</code> milliseconds have elapsed since its first
+ * item was submitted, whichever comes first. Each caller is held up until its batch is imported and is then handed
+ * the import summary of its own item, so that failures are still handled item by item.
+ * <p>
+ * Only callers submitting at the same time can share a batch. These are the report consumers, or the drain workers
+ * when report delivery is scheduled, so a batch is also imported as soon as it holds one item from each of them
+ * instead of waiting out the window for a caller that cannot come.
+ *
+ * @param <T> type of the submitted items
+ */
+public abstract class AbstractImportBatcher<T>
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger( AbstractImportBatcher.class );
+
+    @Autowired
+    protected Dhis2Client dhis2Client;
+
+    @Autowired
+    protected ObjectMapper objectMapper;
+
+    @Autowired
+    protected Dhis2CircuitBreaker dhis2CircuitBreaker;
+
+    @Autowired
+    protected Dhis2ConcurrencyLimiter dhis2ConcurrencyLimiter;
+
+    private final int maxSize;
+
+    private final long windowInMillis;
+
+    @Value( "#{'${report.delivery.schedule.expression:}' == '' ? ${report.delivery.concurrent.consumers:1} : ${report.delivery.drain.parallelism:1}}" )
+    private int maxConcurrentCallers = Integer.MAX_VALUE;
+
+    private final Map<String, Batch<T>> openBatches = new HashMap<>();
+
+    protected AbstractImportBatcher( int maxSize, long windowInMillis )
+    {
+        this.maxSize = maxSize;
+        this.windowInMillis = windowInMillis;
+    }
+
+    @PostConstruct
+    public void checkConcurrentCallers()
+    {
+        if ( maxSize > 1 && maxConcurrentCallers < 2 )
+        {
+            LOGGER.warn( "{} is configured with a batch size of {} but items are submitted by a single caller so each "
+                    + "item is imported on its own. Hint: set report.delivery.concurrent.consumers, or "
+                    + "report.delivery.drain.parallelism when report delivery is scheduled, to at least the batch size",
+                getClass().getSimpleName(), maxSize );
+        }
+    }
+
+    /**
+     * Imports the items of a batch.
+     *
+     * @return the import summary of each item in the same order as the items
+     */
+    protected abstract List<Map<String, Object>> importBatch( List<T> items )
+        throws
+        Exception;
+
+    /**
+     * Adds the item to the open batch identified by the key and waits for the batch to be imported.
+     *
+     * @return the item's import summary as JSON
+     */
+    protected String submit( String batchKey, T item )
+    {
+        Batch<T> batch;
+        CompletableFuture<Map<String, Object>> result;
+        boolean isFull;
+        synchronized ( openBatches )
+        {
+            batch = openBatches.computeIfAbsent( batchKey,
+                k -> new Batch<>( System.currentTimeMillis() + windowInMillis ) );
+            result = batch.add( item );
+            isFull = batch.items.size() >= Math.min( maxSize, maxConcurrentCallers );
+            if ( isFull )
+            {
+                openBatches.remove( batchKey );
+            }
+        }
+
+        if ( isFull )
+        {
+            importBatch( batch );
+        }
+        else
+        {
+            try
+            {
+                result.get( Math.max( batch.deadline - System.currentTimeMillis(), 0 ), TimeUnit.MILLISECONDS );
+            }
+            catch ( TimeoutException e )
+            {
+                // the first caller to time out imports the batch on behalf of the others
+                boolean isClaimed;
+                synchronized ( openBatches )
+                {
+                    isClaimed = openBatches.remove( batchKey, batch );
+                }
+                if ( isClaimed )
+                {
+                    importBatch( batch );
+                }
+            }
+            catch ( ExecutionException e )
+            {
+                // rethrown below
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new Dhis2RapidProException( e );
+            }
+        }
+
+        try
+        {
+            return toJson( result.get() );
+        }
+        catch ( ExecutionException e )
+        {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                : new Dhis2RapidProException( e.getCause() );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new Dhis2RapidProException( e );
+        }
+    }
+
+    private void importBatch( Batch<T> batch )
+    {
+        try
+        {
+            List<Map<String, Object>> importSummaries = importBatch( batch.items );
+            for ( int i = 0; i < batch.results.size(); i++ )
+            {
+                batch.results.get( i ).complete( importSummaries.get( i ) );
+            }
+        }
+        catch ( Exception e )
+        {
+            // every item of the batch fails so that each one is handled like a failed unbatched import
+            batch.results.forEach( r -> r.completeExceptionally( e ) );
+        }
+    }
+
+    /**
+     * Posts the resource to the DHIS2 path through the {@link Dhis2CircuitBreaker} and the
+     * {@link Dhis2ConcurrencyLimiter} of the operation named after the path.
+     */
+    protected Map<String, Object> post( String path, Map<String, String> queryParams, Object resource )
+    {
+        return dhis2CircuitBreaker.call( path, () -> dhis2ConcurrencyLimiter.call( path, () -> {
+            PostOperation postOperation = dhis2Client.post( path );
+            postOperation.withResource( resource );
+            if ( queryParams != null )
+            {
+                queryParams.forEach( postOperation::withParameter );
+            }
+            try
+            {
+                return postOperation.transfer().returnAs( Map.class );
+            }
+            catch ( RemoteDhis2ClientException e )
+            {
+                // DHIS2 replies with an HTTP 409 when some or all of the imported objects are rejected
+                if ( e.getHttpStatusCode() == 409 && e.getBody() != null )
+                {
+                    return objectMapper.readValue( e.getBody(), Map.class );
+                }
+                throw e;
+            }
+        } ) );
+    }
+
+    /**
+     * @return the import summary nested in the DHIS2 web message, if any
+     */
+    protected Map<String, Object> unwrapImportSummary( Map<String, Object> reply )
+    {
+        return reply.get( "response" ) instanceof Map ? (Map<String, Object>) reply.get( "response" ) : reply;
+    }
+
+    protected List<Map<String, Object>> getConflicts( Map<String, Object> importSummary )
+    {
+        return importSummary.get( "conflicts" ) instanceof List
+            ? (List<Map<String, Object>>) importSummary.get( "conflicts" ) : List.of();
+    }
+
+    /**
+     * Builds the import summary of an item out of the batch's import summary. The item fails when the whole batch
+     * failed or when any of the batch's conflicts belong to it.
+     */
+    protected Map<String, Object> newImportSummary( Map<String, Object> batchImportSummary,
+        List<Map<String, Object>> conflicts, int batchSize )
+    {
+        String status;
+        if ( "ERROR".equals( batchImportSummary.getOrDefault( "status", "ERROR" ) ) )
+        {
+            status = "ERROR";
+        }
+        else
+        {
+            status = conflicts.isEmpty() ? "SUCCESS" : "WARNING";
+        }
+        Map<String, Object> importSummary = new LinkedHashMap<>();
+        importSummary.put( "responseType", "ImportSummary" );
+        importSummary.put( "status", status );
+        importSummary.put( "description", batchImportSummary.get( "description" ) );
+        importSummary.put( "conflicts", conflicts );
+        importSummary.put( "batchSize", batchSize );
+        importSummary.put( "batchImportCount", batchImportSummary.get( "importCount" ) );
+        return importSummary;
+    }
+
+    protected Map<String, Object> readJson( String json )
+    {
+        try
+        {
+            return objectMapper.readValue( json, Map.class );
+        }
+        catch ( JsonProcessingException e )
+        {
+            throw new Dhis2RapidProException( e );
+        }
+    }
+
+    private String toJson( Map<String, Object> importSummary )
+    {
+        try
+        {
+            return objectMapper.writeValueAsString( importSummary );
+        }
+        catch ( JsonProcessingException e )
+        {
+            throw new Dhis2RapidProException( e );
+        }
+    }
+
+    private static class Batch<T>
+    {
+        private final long deadline;
+
+        private final List<T> items = new ArrayList<>();
+
+        private final List<CompletableFuture<Map<String, Object>>> results = new ArrayList<>();
+
+        private Batch( long deadline )
+        {
+            this.deadline = deadline;
+        }
+
+        private CompletableFuture<Map<String, Object>> add( T item )
+        {
+            CompletableFuture<Map<String, Object>> result = new CompletableFuture<>();
+            items.add( item );
+            results.add( result );
+            return result;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Decides when each RapidPro flow is next scanned. The rate at which new runs arrive in a flow is smoothed across
+ * scans and the flow's scan interval is set to the expected time between two runs, bounded by the configured minimum
+ * and maximum intervals. The interval at most doubles from one scan to the next so that a flow going quiet is not
+ * abruptly scanned at the maximum interval. The number of flow scans started per minute is capped across all flows.
+ * Current intervals are exposed under <code>/management/flowscanintervals</code>.
+ */
+@Component
+@Endpoint( id = "flowscanintervals" )
+public class AdaptiveFlowScanScheduler
+{
+    private static final long ONE_MINUTE_IN_MILLIS = 60000;
+
+    // weight given to the latest scan when updating a flow's run arrival rate
+    private static final double RATE_SMOOTHING_FACTOR = 0.3;
+
+    @Value( "${scan.reports.adaptive.min.interval:60000}" )
+    private long minIntervalInMillis;
+
+    @Value( "${scan.reports.adaptive.max.interval:1800000}" )
+    private long maxIntervalInMillis;
+
+    @Value( "${scan.reports.adaptive.max.scans.per.minute:60}" )
+    private int maxScansPerMinute;
+
+    private final Map<String, FlowSchedule> flowSchedules = new LinkedHashMap<>();
+
+    private final Deque<Long> recentScanStartTimes = new ArrayDeque<>();
+
+    /**
+     * Selects the flows that are due to be scanned, most overdue first, within the remaining scan budget. The selected
+     * flows are not selected again until {@link #scanned(String, int)} is called for them.
+     */
+    public synchronized List<String> dueFlowUuids( Collection<String> flowUuids, long now )
+    {
+        flowSchedules.keySet().retainAll( flowUuids );
+        for ( String flowUuid : flowUuids )
+        {
+            flowSchedules.computeIfAbsent( flowUuid, k -> new FlowSchedule( minIntervalInMillis, now ) );
+        }
+
+        while ( !recentScanStartTimes.isEmpty() && recentScanStartTimes.peekFirst() <= now - ONE_MINUTE_IN_MILLIS )
+        {
+            recentScanStartTimes.pollFirst();
+        }
+        int budget = Math.max( 0, maxScansPerMinute - recentScanStartTimes.size() );
+
+        List<Map.Entry<String, FlowSchedule>> dueFlowSchedules = new ArrayList<>();
+        for ( Map.Entry<String, FlowSchedule> flowSchedule : flowSchedules.entrySet() )
+        {
+            if ( !flowSchedule.getValue().scanning && flowSchedule.getValue().nextScanAt <= now )
+            {
+                dueFlowSchedules.add( flowSchedule );
+            }
+        }
+        dueFlowSchedules.sort( Comparator.comparingLong( e -> e.getValue().nextScanAt ) );
+
+        List<String> dueFlowUuids = new ArrayList<>();
+        for ( Map.Entry<String, FlowSchedule> dueFlowSchedule : dueFlowSchedules )
+        {
+            if ( dueFlowUuids.size() >= budget )
+            {
+                break;
+            }
+            dueFlowSchedule.getValue().scanning = true;
+            recentScanStartTimes.addLast( now );
+            dueFlowUuids.add( dueFlowSchedule.getKey() );
+        }
+
+        return dueFlowUuids;
+    }
+
+    public synchronized List<String> dueFlowUuids( Collection<String> flowUuids )
+    {
+        return dueFlowUuids( flowUuids, System.currentTimeMillis() );
+    }
+
+    /**
+     * @param flowRunCount number of runs newly queued by the scan, that is, excluding runs which were already queued
+     *                     by an earlier scan
+     */
+    public synchronized void scanned( String flowUuid, int flowRunCount, long now )
+    {
+        FlowSchedule flowSchedule = flowSchedules.get( flowUuid );
+        if ( flowSchedule == null )
+        {
+            return;
+        }
+
+        // the runs of a scan arrived since the end of the previous scan
+        long elapsedInMillis = Math.max( 1, now - flowSchedule.lastScanEndedAt );
+        double runsPerMinute = flowRunCount * (double) ONE_MINUTE_IN_MILLIS / elapsedInMillis;
+        flowSchedule.runsPerMinute =
+            RATE_SMOOTHING_FACTOR * runsPerMinute + (1 - RATE_SMOOTHING_FACTOR) * flowSchedule.runsPerMinute;
+
+        long expectedIntervalInMillis = flowSchedule.runsPerMinute > 0 ?
+            (long) (ONE_MINUTE_IN_MILLIS / flowSchedule.runsPerMinute) : maxIntervalInMillis;
+        flowSchedule.intervalInMillis = Math.max( minIntervalInMillis,
+            Math.min( maxIntervalInMillis, Math.min( expectedIntervalInMillis, flowSchedule.intervalInMillis * 2 ) ) );
+        flowSchedule.scanning = false;
+        flowSchedule.lastScanEndedAt = now;
+        flowSchedule.nextScanAt = now + flowSchedule.intervalInMillis;
+    }
+
+    public void scanned( String flowUuid, int flowRunCount )
+    {
+        scanned( flowUuid, flowRunCount, System.currentTimeMillis() );
+    }
+
+    /**
+     * Releases a flow selected by {@link #dueFlowUuids(Collection, long)} whose scan never started so that it is
+     * selected again without its interval changing.
+     */
+    public synchronized void cancelled( String flowUuid )
+    {
+        FlowSchedule flowSchedule = flowSchedules.get( flowUuid );
+        if ( flowSchedule != null )
+        {
+            flowSchedule.scanning = false;
+        }
+    }
+
+    @ReadOperation
+    public synchronized Map<String, Map<String, Object>> flowScanIntervals()
+    {
+        Map<String, Map<String, Object>> flowScanIntervals = new TreeMap<>();
+        for ( Map.Entry<String, FlowSchedule> flowSchedule : flowSchedules.entrySet() )
+        {
+            Map<String, Object> flowScanInterval = new LinkedHashMap<>();
+            flowScanInterval.put( "intervalInMillis", flowSchedule.getValue().intervalInMillis );
+            flowScanInterval.put( "nextScanAt", Instant.ofEpochMilli( flowSchedule.getValue().nextScanAt ).toString() );
+            flowScanInterval.put( "runsPerMinute", flowSchedule.getValue().runsPerMinute );
+            flowScanInterval.put( "scanning", flowSchedule.getValue().scanning );
+            flowScanIntervals.put( flowSchedule.getKey(), flowScanInterval );
+        }
+        return flowScanIntervals;
+    }
+
+    private static class FlowSchedule
+    {
+        private long intervalInMillis;
+
+        private long nextScanAt;
+
+        private boolean scanning;
+
+        private long lastScanEndedAt;
+
+        private double runsPerMinute;
+
+        FlowSchedule( long intervalInMillis, long nextScanAt )
+        {
+            this.intervalInMillis = intervalInMillis;
+            this.nextScanAt = nextScanAt;
+            this.lastScanEndedAt = nextScanAt;
+        }
+    }
+}
@@ -35,6 +35,7 @@ import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import org.apache.activemq.artemis.core.config.storage.DatabaseStorageConfiguration;
+import org.apache.activemq.artemis.core.settings.impl.AddressSettings;
 import org.apache.camel.CamelContext;
 import org.apache.commons.io.FileUtils;
 import org.hisp.dhis.integration.rapidpro.security.KeyStoreGenerator;
@@ -72,6 +73,7 @@ import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 @PropertySource( "${sql.data-location}" )
 public class Application extends CamelHieBootApp
@@ -96,6 +98,27 @@ public class Application extends CamelHieBootApp
     @Value( "${rapidpro.api.token:#{null}}" )
     private String rapidProApiToken;
 
+    @Value( "${dhis2.http.max.idle.connections:5}" )
+    private int dhis2MaxIdleConnections;
+
+    @Value( "${dhis2.http.keep.alive:300}" )
+    private long dhis2KeepAliveInSeconds;
+
+    @Value( "${dhis2.http.connect.timeout:10}" )
+    private long dhis2ConnectTimeoutInSeconds;
+
+    @Value( "${dhis2.http.read.timeout:10}" )
+    private long dhis2ReadTimeoutInSeconds;
+
+    @Value( "${dhis2.http.write.timeout:10}" )
+    private long dhis2WriteTimeoutInSeconds;
+
+    @Value( "${dhis2.http.call.timeout:0}" )
+    private long dhis2CallTimeoutInSeconds;
+
+    @Value( "${dhis2.circuit.breaker.enabled:false}" )
+    private boolean dhis2CircuitBreakerEnabled;
+
     @Value( "${test.connection.startup:true}" )
     private Boolean testConnectionOnStartUp;
 
@@ -144,6 +167,9 @@ public class Application extends CamelHieBootApp
     @Autowired
     private DataSource dataSource;
 
+    @Autowired
+    private OkHttpClient rapidProHttpClient;
+
     @PostConstruct
     public void postConstruct()
         throws
@@ -277,14 +303,14 @@ public class Application extends CamelHieBootApp
                 "Bad DHIS2 authentication configuration: PAT authentication and basic authentication are mutually exclusive. Either set `dhis2.api.pat` or both `dhis2.api.username` and `dhis2.api.password`" );
         }
 
-        Dhis2Client dhis2Client = null;
+        Dhis2ClientBuilder dhis2ClientBuilder = null;
         if ( StringUtils.hasText( pat ) )
         {
-            dhis2Client = Dhis2ClientBuilder.newClient( dhis2ApiUrl, pat ).build();
+            dhis2ClientBuilder = Dhis2ClientBuilder.newClient( dhis2ApiUrl, pat );
         }
         else if ( StringUtils.hasText( username ) && StringUtils.hasText( password ) )
         {
-            dhis2Client = Dhis2ClientBuilder.newClient( dhis2ApiUrl, username, password ).build();
+            dhis2ClientBuilder = Dhis2ClientBuilder.newClient( dhis2ApiUrl, username, password );
         }
         else
         {
@@ -292,6 +318,13 @@ public class Application extends CamelHieBootApp
                 "Missing DHIS2 authentication details. Are you sure that you set `dhis2.api.pat` or both `dhis2.api.username` and `dhis2.api.password`?" );
         }
 
+        Dhis2Client dhis2Client = dhis2ClientBuilder.withMaxIdleConnections( dhis2MaxIdleConnections )
+            .withKeepAliveDuration( dhis2KeepAliveInSeconds, TimeUnit.SECONDS )
+            .withConnectTimeout( dhis2ConnectTimeoutInSeconds, TimeUnit.SECONDS )
+            .withReadTimeout( dhis2ReadTimeoutInSeconds, TimeUnit.SECONDS )
+            .withWriteTimeout( dhis2WriteTimeoutInSeconds, TimeUnit.SECONDS )
+            .withCallTimeout( dhis2CallTimeoutInSeconds, TimeUnit.SECONDS ).build();
+
         if ( testConnectionOnStartUp )
         {
             testDhis2Connection( dhis2Client );
@@ -303,7 +336,6 @@ public class Application extends CamelHieBootApp
         throws
         IOException
     {
-        OkHttpClient okHttpClient = new OkHttpClient.Builder().build();
         HttpUrl httpUrl = HttpUrl.parse( rapidProApiUrl + "/workspace.json" );
         HttpUrl.Builder httpUrlBuilder = httpUrl.newBuilder();
 
@@ -314,7 +346,7 @@ public class Application extends CamelHieBootApp
         {
             try
             {
-                response = okHttpClient.newCall( request ).execute();
+                response = rapidProHttpClient.newCall( request ).execute();
             }
             catch ( IOException e )
             {
@@ -474,6 +506,14 @@ public class Application extends CamelHieBootApp
 
                 configuration.setStoreConfiguration( databaseStorageConfiguration );
                 configuration.setPersistenceEnabled( true );
+
+                if ( dhis2CircuitBreakerEnabled )
+                {
+                    // reports rolled back while DHIS2 is unavailable are redelivered later for as long as it takes
+                    configuration.addAddressSetting( "dhis2AggregateReports",
+                        new AddressSettings().setMaxDeliveryAttempts( -1 ).setRedeliveryDelay( 1000 )
+                            .setRedeliveryMultiplier( 2 ).setMaxRedeliveryDelay( 60000 ) );
+                }
             }
             catch ( Exception e )
             {
@@ -502,6 +542,16 @@ public class Application extends CamelHieBootApp
         this.rapidProApiToken = rapidProApiToken;
     }
 
+    public OkHttpClient getRapidProHttpClient()
+    {
+        return rapidProHttpClient;
+    }
+
+    public void setRapidProHttpClient( OkHttpClient rapidProHttpClient )
+    {
+        this.rapidProHttpClient = rapidProHttpClient;
+    }
+
     public ApplicationArguments getApplicationArguments()
     {
         return applicationArguments;
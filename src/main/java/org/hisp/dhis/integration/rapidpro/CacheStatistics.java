@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the statistics published by the management endpoints of the metadata caches.
+ */
+public final class CacheStatistics
+{
+    private CacheStatistics()
+    {
+    }
+
+    /**
+     * @param cache Caffeine cache built with <code>recordStats()</code>
+     * @return a mutable map of the cache's size, hits, misses, loads, and evictions
+     */
+    public static Map<String, Object> of( Cache<?, ?> cache )
+    {
+        CacheStats cacheStats = cache.stats();
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put( "size", cache.estimatedSize() );
+        statistics.put( "hits", cacheStats.hitCount() );
+        statistics.put( "misses", cacheStats.missCount() );
+        statistics.put( "hitRate", cacheStats.hitRate() );
+        statistics.put( "loads", cacheStats.loadSuccessCount() );
+        statistics.put( "loadFailures", cacheStats.loadFailureCount() );
+        statistics.put( "averageLoadTimeInMillis",
+            TimeUnit.NANOSECONDS.toMillis( (long) cacheStats.averageLoadPenalty() ) );
+        statistics.put( "totalLoadTimeInMillis", TimeUnit.NANOSECONDS.toMillis( cacheStats.totalLoadTime() ) );
+        statistics.put( "evictions", cacheStats.evictionCount() );
+        return statistics;
+    }
+}
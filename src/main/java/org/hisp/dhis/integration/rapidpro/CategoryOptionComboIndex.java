@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import org.hisp.dhis.api.model.v40_0.CategoryOptionCombo;
+import org.hisp.dhis.integration.sdk.api.Dhis2Client;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Case-insensitive index of the DHIS2 category option combination codes. The index is loaded with a single paged fetch
+ * of all category option combinations and is refreshed in the background like the other DHIS2 metadata caches. Index
+ * statistics are exposed under <code>/management/categoryoptioncombos</code> where a DELETE drops the index so that it
+ * is loaded again on the next lookup.
+ */
+@Component
+@Endpoint( id = "categoryoptioncombos" )
+public class CategoryOptionComboIndex
+{
+    private static final String INDEX_KEY = "categoryOptionCombos";
+
+    private static final String PAGE_SIZE = "1000";
+
+    @Autowired
+    @Lazy
+    private Dhis2Client dhis2Client;
+
+    @Autowired
+    @Lazy
+    private Dhis2CircuitBreaker dhis2CircuitBreaker;
+
+    private final LoadingCache<String, Map<String, String>> cache;
+
+    public CategoryOptionComboIndex( @Value( "${dhis2.metadata.cache.ttl:3600}" ) long ttlInSeconds,
+        @Value( "${dhis2.metadata.cache.refresh:900}" ) long refreshInSeconds )
+    {
+        cache = Caffeine.newBuilder().expireAfterWrite( Duration.ofSeconds( ttlInSeconds ) )
+            .refreshAfterWrite( Duration.ofSeconds( refreshInSeconds ) ).recordStats()
+            .build( key -> fetchCategoryOptionComboCodes() );
+    }
+
+    /**
+     * @return the DHIS2 category option combination code matching the given code regardless of case or
+     * <code>null</code> if there is no such category option combination
+     */
+    public String getCode( String categoryOptionComboCode )
+    {
+        return cache.get( INDEX_KEY ).get( categoryOptionComboCode.toLowerCase( Locale.ROOT ) );
+    }
+
+    protected Map<String, String> fetchCategoryOptionComboCodes()
+    {
+        return dhis2CircuitBreaker.call( "metadata", () -> {
+            Iterable<CategoryOptionCombo> categoryOptionCombos = dhis2Client.get( "categoryOptionCombos" )
+                .withFields( "code" ).withPaging().withParameter( "pageSize", PAGE_SIZE ).transfer()
+                .returnAs( CategoryOptionCombo.class, "categoryOptionCombos" );
+            Map<String, String> categoryOptionComboCodes = new HashMap<>();
+            for ( CategoryOptionCombo categoryOptionCombo : categoryOptionCombos )
+            {
+                categoryOptionCombo.getCode().ifPresent(
+                    code -> categoryOptionComboCodes.put( code.toLowerCase( Locale.ROOT ), code ) );
+            }
+            return Map.copyOf( categoryOptionComboCodes );
+        } );
+    }
+
+    @ReadOperation
+    public Map<String, Object> statistics()
+    {
+        Map<String, String> index = cache.policy().getIfPresentQuietly( INDEX_KEY );
+        Map<String, Object> statistics = CacheStatistics.of( cache );
+        // the cache holds the whole index under a single key so its size is the number of indexed codes
+        statistics.put( "size", index == null ? 0 : index.size() );
+        statistics.put( "lookups", cache.stats().requestCount() );
+        return statistics;
+    }
+
+    @DeleteOperation
+    public void invalidate()
+    {
+        cache.invalidateAll();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Buffers complete data set registrations and posts them to DHIS2 in batches of up to
+ * <code>report.delivery.registration.batch.size</code> registrations, or whatever was buffered within
+ * <code>report.delivery.registration.batch.window</code> milliseconds. Registrations repeating the same data set,
+ * organisation unit, and period are posted once. The caller of {@link #submit(Map, Map)} is handed an import summary
+ * carrying only the conflicts of its own registration so that a failed registration is dead-lettered with the report
+ * it originates from. A conflict that cannot be attributed to a registration fails the whole batch.
+ */
+@Component
+public class CompleteDataSetRegistrationBatcher
+    extends AbstractImportBatcher<CompleteDataSetRegistrationBatcher.Registration>
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger( CompleteDataSetRegistrationBatcher.class );
+
+    private static final String[] REGISTRATION_KEYS = { "dataSet", "organisationUnit", "period" };
+
+    protected record Registration(Map<String, String> queryParams, Map<String, Object> registration)
+    {
+    }
+
+    public CompleteDataSetRegistrationBatcher(
+        @Value( "${report.delivery.registration.batch.size:1}" ) int maxSize,
+        @Value( "${report.delivery.registration.batch.window:1000}" ) long windowInMillis )
+    {
+        super( maxSize, windowInMillis );
+    }
+
+    /**
+     * Adds the registration to the open batch and waits for the batch to be posted.
+     *
+     * @return the registration's import summary as JSON
+     */
+    public String submit( Map<String, String> queryParams, Map<String, Object> registration )
+    {
+        return submit( String.valueOf( queryParams == null ? Map.of() : new TreeMap<>( queryParams ) ),
+            new Registration( queryParams, registration ) );
+    }
+
+    @Override
+    protected List<Map<String, Object>> importBatch( List<Registration> batch )
+        throws
+        Exception
+    {
+        List<Map<String, Object>> registrations = new ArrayList<>();
+        Map<List<Object>, Map<String, Object>> uniqueRegistrations = new LinkedHashMap<>();
+        for ( Registration registration : batch )
+        {
+            registrations.add( registration.registration() );
+            uniqueRegistrations.putIfAbsent( getRegistrationKey( registration.registration() ),
+                registration.registration() );
+        }
+
+        LOGGER.debug( "Posting {} complete data set registrations for {} reports", uniqueRegistrations.size(),
+            registrations.size() );
+        Map<String, Object> importSummary = unwrapImportSummary( importRegistrations( batch.get( 0 ).queryParams(),
+            Map.of( "completeDataSetRegistrations", new ArrayList<>( uniqueRegistrations.values() ) ) ) );
+        return splitImportSummary( registrations, new ArrayList<>( uniqueRegistrations.values() ), importSummary );
+    }
+
+    /**
+     * Derives the import summary of each registration from the import summary of the batch. A conflict is pinned to
+     * the registrations at the conflict's <code>indexes</code> within the posted registrations or, failing that, to
+     * the registrations whose data set, organisation unit, and period all match the conflict's <code>objects</code>.
+     * Conflicts that cannot be attributed this way are given to every registration so that the batch fails as a
+     * whole.
+     */
+    protected List<Map<String, Object>> splitImportSummary( List<Map<String, Object>> registrations,
+        List<Map<String, Object>> postedRegistrations, Map<String, Object> importSummary )
+    {
+        List<Map<String, Object>> conflicts = getConflicts( importSummary );
+        List<List<List<Object>>> conflictRegistrationKeys = new ArrayList<>();
+        for ( Map<String, Object> conflict : conflicts )
+        {
+            conflictRegistrationKeys.add( getConflictRegistrationKeys( conflict, postedRegistrations ) );
+        }
+
+        List<Map<String, Object>> registrationImportSummaries = new ArrayList<>();
+        for ( Map<String, Object> registration : registrations )
+        {
+            List<Object> registrationKey = getRegistrationKey( registration );
+            List<Map<String, Object>> registrationConflicts = new ArrayList<>();
+            for ( int i = 0; i < conflicts.size(); i++ )
+            {
+                List<List<Object>> registrationKeys = conflictRegistrationKeys.get( i );
+                if ( registrationKeys.isEmpty() || registrationKeys.contains( registrationKey ) )
+                {
+                    registrationConflicts.add( conflicts.get( i ) );
+                }
+            }
+            registrationImportSummaries.add(
+                newImportSummary( importSummary, registrationConflicts, postedRegistrations.size() ) );
+        }
+
+        return registrationImportSummaries;
+    }
+
+    protected Map<String, Object> importRegistrations( Map<String, String> queryParams,
+        Map<String, Object> completeDataSetRegistrations )
+        throws
+        Exception
+    {
+        return post( "completeDataSetRegistrations", queryParams, completeDataSetRegistrations );
+    }
+
+    /**
+     * @return the keys of the posted registrations that the conflict is attributed to, or an empty list if the
+     * conflict cannot be attributed
+     */
+    protected List<List<Object>> getConflictRegistrationKeys( Map<String, Object> conflict,
+        List<Map<String, Object>> postedRegistrations )
+    {
+        List<List<Object>> registrationKeys = new ArrayList<>();
+        if ( conflict.get( "indexes" ) instanceof List<?> indexes && !indexes.isEmpty() )
+        {
+            for ( Object index : indexes )
+            {
+                if ( !(index instanceof Number)
+                    || ((Number) index).intValue() < 0 || ((Number) index).intValue() >= postedRegistrations.size() )
+                {
+                    return List.of();
+                }
+                registrationKeys.add( getRegistrationKey( postedRegistrations.get( ((Number) index).intValue() ) ) );
+            }
+        }
+        else if ( conflict.get( "objects" ) instanceof Map<?, ?> objects )
+        {
+            for ( Map<String, Object> postedRegistration : postedRegistrations )
+            {
+                List<Object> registrationKey = getRegistrationKey( postedRegistration );
+                if ( registrationKey.equals( getRegistrationKey( (Map<String, Object>) objects ) ) )
+                {
+                    registrationKeys.add( registrationKey );
+                }
+            }
+        }
+        return registrationKeys;
+    }
+
+    private List<Object> getRegistrationKey( Map<String, Object> registration )
+    {
+        List<Object> registrationKey = new ArrayList<>();
+        for ( String key : REGISTRATION_KEYS )
+        {
+            registrationKey.add( registration.get( key ) );
+        }
+        return registrationKey;
+    }
+}
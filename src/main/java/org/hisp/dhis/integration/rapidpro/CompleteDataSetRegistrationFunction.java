@@ -41,9 +41,13 @@ public class CompleteDataSetRegistrationFunction implements Function<Exchange, O
     @Override
     public Object apply( Exchange exchange )
     {
-        return Map.of( "completeDataSetRegistrations", List.of(
-            Map.of( "completed", true, "dataSet", exchange.getMessage().getHeader( "dataSetCode" ), "organisationUnit",
-                exchange.getMessage().getHeader( "orgUnitId" ), "period",
-                exchange.getMessage().getHeader( "period" ) ) ) );
+        return Map.of( "completeDataSetRegistrations", List.of( newRegistration( exchange ) ) );
+    }
+
+    public Map<String, Object> newRegistration( Exchange exchange )
+    {
+        return Map.of( "completed", true, "dataSet", exchange.getMessage().getHeader( "dataSetCode" ),
+            "organisationUnit", exchange.getMessage().getHeader( "orgUnitId" ), "period",
+            exchange.getMessage().getHeader( "period" ) );
     }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps RapidPro contact UUIDs to the DHIS2 organisation unit IDs held in the contacts'
+ * <code>dhis2_organisation_unit_id</code> field. The directory is filled from synchronised contacts, from report
+ * payloads carrying contact fields, and from contacts fetched from RapidPro. It is persisted in the
+ * <code>CONTACT_DIRECTORY</code> table while frequently used entries are held in an in-memory cache. Entries, in
+ * memory as well as in the table, expire <code>contact.directory.ttl</code> seconds after they were last saved so that
+ * a contact moved to another organisation unit in RapidPro is eventually looked up again. Cache statistics are
+ * exposed under <code>/management/contactdirectory</code> where a DELETE empties the directory, or only removes the
+ * contact given in the <code>contactUuid</code> query parameter.
+ */
+@Component
+@Endpoint( id = "contactdirectory" )
+public class ContactDirectory
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger( ContactDirectory.class );
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value( "${contact.directory.select.${spring.sql.init.platform}}" )
+    private String selectSql;
+
+    @Value( "${contact.directory.upsert.${spring.sql.init.platform}}" )
+    private String upsertSql;
+
+    @Value( "${contact.directory.delete.${spring.sql.init.platform}}" )
+    private String deleteSql;
+
+    @Value( "${contact.directory.delete.all.${spring.sql.init.platform}}" )
+    private String deleteAllSql;
+
+    private final Duration ttl;
+
+    private final Cache<String, String> cache;
+
+    public ContactDirectory( @Value( "${contact.directory.cache.size:10000}" ) int cacheSize,
+        @Value( "${contact.directory.ttl:86400}" ) long ttlInSeconds )
+    {
+        ttl = Duration.ofSeconds( ttlInSeconds );
+        cache = Caffeine.newBuilder().maximumSize( cacheSize ).expireAfterWrite( ttl ).recordStats().build();
+    }
+
+    /**
+     * @return the organisation unit ID of the contact or <code>null</code> if the contact is unknown to the directory
+     */
+    public String getOrgUnitId( String contactUuid )
+    {
+        String orgUnitId = cache.getIfPresent( contactUuid );
+        if ( orgUnitId == null )
+        {
+            List<String> orgUnitIds = jdbcTemplate.queryForList( selectSql, String.class, contactUuid,
+                Timestamp.from( Instant.now().minus( ttl ) ) );
+            if ( !orgUnitIds.isEmpty() )
+            {
+                orgUnitId = orgUnitIds.get( 0 );
+                cache.put( contactUuid, orgUnitId );
+            }
+        }
+        return orgUnitId;
+    }
+
+    /**
+     * Looks up the organisation unit ID of a contact as found in a RapidPro payload. The payload's contact fields, when
+     * present, take precedence over the directory and are saved to it.
+     */
+    public String getContactOrgUnitId( Map<String, Object> contact )
+    {
+        Map<String, Object> fields = (Map<String, Object>) contact.get( "fields" );
+        if ( fields != null && fields.get( "dhis2_organisation_unit_id" ) instanceof String orgUnitId )
+        {
+            put( (String) contact.get( "uuid" ), orgUnitId );
+            return orgUnitId;
+        }
+        else
+        {
+            return getOrgUnitId( (String) contact.get( "uuid" ) );
+        }
+    }
+
+    public void put( String contactUuid, String orgUnitId )
+    {
+        if ( contactUuid != null && orgUnitId != null && !orgUnitId.equals(
+            cache.asMap().put( contactUuid, orgUnitId ) ) )
+        {
+            jdbcTemplate.update( upsertSql, contactUuid, orgUnitId );
+        }
+    }
+
+    @ReadOperation
+    public Map<String, Object> statistics()
+    {
+        return CacheStatistics.of( cache );
+    }
+
+    /**
+     * @param contactUuid UUID of the contact to remove or <code>null</code> to empty the directory
+     */
+    @DeleteOperation
+    public void invalidate( @Nullable String contactUuid )
+    {
+        if ( contactUuid == null )
+        {
+            jdbcTemplate.update( deleteAllSql );
+            cache.invalidateAll();
+        }
+        else
+        {
+            jdbcTemplate.update( deleteSql, contactUuid );
+            cache.invalidate( contactUuid );
+        }
+    }
+
+    /**
+     * Saves the organisation unit ID of a contact returned by RapidPro's contacts API. Responses which are not a
+     * contact, such as error responses, are ignored.
+     */
+    public void putContact( String contact )
+    {
+        if ( contact == null || contact.isBlank() )
+        {
+            return;
+        }
+        try
+        {
+            Map<String, Object> contactAsMap = objectMapper.readValue( contact, Map.class );
+            if ( contactAsMap.get( "fields" ) instanceof Map<?, ?> fields
+                && fields.get( "dhis2_organisation_unit_id" ) instanceof String orgUnitId )
+            {
+                put( (String) contactAsMap.get( "uuid" ), orgUnitId );
+            }
+        }
+        catch ( Exception e )
+        {
+            LOGGER.debug( "Ignoring RapidPro response which is not a contact => {}", contact );
+        }
+    }
+}
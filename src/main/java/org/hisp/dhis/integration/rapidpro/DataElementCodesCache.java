@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import org.hisp.dhis.api.model.v40_0.DataElement;
+import org.hisp.dhis.integration.sdk.api.Dhis2Client;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the codes of the data elements belonging to a DHIS2 data set, keyed by data set code. Entries expire after
+ * <code>dhis2.metadata.cache.ttl</code> seconds and are reloaded in the background when read after
+ * <code>dhis2.metadata.cache.refresh</code> seconds so that reports are rarely held up by a DHIS2 round trip. Cache
+ * statistics are exposed under <code>/management/dataelementcodes</code> where a DELETE invalidates the cache, or only
+ * the entry of the data set given in the <code>dataSetCode</code> query parameter.
+ * <p>
+ * Alongside the codes, each entry holds an index of the codes keyed by their normalised form (lower case with spaces
+ * replaced by underscores) so that <code>dataValueSet.ds</code> can look up the data element of a RapidPro result in
+ * constant time instead of scanning the data set's codes for every result.
+ */
+@Component
+@Endpoint( id = "dataelementcodes" )
+public class DataElementCodesCache
+{
+    @Autowired
+    private Dhis2Client dhis2Client;
+
+    @Autowired
+    private Dhis2CircuitBreaker dhis2CircuitBreaker;
+
+    private final LoadingCache<String, DataElementCodes> cache;
+
+    public DataElementCodesCache( @Value( "${dhis2.metadata.cache.max.size:1000}" ) long maxSize,
+        @Value( "${dhis2.metadata.cache.ttl:3600}" ) long ttlInSeconds,
+        @Value( "${dhis2.metadata.cache.refresh:900}" ) long refreshInSeconds )
+    {
+        cache = Caffeine.newBuilder().maximumSize( maxSize ).expireAfterWrite( Duration.ofSeconds( ttlInSeconds ) )
+            .refreshAfterWrite( Duration.ofSeconds( refreshInSeconds ) ).recordStats()
+            .build( dataSetCode -> new DataElementCodes( fetchDataElementCodes( dataSetCode ) ) );
+    }
+
+    public List<String> get( String dataSetCode )
+    {
+        return cache.get( dataSetCode ).codes();
+    }
+
+    /**
+     * @return the data set's data element codes keyed by their normalised form
+     */
+    public Map<String, String> getIndex( String dataSetCode )
+    {
+        return cache.get( dataSetCode ).index();
+    }
+
+    /**
+     * Indexes data element codes by their normalised form. The first code wins when two codes normalise to the same
+     * key, matching the first-match semantics of the original filter-based mapping.
+     */
+    public static Map<String, String> index( List<String> dataElementCodes )
+    {
+        Map<String, String> index = new HashMap<>();
+        for ( String dataElementCode : dataElementCodes )
+        {
+            index.putIfAbsent( dataElementCode.toLowerCase().replace( ' ', '_' ), dataElementCode );
+        }
+        return Collections.unmodifiableMap( index );
+    }
+
+    protected List<String> fetchDataElementCodes( String dataSetCode )
+    {
+        return dhis2CircuitBreaker.call( "metadata", () -> {
+            Iterable<DataElement> dataElements = dhis2Client.get( "dataElements" )
+                .withFilter( "dataSetElements.dataSet.code:eq:" + dataSetCode ).withFields( "code" ).withoutPaging()
+                .transfer().returnAs( DataElement.class, "dataElements" );
+            List<String> dataElementCodes = new ArrayList<>();
+            for ( DataElement dataElement : dataElements )
+            {
+                dataElement.getCode().ifPresent( dataElementCodes::add );
+            }
+            return List.copyOf( dataElementCodes );
+        } );
+    }
+
+    @ReadOperation
+    public Map<String, Object> statistics()
+    {
+        return CacheStatistics.of( cache );
+    }
+
+    /**
+     * @param dataSetCode code of the data set to evict or <code>null</code> to empty the cache
+     */
+    @DeleteOperation
+    public void invalidate( @Nullable String dataSetCode )
+    {
+        if ( dataSetCode == null )
+        {
+            cache.invalidateAll();
+        }
+        else
+        {
+            cache.invalidate( dataSetCode );
+        }
+    }
+
+    private record DataElementCodes(List<String> codes, Map<String, String> index)
+    {
+        private DataElementCodes( List<String> codes )
+        {
+            this( codes, DataElementCodesCache.index( codes ) );
+        }
+    }
+}
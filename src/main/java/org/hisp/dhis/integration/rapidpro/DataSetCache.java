@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import org.hisp.dhis.api.model.v40_0.DataSet;
+import org.hisp.dhis.integration.sdk.api.Dhis2Client;
+import org.hisp.dhis.integration.sdk.api.operation.GetOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Caches the ID, name, and period type of DHIS2 data sets, keyed by data set code. The cache is warmed up with all the
+ * data sets in DHIS2 once the application is ready. Entries expire and are refreshed like the other DHIS2 metadata
+ * caches. Cache statistics are exposed under <code>/management/datasets</code> where a DELETE invalidates the cache, or
+ * only the entry of the data set given in the <code>dataSetCode</code> query parameter.
+ */
+@Component
+@Endpoint( id = "datasets" )
+public class DataSetCache
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger( DataSetCache.class );
+
+    public record DataSetDescriptor(String id, String name, String periodType)
+    {
+    }
+
+    @Autowired
+    private Dhis2Client dhis2Client;
+
+    @Autowired
+    private Dhis2CircuitBreaker dhis2CircuitBreaker;
+
+    @Value( "${dhis2.metadata.cache.warm.up:true}" )
+    private boolean warmUp;
+
+    private final LoadingCache<String, DataSetDescriptor> cache;
+
+    public DataSetCache( @Value( "${dhis2.metadata.cache.max.size:1000}" ) long maxSize,
+        @Value( "${dhis2.metadata.cache.ttl:3600}" ) long ttlInSeconds,
+        @Value( "${dhis2.metadata.cache.refresh:900}" ) long refreshInSeconds )
+    {
+        cache = Caffeine.newBuilder().maximumSize( maxSize ).expireAfterWrite( Duration.ofSeconds( ttlInSeconds ) )
+            .refreshAfterWrite( Duration.ofSeconds( refreshInSeconds ) ).recordStats()
+            .build( this::fetchDataSet );
+    }
+
+    /**
+     * @return the data set having the given code or <code>null</code> if DHIS2 has no such data set
+     */
+    public DataSetDescriptor get( String dataSetCode )
+    {
+        return cache.get( dataSetCode );
+    }
+
+    @EventListener( ApplicationReadyEvent.class )
+    public void onApplicationReadyEvent()
+    {
+        if ( warmUp )
+        {
+            try
+            {
+                cache.putAll( fetchDataSets( null ) );
+                LOGGER.info( "Cached {} DHIS2 data sets", cache.estimatedSize() );
+            }
+            catch ( Exception e )
+            {
+                LOGGER.warn( "Data sets could not be cached on start-up. Data sets will be fetched from DHIS2 on demand",
+                    e );
+            }
+        }
+    }
+
+    protected DataSetDescriptor fetchDataSet( String dataSetCode )
+    {
+        Iterator<DataSetDescriptor> dataSets = fetchDataSets( dataSetCode ).values().iterator();
+        return dataSets.hasNext() ? dataSets.next() : null;
+    }
+
+    protected Map<String, DataSetDescriptor> fetchDataSets( String dataSetCode )
+    {
+        return dhis2CircuitBreaker.call( "metadata", () -> {
+            GetOperation getOperation = dhis2Client.get( "dataSets" ).withFields( "id", "code", "name", "periodType" );
+            if ( dataSetCode != null )
+            {
+                getOperation = getOperation.withFilter( "code:eq:" + dataSetCode );
+            }
+
+            Map<String, DataSetDescriptor> dataSets = new HashMap<>();
+            for ( DataSet dataSet : getOperation.withoutPaging().transfer().returnAs( DataSet.class, "dataSets" ) )
+            {
+                if ( dataSet.getCode().isPresent() && dataSet.getPeriodType().isPresent() )
+                {
+                    dataSets.put( dataSet.getCode().get(),
+                        new DataSetDescriptor( dataSet.getId().orElse( null ), dataSet.getName().orElse( null ),
+                            dataSet.getPeriodType().get().value() ) );
+                }
+            }
+            return dataSets;
+        } );
+    }
+
+    @ReadOperation
+    public Map<String, Object> statistics()
+    {
+        return CacheStatistics.of( cache );
+    }
+
+    /**
+     * @param dataSetCode code of the data set to evict or <code>null</code> to empty the cache
+     */
+    @DeleteOperation
+    public void invalidate( @Nullable String dataSetCode )
+    {
+        if ( dataSetCode == null )
+        {
+            cache.invalidateAll();
+        }
+        else
+        {
+            cache.invalidate( dataSetCode );
+        }
+    }
+}
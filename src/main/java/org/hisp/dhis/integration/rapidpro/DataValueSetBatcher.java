@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Coalesces the data value sets of reports belonging to the same DHIS2 data set into a single
+ * <code>dataValueSets</code> import. A batch is imported once it holds <code>report.delivery.batch.size</code> reports
+ * or once <code>report.delivery.batch.window</code> milliseconds have elapsed since its first report was submitted,
+ * whichever comes first. The caller of {@link #submit(String, Map, String)} is held up until its batch is imported and
+ * is then handed an import summary carrying only the conflicts of its own report, so that each report can still be
+ * logged, completed, or failed on its own. Only reports whose data value set fields, such as
+ * <code>completedDate</code>, are identical share a batch. The organisation unit, period, and attribute option combo
+ * of each report are carried over to its data values.
+ */
+@Component
+public class DataValueSetBatcher extends AbstractImportBatcher<DataValueSetBatcher.Report>
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger( DataValueSetBatcher.class );
+
+    private static final String[] DATA_VALUE_SET_SCOPE_KEYS = { "orgUnit", "period", "attributeOptionCombo" };
+
+    private static final String[] CONFLICT_OBJECT_KEYS = { "dataElement", "categoryOptionCombo", "orgUnit", "period",
+        "attributeOptionCombo" };
+
+    protected record Report(String dataSetCode, Map<String, String> queryParams, Map<String, Object> dataValueSet,
+                            Map<String, Object> dataValueSetFields)
+    {
+    }
+
+    public DataValueSetBatcher( @Value( "${report.delivery.batch.size:1}" ) int maxSize,
+        @Value( "${report.delivery.batch.window:1000}" ) long windowInMillis )
+    {
+        super( maxSize, windowInMillis );
+    }
+
+    /**
+     * Adds the data value set of a report to the open batch of its data set and waits for the batch to be imported.
+     *
+     * @return the report's import summary as JSON
+     */
+    public String submit( String dataSetCode, Map<String, String> queryParams, String dataValueSet )
+    {
+        Map<String, Object> report = readJson( dataValueSet );
+        Map<String, Object> dataValueSetFields = new TreeMap<>( report );
+        dataValueSetFields.remove( "dataValues" );
+        for ( String scopeKey : DATA_VALUE_SET_SCOPE_KEYS )
+        {
+            dataValueSetFields.remove( scopeKey );
+        }
+        String batchKey = dataSetCode + ":" + (queryParams == null ? Map.of() : new TreeMap<>( queryParams )) + ":"
+            + dataValueSetFields;
+        return submit( batchKey, new Report( dataSetCode, queryParams, report, dataValueSetFields ) );
+    }
+
+    @Override
+    protected List<Map<String, Object>> importBatch( List<Report> reports )
+        throws
+        Exception
+    {
+        List<Map<String, Object>> dataValueSets = new ArrayList<>();
+        List<Object> dataValues = new ArrayList<>();
+        for ( Report report : reports )
+        {
+            dataValueSets.add( report.dataValueSet() );
+            for ( Map<String, Object> dataValue : getDataValues( report.dataValueSet() ) )
+            {
+                Map<String, Object> scopedDataValue = new LinkedHashMap<>( dataValue );
+                for ( String scopeKey : DATA_VALUE_SET_SCOPE_KEYS )
+                {
+                    if ( report.dataValueSet().get( scopeKey ) != null )
+                    {
+                        scopedDataValue.putIfAbsent( scopeKey, report.dataValueSet().get( scopeKey ) );
+                    }
+                }
+                dataValues.add( scopedDataValue );
+            }
+        }
+
+        Report firstReport = reports.get( 0 );
+        LOGGER.debug( "Importing {} data values from {} reports of data set {}", dataValues.size(), reports.size(),
+            firstReport.dataSetCode() );
+        Map<String, Object> batchDataValueSet = new LinkedHashMap<>( firstReport.dataValueSetFields() );
+        batchDataValueSet.putIfAbsent( "dataSet", firstReport.dataSetCode() );
+        batchDataValueSet.put( "dataValues", dataValues );
+        Map<String, Object> importSummary = importDataValueSet( firstReport.queryParams(), batchDataValueSet );
+        List<Map<String, Object>> reportImportSummaries = splitImportSummary( dataValueSets, importSummary );
+        for ( int i = 0; i < reports.size(); i++ )
+        {
+            if ( reportImportSummaries.get( i ) == null )
+            {
+                LOGGER.debug( "Importing report of data set {} on its own because a conflict of its batch cannot be "
+                    + "pinned to a single report", firstReport.dataSetCode() );
+                Map<String, Object> reportImportSummary = unwrapImportSummary(
+                    importDataValueSet( reports.get( i ).queryParams(), reports.get( i ).dataValueSet() ) );
+                reportImportSummaries.set( i,
+                    newImportSummary( reportImportSummary, getConflicts( reportImportSummary ), 1 ) );
+            }
+        }
+        return reportImportSummaries;
+    }
+
+    protected Map<String, Object> importDataValueSet( Map<String, String> queryParams, Map<String, Object> dataValueSet )
+        throws
+        Exception
+    {
+        return post( "dataValueSets", queryParams, dataValueSet );
+    }
+
+    /**
+     * Derives the import summary of each report from the import summary of the batch. A conflict is pinned to a
+     * report by the indexes of the offending data values when DHIS2 reports them, otherwise by the data element,
+     * category option combo, organisation unit, period, and attribute option combo held in the conflict's
+     * <code>objects</code>.
+     *
+     * @return the import summary of each report, or <code>null</code> for a report that a conflict could not be
+     * pinned to a single report for, in which case the report has to be imported on its own
+     */
+    protected List<Map<String, Object>> splitImportSummary( List<Map<String, Object>> reports,
+        Map<String, Object> batchImportSummary )
+    {
+        Map<String, Object> importSummary = unwrapImportSummary( batchImportSummary );
+
+        List<List<Map<String, Object>>> reportConflicts = new ArrayList<>();
+        List<Integer> firstIndexes = new ArrayList<>();
+        int index = 0;
+        for ( Map<String, Object> report : reports )
+        {
+            reportConflicts.add( new ArrayList<>() );
+            firstIndexes.add( index );
+            index += getDataValues( report ).size();
+        }
+        firstIndexes.add( index );
+
+        boolean[] isAmbiguous = new boolean[reports.size()];
+        for ( Map<String, Object> conflict : getConflicts( importSummary ) )
+        {
+            List<Integer> pinnedReports = new ArrayList<>();
+            for ( int i = 0; i < reports.size(); i++ )
+            {
+                if ( reports.size() == 1 || isConflictOf( conflict, reports.get( i ), firstIndexes.get( i ),
+                    firstIndexes.get( i + 1 ) ) )
+                {
+                    pinnedReports.add( i );
+                }
+            }
+            if ( pinnedReports.size() == 1 )
+            {
+                reportConflicts.get( pinnedReports.get( 0 ) ).add( conflict );
+            }
+            else
+            {
+                // without knowing which of the reports the conflict belongs to, each report is imported on its own
+                for ( int i = 0; i < reports.size(); i++ )
+                {
+                    isAmbiguous[i] |= pinnedReports.isEmpty() || pinnedReports.contains( i );
+                }
+            }
+        }
+
+        List<Map<String, Object>> reportImportSummaries = new ArrayList<>();
+        for ( int i = 0; i < reports.size(); i++ )
+        {
+            reportImportSummaries.add( isAmbiguous[i] ? null :
+                newImportSummary( importSummary, reportConflicts.get( i ), reports.size() ) );
+        }
+
+        return reportImportSummaries;
+    }
+
+    protected boolean isConflictOf( Map<String, Object> conflict, Map<String, Object> report, int fromIndex,
+        int toIndex )
+    {
+        if ( conflict.get( "indexes" ) instanceof List && !((List<?>) conflict.get( "indexes" )).isEmpty() )
+        {
+            for ( Object conflictIndex : (List<?>) conflict.get( "indexes" ) )
+            {
+                int i = ((Number) conflictIndex).intValue();
+                if ( i >= fromIndex && i < toIndex )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        if ( !(conflict.get( "objects" ) instanceof Map<?, ?> objects) || Arrays.stream( CONFLICT_OBJECT_KEYS )
+            .noneMatch( key -> objects.get( key ) != null ) )
+        {
+            return false;
+        }
+        for ( Map<String, Object> dataValue : getDataValues( report ) )
+        {
+            boolean isMatch = true;
+            for ( String key : CONFLICT_OBJECT_KEYS )
+            {
+                // the organisation unit, period, and attribute option combo may be held by the data value set
+                Object dataValueObject = dataValue.containsKey( key ) ? dataValue.get( key ) : report.get( key );
+                isMatch &= objects.get( key ) == null || objects.get( key ).equals( dataValueObject );
+            }
+            if ( isMatch )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<Map<String, Object>> getDataValues( Map<String, Object> report )
+    {
+        return report.get( "dataValues" ) instanceof List ? (List<Map<String, Object>>) report.get( "dataValues" )
+            : List.of();
+    }
+}
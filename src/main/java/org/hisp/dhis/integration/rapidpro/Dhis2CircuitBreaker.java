@@ -0,0 +1,437 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import jakarta.annotation.PreDestroy;
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.Exchange;
+import org.apache.camel.NamedNode;
+import org.apache.camel.Processor;
+import org.apache.camel.Route;
+import org.apache.camel.spi.Policy;
+import org.apache.camel.support.processor.DelegateAsyncProcessor;
+import org.hisp.dhis.integration.sdk.api.RemoteDhis2ClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Guards the calls made to DHIS2 with a circuit breaker and a bulkhead per DHIS2 operation, such as
+ * <code>dataValueSets</code>. At most <code>dhis2.bulkhead.max.concurrent.calls</code> calls of an operation are in
+ * flight at any time while further calls wait up to <code>dhis2.bulkhead.max.wait</code> seconds for their turn. The
+ * operation's circuit opens once <code>dhis2.circuit.breaker.failure.rate.threshold</code> percent of its last
+ * <code>dhis2.circuit.breaker.window.size</code> calls failed because DHIS2 was unreachable or replied with a server
+ * error. Calls are rejected with a {@link Dhis2CallNotPermittedException} while the circuit is open. After
+ * <code>dhis2.circuit.breaker.open.duration</code> seconds, the circuit half-opens to let trial calls through one at a
+ * time. The circuit closes after <code>dhis2.circuit.breaker.half.open.calls</code> successful trial calls, whereupon
+ * the concurrent call limit ramps up from one by one call for each successful call. Circuit states are exposed under
+ * <code>/management/dhis2circuitbreakers</code>.
+ */
+@Component
+@Endpoint( id = "dhis2circuitbreakers" )
+public class Dhis2CircuitBreaker
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger( Dhis2CircuitBreaker.class );
+
+    public enum State
+    {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final boolean enabled;
+
+    private final int failureRateThreshold;
+
+    private final int windowSize;
+
+    private final long openDurationInMillis;
+
+    private final int halfOpenCalls;
+
+    private final int maxConcurrentCalls;
+
+    private final long maxWaitInMillis;
+
+    private final Map<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+
+    private final List<Runnable> stateChangeListeners = new CopyOnWriteArrayList<>();
+
+    private final ScheduledExecutorService scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(
+        runnable -> {
+            Thread thread = new Thread( runnable, "Dhis2CircuitBreaker" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+
+    public Dhis2CircuitBreaker( @Value( "${dhis2.circuit.breaker.enabled:false}" ) boolean enabled,
+        @Value( "${dhis2.circuit.breaker.failure.rate.threshold:50}" ) int failureRateThreshold,
+        @Value( "${dhis2.circuit.breaker.window.size:20}" ) int windowSize,
+        @Value( "${dhis2.circuit.breaker.open.duration:60}" ) long openDurationInSeconds,
+        @Value( "${dhis2.circuit.breaker.half.open.calls:3}" ) int halfOpenCalls,
+        @Value( "${dhis2.bulkhead.max.concurrent.calls:10}" ) int maxConcurrentCalls,
+        @Value( "${dhis2.bulkhead.max.wait:30}" ) long maxWaitInSeconds )
+    {
+        this.enabled = enabled;
+        this.failureRateThreshold = failureRateThreshold;
+        this.windowSize = windowSize;
+        this.openDurationInMillis = TimeUnit.SECONDS.toMillis( openDurationInSeconds );
+        this.halfOpenCalls = halfOpenCalls;
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.maxWaitInMillis = TimeUnit.SECONDS.toMillis( maxWaitInSeconds );
+    }
+
+    /**
+     * @return a Camel policy guarding the DHIS2 calls made by the processors wrapped with it
+     */
+    public Policy policy( String operation )
+    {
+        return new Policy()
+        {
+            @Override
+            public void beforeWrap( Route route, NamedNode definition )
+            {
+            }
+
+            @Override
+            public Processor wrap( Route route, Processor processor )
+            {
+                if ( !enabled )
+                {
+                    return processor;
+                }
+                return new DelegateAsyncProcessor( processor )
+                {
+                    @Override
+                    public boolean process( Exchange exchange, AsyncCallback callback )
+                    {
+                        CircuitBreaker circuitBreaker = getCircuitBreaker( operation );
+                        try
+                        {
+                            circuitBreaker.acquire();
+                        }
+                        catch ( Exception e )
+                        {
+                            exchange.setException( e );
+                            callback.done( true );
+                            return true;
+                        }
+                        return super.process( exchange, doneSync -> {
+                            circuitBreaker.release( isFailure( exchange.getException() ) );
+                            callback.done( doneSync );
+                        } );
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Makes a DHIS2 call guarded by the operation's circuit breaker and bulkhead.
+     */
+    public <T> T call( String operation, Callable<T> dhis2Call )
+    {
+        if ( !enabled )
+        {
+            return invoke( dhis2Call );
+        }
+        CircuitBreaker circuitBreaker = getCircuitBreaker( operation );
+        circuitBreaker.acquire();
+        boolean failed = true;
+        try
+        {
+            T result = invoke( dhis2Call );
+            failed = false;
+            return result;
+        }
+        catch ( RuntimeException e )
+        {
+            failed = isFailure( e );
+            throw e;
+        }
+        finally
+        {
+            circuitBreaker.release( failed );
+        }
+    }
+
+    /**
+     * @return <code>true</code> unless the circuit of a DHIS2 operation is open
+     */
+    public boolean isAvailable()
+    {
+        for ( CircuitBreaker circuitBreaker : circuitBreakers.values() )
+        {
+            if ( circuitBreaker.getState() == State.OPEN )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Registers a listener which is notified, on a separate thread, whenever a circuit changes state.
+     */
+    public void addStateChangeListener( Runnable stateChangeListener )
+    {
+        stateChangeListeners.add( stateChangeListener );
+    }
+
+    @ReadOperation
+    public Map<String, Object> statistics()
+    {
+        Map<String, Object> statistics = new TreeMap<>();
+        for ( Map.Entry<String, CircuitBreaker> circuitBreaker : circuitBreakers.entrySet() )
+        {
+            statistics.put( circuitBreaker.getKey(), circuitBreaker.getValue().statistics() );
+        }
+        return statistics;
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        scheduledExecutorService.shutdownNow();
+    }
+
+    /**
+     * @return <code>true</code> if the error suggests that DHIS2 is unreachable or overloaded as opposed to the request
+     * being rejected
+     */
+    public static boolean isFailure( Throwable throwable )
+    {
+        for ( Throwable cause = throwable; cause != null; cause = cause.getCause() )
+        {
+            if ( cause instanceof Dhis2CallNotPermittedException )
+            {
+                return false;
+            }
+            else if ( cause instanceof RemoteDhis2ClientException remoteDhis2ClientException )
+            {
+                return remoteDhis2ClientException.getHttpStatusCode() >= 500
+                    || remoteDhis2ClientException.getHttpStatusCode() == 429;
+            }
+            else if ( cause instanceof IOException )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected CircuitBreaker getCircuitBreaker( String operation )
+    {
+        return circuitBreakers.computeIfAbsent( operation, CircuitBreaker::new );
+    }
+
+    private <T> T invoke( Callable<T> dhis2Call )
+    {
+        try
+        {
+            return dhis2Call.call();
+        }
+        catch ( RuntimeException e )
+        {
+            throw e;
+        }
+        catch ( Exception e )
+        {
+            throw new Dhis2RapidProException( e );
+        }
+    }
+
+    private void notifyStateChange( String operation, State state )
+    {
+        LOGGER.info( "DHIS2 {} circuit is {}", operation, state );
+        scheduledExecutorService.execute( () -> {
+            for ( Runnable stateChangeListener : stateChangeListeners )
+            {
+                stateChangeListener.run();
+            }
+        } );
+    }
+
+    protected class CircuitBreaker
+    {
+        private final String operation;
+
+        private final boolean[] outcomes = new boolean[windowSize];
+
+        private int outcomeCount;
+
+        private int nextOutcome;
+
+        private int failureCount;
+
+        private State state = State.CLOSED;
+
+        private int inFlightCalls;
+
+        private int concurrentCallLimit = maxConcurrentCalls;
+
+        private int successfulTrialCalls;
+
+        private long rejectedCalls;
+
+        protected CircuitBreaker( String operation )
+        {
+            this.operation = operation;
+        }
+
+        public synchronized void acquire()
+        {
+            long deadline = System.currentTimeMillis() + maxWaitInMillis;
+            while ( true )
+            {
+                if ( state == State.OPEN )
+                {
+                    rejectedCalls++;
+                    throw new Dhis2CallNotPermittedException(
+                        String.format( "DHIS2 %s circuit is open", operation ) );
+                }
+                if ( inFlightCalls < (state == State.HALF_OPEN ? 1 : concurrentCallLimit) )
+                {
+                    inFlightCalls++;
+                    return;
+                }
+                long waitInMillis = deadline - System.currentTimeMillis();
+                if ( waitInMillis <= 0 )
+                {
+                    rejectedCalls++;
+                    throw new Dhis2CallNotPermittedException(
+                        String.format( "Timed out waiting for a free DHIS2 %s call slot", operation ) );
+                }
+                try
+                {
+                    wait( waitInMillis );
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    throw new Dhis2CallNotPermittedException(
+                        String.format( "Interrupted while waiting for a free DHIS2 %s call slot", operation ) );
+                }
+            }
+        }
+
+        public synchronized void release( boolean failed )
+        {
+            inFlightCalls--;
+            if ( state == State.HALF_OPEN )
+            {
+                if ( failed )
+                {
+                    open();
+                }
+                else if ( ++successfulTrialCalls >= halfOpenCalls )
+                {
+                    close();
+                }
+            }
+            else if ( state == State.CLOSED )
+            {
+                record( failed );
+                if ( !failed && concurrentCallLimit < maxConcurrentCalls )
+                {
+                    concurrentCallLimit++;
+                }
+                if ( outcomeCount == windowSize && failureCount * 100 >= failureRateThreshold * windowSize )
+                {
+                    open();
+                }
+            }
+            notifyAll();
+        }
+
+        public synchronized State getState()
+        {
+            return state;
+        }
+
+        protected synchronized Map<String, Object> statistics()
+        {
+            return Map.of( "state", state, "inFlightCalls", inFlightCalls, "concurrentCallLimit",
+                concurrentCallLimit, "failureRate", outcomeCount == 0 ? 0 : failureCount * 100 / outcomeCount,
+                "rejectedCalls", rejectedCalls );
+        }
+
+        private void record( boolean failed )
+        {
+            if ( outcomeCount == windowSize && outcomes[nextOutcome] )
+            {
+                failureCount--;
+            }
+            outcomes[nextOutcome] = failed;
+            if ( failed )
+            {
+                failureCount++;
+            }
+            nextOutcome = (nextOutcome + 1) % windowSize;
+            outcomeCount = Math.min( outcomeCount + 1, windowSize );
+        }
+
+        private void open()
+        {
+            state = State.OPEN;
+            notifyStateChange( operation, state );
+            scheduledExecutorService.schedule( this::halfOpen, openDurationInMillis, TimeUnit.MILLISECONDS );
+        }
+
+        private synchronized void halfOpen()
+        {
+            state = State.HALF_OPEN;
+            successfulTrialCalls = 0;
+            notifyAll();
+            notifyStateChange( operation, state );
+        }
+
+        private void close()
+        {
+            state = State.CLOSED;
+            outcomeCount = 0;
+            nextOutcome = 0;
+            failureCount = 0;
+            concurrentCallLimit = 1;
+            notifyStateChange( operation, state );
+        }
+    }
+}
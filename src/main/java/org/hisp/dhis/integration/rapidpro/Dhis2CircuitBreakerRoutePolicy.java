@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import org.apache.camel.Route;
+import org.apache.camel.ServiceStatus;
+import org.apache.camel.support.RoutePolicySupport;
+import org.apache.camel.support.service.ServiceHelper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stops the route's consumer while a {@link Dhis2CircuitBreaker} circuit is open so that messages are left on the
+ * queue instead of failing one after another. The consumer is started again once the circuit half-opens, provided that
+ * it was stopped by this policy as opposed to, say, an administrator stopping the route from Hawtio.
+ */
+@Component
+public class Dhis2CircuitBreakerRoutePolicy extends RoutePolicySupport
+{
+    private final Set<String> stoppedRouteIds = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    private Dhis2CircuitBreaker dhis2CircuitBreaker;
+
+    @Override
+    public void onInit( Route route )
+    {
+        dhis2CircuitBreaker.addStateChangeListener( () -> {
+            try
+            {
+                if ( dhis2CircuitBreaker.isAvailable() )
+                {
+                    if ( stoppedRouteIds.remove( route.getId() ) && isRouteStarted( route ) )
+                    {
+                        startConsumer( route.getConsumer() );
+                    }
+                }
+                else if ( isRouteStarted( route ) && ServiceHelper.isStarted( route.getConsumer() ) )
+                {
+                    stopConsumer( route.getConsumer() );
+                    stoppedRouteIds.add( route.getId() );
+                }
+            }
+            catch ( Exception e )
+            {
+                handleException( e );
+            }
+        } );
+    }
+
+    @Override
+    public void onStop( Route route )
+    {
+        // the route was stopped on purpose so its consumer must not be restarted when the circuit closes
+        stoppedRouteIds.remove( route.getId() );
+    }
+
+    private boolean isRouteStarted( Route route )
+    {
+        return route.getCamelContext().getRouteController().getRouteStatus( route.getId() ) == ServiceStatus.Started;
+    }
+}
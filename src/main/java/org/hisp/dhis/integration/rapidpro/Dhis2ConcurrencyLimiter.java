@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.Exchange;
+import org.apache.camel.NamedNode;
+import org.apache.camel.Processor;
+import org.apache.camel.Route;
+import org.apache.camel.spi.Policy;
+import org.apache.camel.support.processor.DelegateAsyncProcessor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts the number of concurrent calls to a DHIS2 operation, such as <code>dataValueSets</code>, to the latency
+ * observed by the calls (AIMD). The limit starts at <code>dhis2.concurrency.limit.initial</code> and grows by one for
+ * each successful call that returned within <code>dhis2.concurrency.limit.latency.tolerance</code> times the
+ * operation's baseline latency, that is, the lowest latency seen over the last two windows of
+ * <code>dhis2.concurrency.limit.window.size</code> calls. The limit is multiplied by
+ * <code>dhis2.concurrency.limit.backoff.ratio</code> as soon as a call is slower than that or fails because DHIS2 is
+ * unreachable or replied with a server error. Calls beyond the limit wait for their turn up to
+ * <code>dhis2.concurrency.limit.max.wait</code> seconds. The limit, in-flight calls, and queueing delay of each
+ * operation are exposed under <code>/management/dhis2concurrencylimits</code> and as the
+ * <code>dhis2.concurrency.limit</code>, <code>dhis2.concurrency.in.flight</code>, and
+ * <code>dhis2.concurrency.queueing.delay</code> metrics.
+ */
+@Component
+@Endpoint( id = "dhis2concurrencylimits" )
+public class Dhis2ConcurrencyLimiter implements MeterBinder
+{
+    private final boolean enabled;
+
+    private final int initialLimit;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final double latencyTolerance;
+
+    private final double backoffRatio;
+
+    private final int windowSize;
+
+    private final long maxWaitInNanos;
+
+    private final Map<String, ConcurrencyLimit> concurrencyLimits = new ConcurrentHashMap<>();
+
+    private volatile MeterRegistry meterRegistry;
+
+    public Dhis2ConcurrencyLimiter( @Value( "${dhis2.concurrency.limit.enabled:false}" ) boolean enabled,
+        @Value( "${dhis2.concurrency.limit.initial:4}" ) int initialLimit,
+        @Value( "${dhis2.concurrency.limit.min:1}" ) int minLimit,
+        @Value( "${dhis2.concurrency.limit.max:50}" ) int maxLimit,
+        @Value( "${dhis2.concurrency.limit.latency.tolerance:2.0}" ) double latencyTolerance,
+        @Value( "${dhis2.concurrency.limit.backoff.ratio:0.9}" ) double backoffRatio,
+        @Value( "${dhis2.concurrency.limit.window.size:100}" ) int windowSize,
+        @Value( "${dhis2.concurrency.limit.max.wait:60}" ) long maxWaitInSeconds )
+    {
+        this.enabled = enabled;
+        this.initialLimit = Math.max( minLimit, Math.min( initialLimit, maxLimit ) );
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyTolerance = latencyTolerance;
+        this.backoffRatio = backoffRatio;
+        this.windowSize = windowSize;
+        this.maxWaitInNanos = TimeUnit.SECONDS.toNanos( maxWaitInSeconds );
+    }
+
+    /**
+     * @return a Camel policy limiting the concurrency of the DHIS2 calls made by the processors wrapped with it
+     */
+    public Policy policy( String operation )
+    {
+        return new Policy()
+        {
+            @Override
+            public void beforeWrap( Route route, NamedNode definition )
+            {
+            }
+
+            @Override
+            public Processor wrap( Route route, Processor processor )
+            {
+                if ( !enabled )
+                {
+                    return processor;
+                }
+                return new DelegateAsyncProcessor( processor )
+                {
+                    @Override
+                    public boolean process( Exchange exchange, AsyncCallback callback )
+                    {
+                        ConcurrencyLimit concurrencyLimit = getConcurrencyLimit( operation );
+                        try
+                        {
+                            concurrencyLimit.acquire();
+                        }
+                        catch ( Exception e )
+                        {
+                            exchange.setException( e );
+                            callback.done( true );
+                            return true;
+                        }
+                        long startTime = System.nanoTime();
+                        return super.process( exchange, doneSync -> {
+                            concurrencyLimit.release( startTime, System.nanoTime() - startTime,
+                                Dhis2CircuitBreaker.isFailure( exchange.getException() ) );
+                            callback.done( doneSync );
+                        } );
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Makes a DHIS2 call once the operation's concurrency limit allows it.
+     */
+    public <T> T call( String operation, Callable<T> dhis2Call )
+    {
+        if ( !enabled )
+        {
+            return invoke( dhis2Call );
+        }
+        ConcurrencyLimit concurrencyLimit = getConcurrencyLimit( operation );
+        concurrencyLimit.acquire();
+        long startTime = System.nanoTime();
+        boolean failed = true;
+        try
+        {
+            T result = invoke( dhis2Call );
+            failed = false;
+            return result;
+        }
+        catch ( RuntimeException e )
+        {
+            failed = Dhis2CircuitBreaker.isFailure( e );
+            throw e;
+        }
+        finally
+        {
+            concurrencyLimit.release( startTime, System.nanoTime() - startTime, failed );
+        }
+    }
+
+    @Override
+    public void bindTo( MeterRegistry meterRegistry )
+    {
+        this.meterRegistry = meterRegistry;
+        concurrencyLimits.values().forEach( concurrencyLimit -> concurrencyLimit.bindTo( meterRegistry ) );
+    }
+
+    @ReadOperation
+    public Map<String, Object> statistics()
+    {
+        Map<String, Object> statistics = new TreeMap<>();
+        for ( Map.Entry<String, ConcurrencyLimit> concurrencyLimit : concurrencyLimits.entrySet() )
+        {
+            statistics.put( concurrencyLimit.getKey(), concurrencyLimit.getValue().statistics() );
+        }
+        return statistics;
+    }
+
+    protected ConcurrencyLimit getConcurrencyLimit( String operation )
+    {
+        return concurrencyLimits.computeIfAbsent( operation, key -> {
+            ConcurrencyLimit concurrencyLimit = new ConcurrencyLimit( key );
+            if ( meterRegistry != null )
+            {
+                concurrencyLimit.bindTo( meterRegistry );
+            }
+            return concurrencyLimit;
+        } );
+    }
+
+    private <T> T invoke( Callable<T> dhis2Call )
+    {
+        try
+        {
+            return dhis2Call.call();
+        }
+        catch ( RuntimeException e )
+        {
+            throw e;
+        }
+        catch ( Exception e )
+        {
+            throw new Dhis2RapidProException( e );
+        }
+    }
+
+    protected class ConcurrencyLimit
+    {
+        private final String operation;
+
+        private int limit = initialLimit;
+
+        private int inFlightCalls;
+
+        private int waitingCalls;
+
+        private long windowMinLatencyInNanos = Long.MAX_VALUE;
+
+        private long previousWindowMinLatencyInNanos = Long.MAX_VALUE;
+
+        private int windowCalls;
+
+        private long lastBackoffTime = System.nanoTime();
+
+        private long backoffs;
+
+        private long rejectedCalls;
+
+        private long lastQueueingDelayInNanos;
+
+        private volatile Timer queueingDelayTimer;
+
+        protected ConcurrencyLimit( String operation )
+        {
+            this.operation = operation;
+        }
+
+        public void acquire()
+        {
+            long startTime = System.nanoTime();
+            synchronized ( this )
+            {
+                waitingCalls++;
+                try
+                {
+                    while ( inFlightCalls >= limit )
+                    {
+                        long waitInNanos = startTime + maxWaitInNanos - System.nanoTime();
+                        if ( waitInNanos <= 0 )
+                        {
+                            rejectedCalls++;
+                            throw new Dhis2CallNotPermittedException(
+                                String.format( "Timed out waiting for the DHIS2 %s concurrency limit of %s calls",
+                                    operation, limit ) );
+                        }
+                        try
+                        {
+                            TimeUnit.NANOSECONDS.timedWait( this, waitInNanos );
+                        }
+                        catch ( InterruptedException e )
+                        {
+                            Thread.currentThread().interrupt();
+                            throw new Dhis2CallNotPermittedException(
+                                String.format( "Interrupted while waiting for the DHIS2 %s concurrency limit",
+                                    operation ) );
+                        }
+                    }
+                    inFlightCalls++;
+                }
+                finally
+                {
+                    waitingCalls--;
+                }
+                lastQueueingDelayInNanos = System.nanoTime() - startTime;
+            }
+            if ( queueingDelayTimer != null )
+            {
+                queueingDelayTimer.record( lastQueueingDelayInNanos, TimeUnit.NANOSECONDS );
+            }
+        }
+
+        /**
+         * @param startTime the {@link System#nanoTime()} at which the call was made
+         */
+        public synchronized void release( long startTime, long latencyInNanos, boolean failed )
+        {
+            int inFlightCallsAtRelease = inFlightCalls--;
+            long baselineLatencyInNanos = Math.min( windowMinLatencyInNanos, previousWindowMinLatencyInNanos );
+            boolean congested = failed || (baselineLatencyInNanos != Long.MAX_VALUE
+                && latencyInNanos > baselineLatencyInNanos * latencyTolerance);
+            if ( !failed )
+            {
+                recordLatency( latencyInNanos );
+            }
+
+            if ( congested )
+            {
+                // calls made before the last back-off reflect the previous limit
+                if ( startTime - lastBackoffTime > 0 )
+                {
+                    limit = Math.max( minLimit, (int) (limit * backoffRatio) );
+                    lastBackoffTime = System.nanoTime();
+                    backoffs++;
+                }
+            }
+            else if ( inFlightCallsAtRelease * 2 >= limit && limit < maxLimit )
+            {
+                limit++;
+            }
+            notifyAll();
+        }
+
+        public synchronized int getLimit()
+        {
+            return limit;
+        }
+
+        public synchronized int getInFlightCalls()
+        {
+            return inFlightCalls;
+        }
+
+        protected synchronized Map<String, Object> statistics()
+        {
+            long baselineLatencyInNanos = Math.min( windowMinLatencyInNanos, previousWindowMinLatencyInNanos );
+            return Map.of( "limit", limit, "inFlightCalls", inFlightCalls, "waitingCalls", waitingCalls,
+                "baselineLatency", baselineLatencyInNanos == Long.MAX_VALUE ? 0
+                    : TimeUnit.NANOSECONDS.toMillis( baselineLatencyInNanos ),
+                "lastQueueingDelay", TimeUnit.NANOSECONDS.toMillis( lastQueueingDelayInNanos ),
+                "backoffs", backoffs, "rejectedCalls", rejectedCalls );
+        }
+
+        private void recordLatency( long latencyInNanos )
+        {
+            windowMinLatencyInNanos = Math.min( windowMinLatencyInNanos, latencyInNanos );
+            if ( ++windowCalls >= windowSize )
+            {
+                // let the baseline drift upwards when DHIS2 gets durably slower
+                previousWindowMinLatencyInNanos = windowMinLatencyInNanos;
+                windowMinLatencyInNanos = Long.MAX_VALUE;
+                windowCalls = 0;
+            }
+        }
+
+        private void bindTo( MeterRegistry meterRegistry )
+        {
+            Gauge.builder( "dhis2.concurrency.limit", this, ConcurrencyLimit::getLimit ).tag( "operation", operation )
+                .description( "Number of concurrent calls allowed to the DHIS2 operation" ).register( meterRegistry );
+            Gauge.builder( "dhis2.concurrency.in.flight", this, ConcurrencyLimit::getInFlightCalls )
+                .tag( "operation", operation ).description( "Number of calls to the DHIS2 operation in flight" )
+                .register( meterRegistry );
+            queueingDelayTimer = Timer.builder( "dhis2.concurrency.queueing.delay" ).tag( "operation", operation )
+                .description( "Time spent waiting for the DHIS2 operation's concurrency limit" )
+                .register( meterRegistry );
+        }
+    }
+}
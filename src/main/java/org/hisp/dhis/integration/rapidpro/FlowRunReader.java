@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads RapidPro flow runs into {@link FlowRun}s with Jackson's streaming API. Only the routing fields are extracted
+ * while the <code>flow</code>, <code>contact</code>, and <code>values</code> fields are copied token by token into the
+ * run's payload. The remaining fields, such as the run's <code>path</code>, are skipped without being bound.
+ */
+@Component
+public class FlowRunReader
+{
+    public record Page(String next, List<FlowRun> results)
+    {
+    }
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    /**
+     * Reads a page of flow runs as returned by RapidPro's <code>runs.json</code> endpoint.
+     */
+    public Page readPage( InputStream inputStream )
+        throws
+        IOException
+    {
+        String next = null;
+        List<FlowRun> flowRuns = new ArrayList<>();
+        try ( JsonParser jsonParser = objectMapper.createParser( inputStream ) )
+        {
+            if ( jsonParser.nextToken() != JsonToken.START_OBJECT )
+            {
+                throw new Dhis2RapidProException( "Expected a JSON object while reading flow runs from RapidPro" );
+            }
+            while ( jsonParser.nextToken() == JsonToken.FIELD_NAME )
+            {
+                String fieldName = jsonParser.currentName();
+                JsonToken valueToken = jsonParser.nextToken();
+                if ( fieldName.equals( "next" ) )
+                {
+                    next = jsonParser.getValueAsString();
+                }
+                else if ( fieldName.equals( "results" ) && valueToken == JsonToken.START_ARRAY )
+                {
+                    while ( jsonParser.nextToken() == JsonToken.START_OBJECT )
+                    {
+                        flowRuns.add( read( jsonParser ) );
+                    }
+                }
+                else
+                {
+                    jsonParser.skipChildren();
+                }
+            }
+        }
+
+        return new Page( next, flowRuns );
+    }
+
+    /**
+     * Reads flow runs which were already bound to maps, for instance, by the RapidPro kamelet.
+     */
+    public List<FlowRun> readAll( List<Map<String, Object>> flowRuns )
+        throws
+        IOException
+    {
+        List<FlowRun> typedFlowRuns = new ArrayList<>( flowRuns.size() );
+        for ( Map<String, Object> flowRun : flowRuns )
+        {
+            try ( JsonParser jsonParser = objectMapper.treeAsTokens( objectMapper.valueToTree( flowRun ) ) )
+            {
+                jsonParser.nextToken();
+                typedFlowRuns.add( read( jsonParser ) );
+            }
+        }
+
+        return typedFlowRuns;
+    }
+
+    /**
+     * Reads the flow run starting at the parser's current <code>START_OBJECT</code> token.
+     */
+    protected FlowRun read( JsonParser jsonParser )
+        throws
+        IOException
+    {
+        String uuid = null;
+        Instant modifiedOn = null;
+        Instant exitedOn = null;
+        String exitType = null;
+        JsonNode values = null;
+
+        StringWriter payloadWriter = new StringWriter();
+        try ( JsonGenerator payloadGenerator = objectMapper.createGenerator( payloadWriter ) )
+        {
+            payloadGenerator.writeStartObject();
+            while ( jsonParser.nextToken() == JsonToken.FIELD_NAME )
+            {
+                String fieldName = jsonParser.currentName();
+                jsonParser.nextToken();
+                switch ( fieldName )
+                {
+                    case "uuid":
+                        uuid = jsonParser.getValueAsString();
+                        break;
+                    case "modified_on":
+                        modifiedOn = toInstant( jsonParser.getValueAsString() );
+                        break;
+                    case "exited_on":
+                        exitedOn = toInstant( jsonParser.getValueAsString() );
+                        break;
+                    case "exit_type":
+                        exitType = jsonParser.getValueAsString();
+                        break;
+                    case "flow":
+                    case "contact":
+                        payloadGenerator.writeFieldName( fieldName );
+                        payloadGenerator.copyCurrentStructure( jsonParser );
+                        break;
+                    case "values":
+                        // results are small and needed both for routing and for the payload
+                        values = jsonParser.readValueAsTree();
+                        payloadGenerator.writeFieldName( "results" );
+                        payloadGenerator.writeTree( values );
+                        break;
+                    default:
+                        jsonParser.skipChildren();
+                }
+            }
+            payloadGenerator.writeEndObject();
+        }
+
+        return new FlowRun( uuid, modifiedOn, exitedOn, exitType, resultValue( values, "data_set_code" ),
+            resultValue( values, "event_id" ), resultValue( values, "org_unit_id" ),
+            resultValue( values, "report_period_offset" ), payloadWriter.toString() );
+    }
+
+    private Instant toInstant( String dateTime )
+    {
+        return dateTime == null ? null : Instant.parse( dateTime );
+    }
+
+    private String resultValue( JsonNode values, String resultName )
+    {
+        if ( values == null || !values.has( resultName ) )
+        {
+            return null;
+        }
+        JsonNode value = values.get( resultName ).get( "value" );
+        return value == null || value.isNull() ? null : value.asText();
+    }
+}
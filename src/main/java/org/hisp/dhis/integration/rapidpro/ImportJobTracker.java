@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.hisp.dhis.integration.sdk.api.Dhis2Client;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves the outcome of asynchronous DHIS2 import jobs. The notifications of all the jobs of a given type are
+ * fetched with a single request, and the import summaries of the completed jobs with at most one more request, no
+ * matter how many jobs are pending. A job which has not completed within <code>report.delivery.async.job.timeout</code>
+ * seconds, for instance because DHIS2 was restarted and lost its notifications, is resolved as an error so that its
+ * report can be replayed.
+ */
+@Component
+public class ImportJobTracker
+{
+    @Autowired
+    private Dhis2Client dhis2Client;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value( "${report.delivery.async.job.timeout:3600}" )
+    private long jobTimeoutInSeconds;
+
+    /**
+     * @param jobs rows of pending import jobs holding at least the <code>job_id</code>, <code>job_type</code>, and
+     *             <code>created_at</code> columns
+     * @return the rows of the jobs that finished, each with its import summary as JSON under the
+     * <code>importSummary</code> key
+     */
+    public List<Map<String, Object>> resolve( List<Map<String, Object>> jobs )
+    {
+        Map<String, List<Map<String, Object>>> jobsByType = new LinkedHashMap<>();
+        for ( Map<String, Object> job : jobs )
+        {
+            jobsByType.computeIfAbsent( (String) job.get( "job_type" ), k -> new ArrayList<>() ).add( job );
+        }
+
+        List<Map<String, Object>> finishedJobs = new ArrayList<>();
+        for ( Map.Entry<String, List<Map<String, Object>>> jobsOfType : jobsByType.entrySet() )
+        {
+            Map<String, List<Map<String, Object>>> tasks = fetchTasks( jobsOfType.getKey() );
+            Map<String, Object> taskSummaries = null;
+            for ( Map<String, Object> job : jobsOfType.getValue() )
+            {
+                String jobId = (String) job.get( "job_id" );
+                List<Map<String, Object>> notifications = tasks.getOrDefault( jobId, List.of() );
+                Object importSummary;
+                if ( isCompleted( notifications ) )
+                {
+                    if ( taskSummaries == null )
+                    {
+                        taskSummaries = fetchTaskSummaries( jobsOfType.getKey() );
+                    }
+                    importSummary = taskSummaries.get( jobId );
+                    if ( importSummary == null )
+                    {
+                        importSummary = Map.of( "status", "ERROR", "description",
+                            "DHIS2 import job completed without an import summary: " + notifications.get( 0 )
+                                .get( "message" ) );
+                    }
+                }
+                else if ( isTimedOut( job ) )
+                {
+                    importSummary = Map.of( "status", "ERROR", "description",
+                        "DHIS2 import job did not complete within " + jobTimeoutInSeconds + " seconds" );
+                }
+                else
+                {
+                    continue;
+                }
+
+                Map<String, Object> finishedJob = new HashMap<>( job );
+                finishedJob.put( "importSummary", toJson( importSummary ) );
+                finishedJobs.add( finishedJob );
+            }
+        }
+
+        return finishedJobs;
+    }
+
+    protected Map<String, List<Map<String, Object>>> fetchTasks( String jobType )
+    {
+        return dhis2Client.get( "system/tasks/" + jobType ).transfer().returnAs( Map.class );
+    }
+
+    protected Map<String, Object> fetchTaskSummaries( String jobType )
+    {
+        return dhis2Client.get( "system/taskSummaries/" + jobType ).transfer().returnAs( Map.class );
+    }
+
+    private boolean isCompleted( List<Map<String, Object>> notifications )
+    {
+        for ( Map<String, Object> notification : notifications )
+        {
+            if ( Boolean.TRUE.equals( notification.get( "completed" ) ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isTimedOut( Map<String, Object> job )
+    {
+        Instant createdAt = TimestampColumns.toInstant( job.get( "created_at" ) );
+        return createdAt.plus( Duration.ofSeconds( jobTimeoutInSeconds ) ).isBefore( Instant.now() );
+    }
+
+    private String toJson( Object importSummary )
+    {
+        try
+        {
+            return objectMapper.writeValueAsString( importSummary );
+        }
+        catch ( JsonProcessingException e )
+        {
+            throw new Dhis2RapidProException( e );
+        }
+    }
+}
@@ -34,8 +34,6 @@ import java.util.Set;
 
 import com.datasonnet.jsonnet.Materializer;
 import com.datasonnet.jsonnet.Val;
-import org.hisp.dhis.api.model.v40_0.CategoryOptionCombo;
-import org.hisp.dhis.integration.sdk.api.Dhis2Client;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -55,7 +53,7 @@ public class NativeDataSonnetLibrary extends Library
 
     @Autowired
     @Lazy
-    private Dhis2Client dhis2Client;
+    private CategoryOptionComboIndex categoryOptionComboIndex;
 
     @Override
     public String namespace()
@@ -117,19 +115,7 @@ public class NativeDataSonnetLibrary extends Library
 
     protected String fetchDhis2CatOptComboCode( String resultName )
     {
-        String catOptComboCode = extractCatOptComboCode( resultName );
-        Iterable<CategoryOptionCombo> categoryOptionCombos = dhis2Client.get( "categoryOptionCombos" )
-            .withFilter( "code:$ilike:" + catOptComboCode ).withFields( "code" ).withoutPaging()
-            .transfer().returnAs( CategoryOptionCombo.class, "categoryOptionCombos" );
-        String dhis2CatOptComboCode = null;
-        for ( CategoryOptionCombo categoryOptionCombo : categoryOptionCombos )
-        {
-            if ( categoryOptionCombo.getCode().get().equalsIgnoreCase( catOptComboCode ) )
-            {
-                dhis2CatOptComboCode = categoryOptionCombo.getCode().get();
-            }
-        }
-        return dhis2CatOptComboCode;
+        return categoryOptionComboIndex.getCode( extractCatOptComboCode( resultName ) );
     }
 
     protected String extractCatOptComboCode( String resultName )
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import org.apache.camel.component.http.HttpComponent;
+import org.apache.camel.spi.ComponentCustomizer;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configures the HTTP transport of the calls made to RapidPro. The same <code>rapidpro.http.*</code> settings apply to
+ * the shared OkHttp client, used by the connection test and the flow run scans, and to the Camel HTTP components used
+ * by the RapidPro kamelets. The connection limits apply to the Camel HTTP components alone: the OkHttp client is only
+ * called synchronously, which OkHttp's dispatcher does not limit, and its concurrency is instead bounded by
+ * <code>scan.reports.max.concurrency</code>.
+ */
+@Configuration
+public class RapidProHttpClientConfig
+{
+    @Value( "${rapidpro.http.max.idle.connections:5}" )
+    private int maxIdleConnections;
+
+    @Value( "${rapidpro.http.keep.alive:300}" )
+    private long keepAliveInSeconds;
+
+    @Value( "${rapidpro.http.max.connections:64}" )
+    private int maxConnections;
+
+    @Value( "${rapidpro.http.max.connections.per.host:20}" )
+    private int maxConnectionsPerHost;
+
+    @Value( "${rapidpro.http.connect.timeout:10}" )
+    private long connectTimeoutInSeconds;
+
+    @Value( "${rapidpro.http.read.timeout:60}" )
+    private long readTimeoutInSeconds;
+
+    @Value( "${rapidpro.http.write.timeout:60}" )
+    private long writeTimeoutInSeconds;
+
+    @Value( "${rapidpro.http.call.timeout:0}" )
+    private long callTimeoutInSeconds;
+
+    @Value( "${rapidpro.http.gzip:true}" )
+    private boolean gzip;
+
+    @Bean
+    public OkHttpClient rapidProHttpClient()
+    {
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+            .connectionPool( new ConnectionPool( maxIdleConnections, keepAliveInSeconds, TimeUnit.SECONDS ) )
+            .connectTimeout( connectTimeoutInSeconds, TimeUnit.SECONDS )
+            .readTimeout( readTimeoutInSeconds, TimeUnit.SECONDS )
+            .writeTimeout( writeTimeoutInSeconds, TimeUnit.SECONDS )
+            .callTimeout( callTimeoutInSeconds, TimeUnit.SECONDS );
+        if ( !gzip )
+        {
+            // OkHttp only negotiates gzip when the caller leaves out the Accept-Encoding header
+            builder.addInterceptor( chain -> chain.proceed(
+                chain.request().newBuilder().header( "Accept-Encoding", "identity" ).build() ) );
+        }
+        return builder.build();
+    }
+
+    @Bean
+    public ComponentCustomizer rapidProHttpComponentCustomizer()
+    {
+        return ComponentCustomizer.forType( HttpComponent.class, httpComponent -> {
+            httpComponent.setMaxTotalConnections( maxConnections );
+            httpComponent.setConnectionsPerRoute( maxConnectionsPerHost );
+            httpComponent.setConnectTimeout( Timeout.ofSeconds( connectTimeoutInSeconds ) );
+            httpComponent.setSoTimeout( Timeout.ofSeconds( readTimeoutInSeconds ) );
+            httpComponent.setResponseTimeout( Timeout.ofSeconds( readTimeoutInSeconds ) );
+            httpComponent.setContentCompressionDisabled( !gzip );
+        } );
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import org.apache.camel.ConsumerTemplate;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drains the aggregate report queue in batches during a scheduled delivery window. Draining stops once the queue is
+ * empty, once <code>report.delivery.drain.max.reports</code> reports have been drained, or once
+ * <code>report.delivery.drain.max.duration</code> seconds have elapsed since the window opened, whichever comes first.
+ * The state of a drain is held in the properties of the exchange driving it and is shared by the copies of the exchange
+ * so that several workers can drain the queue at once. A batch is expected to be received and delivered on a single
+ * thread within a JMS transaction, such as the one of the <code>Drain Report Batch</code> route, so that its reports
+ * are only acknowledged once they are delivered. A batch holding a report that DHIS2 could not be called for is
+ * {@link #reject(Exchange) rejected} so that it can be rolled back onto the queue.
+ */
+@Component
+public class ReportQueueDrainer
+{
+    private static final String DRAIN_STARTED_AT = "drainStartedAt";
+
+    private static final String DRAINED_COUNT = "drainedCount";
+
+    private static final String IS_DRAINING = "isDraining";
+
+    private static final String IS_BATCH_REJECTED = "isBatchRejected";
+
+    @Autowired
+    private ConsumerTemplate consumerTemplate;
+
+    private String queueUri = "jms:queue:dhis2AggregateReports";
+
+    @Value( "${report.delivery.drain.batch.size:100}" )
+    private int batchSize;
+
+    @Value( "${report.delivery.drain.max.reports:0}" )
+    private long maxReports;
+
+    @Value( "${report.delivery.drain.max.duration:3600}" )
+    private long maxDurationInSeconds;
+
+    @Value( "${report.delivery.drain.receive.timeout:1000}" )
+    private long receiveTimeoutInMillis;
+
+    @Value( "${report.delivery.drain.rate:0}" )
+    private double maxReportsPerSecond;
+
+    private long nextPermitAt = System.nanoTime();
+
+    public void start( Exchange exchange )
+    {
+        exchange.setProperty( DRAIN_STARTED_AT, System.currentTimeMillis() );
+        exchange.setProperty( DRAINED_COUNT, new AtomicLong() );
+        exchange.setProperty( IS_DRAINING, new AtomicBoolean( true ) );
+    }
+
+    public boolean isDraining( Exchange exchange )
+    {
+        return exchange.getProperty( IS_DRAINING, AtomicBoolean.class ).get();
+    }
+
+    /**
+     * Receives the next batch of queued reports within the drain's budget. The drain ends when the batch comes back
+     * short, either because the queue is empty or because the budget is used up.
+     *
+     * @return the messages of the received reports
+     */
+    public List<Message> receiveBatch( Exchange exchange )
+    {
+        AtomicLong drainedCount = exchange.getProperty( DRAINED_COUNT, AtomicLong.class );
+        AtomicBoolean isDraining = exchange.getProperty( IS_DRAINING, AtomicBoolean.class );
+        long deadline = exchange.getProperty( DRAIN_STARTED_AT, Long.class ) + TimeUnit.SECONDS.toMillis(
+            maxDurationInSeconds );
+        exchange.setProperty( IS_BATCH_REJECTED, new AtomicBoolean() );
+
+        // the batch's share of max reports is reserved upfront since other workers may be draining at the same time
+        long requestedCount = batchSize;
+        if ( maxReports > 0 )
+        {
+            long reservedCount;
+            do
+            {
+                reservedCount = drainedCount.get();
+                requestedCount = Math.max( 0, Math.min( batchSize, maxReports - reservedCount ) );
+            }
+            while ( !drainedCount.compareAndSet( reservedCount, reservedCount + requestedCount ) );
+        }
+
+        List<Message> messages = new ArrayList<>();
+        while ( messages.size() < requestedCount && (maxDurationInSeconds <= 0
+            || System.currentTimeMillis() < deadline) )
+        {
+            Exchange receivedExchange = consumerTemplate.receive( queueUri, receiveTimeoutInMillis );
+            if ( receivedExchange == null )
+            {
+                break;
+            }
+            messages.add( receivedExchange.getMessage() );
+            consumerTemplate.doneUoW( receivedExchange );
+        }
+
+        long totalDrainedCount = drainedCount.addAndGet(
+            maxReports > 0 ? messages.size() - requestedCount : messages.size() );
+        if ( messages.size() < requestedCount || (maxReports > 0 && totalDrainedCount >= maxReports) )
+        {
+            isDraining.set( false );
+        }
+        return messages;
+    }
+
+    /**
+     * Marks the batch of the report as rejected and ends the drain. Called when DHIS2 could not be called for the
+     * report because its circuit is open or because its concurrent call limit was not freed up in time.
+     */
+    public void reject( Exchange exchange )
+    {
+        exchange.getProperty( IS_BATCH_REJECTED, AtomicBoolean.class ).set( true );
+        exchange.getProperty( IS_DRAINING, AtomicBoolean.class ).set( false );
+    }
+
+    public boolean isBatchRejected( Exchange exchange )
+    {
+        return exchange.getProperty( IS_BATCH_REJECTED, AtomicBoolean.class ).get();
+    }
+
+    /**
+     * Takes the reports of a rejected batch off the drained count as the batch is rolled back onto the queue.
+     */
+    public void returnBatch( Exchange exchange )
+    {
+        exchange.getProperty( DRAINED_COUNT, AtomicLong.class ).addAndGet(
+            -exchange.getMessage().getBody( List.class ).size() );
+    }
+
+    /**
+     * Holds up the caller for as long as needed to keep deliveries within <code>report.delivery.drain.rate</code>
+     * reports per second.
+     */
+    public void acquirePermit()
+        throws
+        InterruptedException
+    {
+        if ( maxReportsPerSecond <= 0 )
+        {
+            return;
+        }
+        long waitInNanos;
+        synchronized ( this )
+        {
+            long now = System.nanoTime();
+            if ( nextPermitAt - now < 0 )
+            {
+                nextPermitAt = now;
+            }
+            waitInNanos = nextPermitAt - now;
+            nextPermitAt += (long) (TimeUnit.SECONDS.toNanos( 1 ) / maxReportsPerSecond);
+        }
+        if ( waitInNanos > 0 )
+        {
+            TimeUnit.NANOSECONDS.sleep( waitInNanos );
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import org.apache.camel.spi.IdempotentRepository;
+import org.apache.camel.support.LRUCacheFactory;
+import org.apache.camel.support.service.ServiceSupport;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the UUIDs of the RapidPro flow runs that were queued so that runs fetched again by overlapping scans are
+ * not queued twice. Recently seen UUIDs are held in an in-memory LRU cache in front of the <code>SEEN_FLOW_RUN</code>
+ * table. Hit and miss counters are exposed under <code>/management/seenflowruns</code>.
+ */
+@Component
+@Endpoint( id = "seenflowruns" )
+public class SeenFlowRunRepository extends ServiceSupport implements IdempotentRepository
+{
+    private static final Object SEEN = new Object();
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Value( "${seen.flow.run.select.${spring.sql.init.platform}}" )
+    private String selectSql;
+
+    @Value( "${seen.flow.run.insert.${spring.sql.init.platform}}" )
+    private String insertSql;
+
+    @Value( "${seen.flow.run.delete.${spring.sql.init.platform}}" )
+    private String deleteSql;
+
+    @Value( "${seen.flow.run.delete.all.${spring.sql.init.platform}}" )
+    private String deleteAllSql;
+
+    @Value( "${seen.flow.run.prune.${spring.sql.init.platform}}" )
+    private String pruneSql;
+
+    @Value( "${scan.reports.dedup.ttl:30}" )
+    private int ttlInDays;
+
+    private final Map<String, Object> cache;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public SeenFlowRunRepository( @Value( "${scan.reports.dedup.cache.size:10000}" ) int cacheSize )
+    {
+        this.cache = LRUCacheFactory.newLRUCache( cacheSize );
+    }
+
+    @Override
+    public boolean add( String runUuid )
+    {
+        if ( cache.containsKey( runUuid ) )
+        {
+            hits.incrementAndGet();
+            return false;
+        }
+
+        try
+        {
+            jdbcTemplate.update( insertSql, runUuid );
+        }
+        catch ( DuplicateKeyException e )
+        {
+            cache.put( runUuid, SEEN );
+            hits.incrementAndGet();
+            return false;
+        }
+        cache.put( runUuid, SEEN );
+        misses.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public boolean contains( String runUuid )
+    {
+        return cache.containsKey( runUuid ) || jdbcTemplate.queryForObject( selectSql, Integer.class, runUuid ) > 0;
+    }
+
+    @Override
+    public boolean remove( String runUuid )
+    {
+        cache.remove( runUuid );
+        return jdbcTemplate.update( deleteSql, runUuid ) > 0;
+    }
+
+    @Override
+    public boolean confirm( String runUuid )
+    {
+        return true;
+    }
+
+    @Override
+    public void clear()
+    {
+        cache.clear();
+        jdbcTemplate.update( deleteAllSql );
+    }
+
+    /**
+     * Forgets the flow runs seen before the configured time-to-live.
+     *
+     * @return the number of forgotten flow runs
+     */
+    public int prune()
+    {
+        return jdbcTemplate.update( pruneSql, Timestamp.from( Instant.now().minus( Duration.ofDays( ttlInDays ) ) ) );
+    }
+
+    @ReadOperation
+    public Map<String, Object> statistics()
+    {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put( "hits", hits.get() );
+        statistics.put( "misses", misses.get() );
+        statistics.put( "cacheSize", cache.size() );
+        return statistics;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAccessor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Moves the success log rows older than <code>success.log.retention.days</code> days out of the database and into
+ * GZIP-compressed JSON Lines files under <code>success.log.archive.dir</code>. Each table is archived to one file per
+ * month of the rows' creation time, such as <code>report_success_log-2024-05.jsonl.gz</code>, where each line is a
+ * row with its payloads decompressed. Rows are archived in batches of <code>success.log.archive.batch.size</code> and only deleted once
+ * their batch is synced to disk.
+ */
+@Component
+public class SuccessLogArchiver
+{
+    private static final DateTimeFormatter MONTH_FORMATTER = DateTimeFormatter.ofPattern( "yyyy-MM" )
+        .withZone( ZoneOffset.UTC );
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value( "${report.success.log.archive.select.${spring.sql.init.platform}}" )
+    private String reportSelectSql;
+
+    @Value( "${report.success.log.delete.${spring.sql.init.platform}}" )
+    private String reportDeleteSql;
+
+    @Value( "${event.success.log.archive.select.${spring.sql.init.platform}}" )
+    private String eventSelectSql;
+
+    @Value( "${event.success.log.delete.${spring.sql.init.platform}}" )
+    private String eventDeleteSql;
+
+    @Value( "${success.log.retention.days:0}" )
+    private int retentionInDays;
+
+    @Value( "${success.log.archive.dir:archive}" )
+    private String archiveDir;
+
+    @Value( "${success.log.archive.batch.size:1000}" )
+    private int batchSize;
+
+    /**
+     * @return the number of archived rows
+     */
+    public int archive()
+        throws
+        IOException
+    {
+        Timestamp cutOff = Timestamp.from( Instant.now().minus( Duration.ofDays( retentionInDays ) ) );
+        Files.createDirectories( Path.of( archiveDir ) );
+
+        return archive( reportSelectSql, reportDeleteSql, cutOff, "report_success_log-" ) + archive( eventSelectSql,
+            eventDeleteSql, cutOff, "event_success_log-" );
+    }
+
+    protected int archive( String selectSql, String deleteSql, Timestamp cutOff, String archiveFilePrefix )
+        throws
+        IOException
+    {
+        int archived = 0;
+        List<Map<String, Object>> rows;
+        do
+        {
+            rows = jdbcTemplate.queryForList( selectSql, cutOff, batchSize );
+            if ( !rows.isEmpty() )
+            {
+                Map<String, List<Map<String, Object>>> rowsByMonth = new TreeMap<>();
+                for ( Map<String, Object> row : rows )
+                {
+                    String month = MONTH_FORMATTER.format( TimestampColumns.toInstant( row.get( "created_at" ) ) );
+                    rowsByMonth.computeIfAbsent( month, k -> new ArrayList<>() ).add( row );
+                }
+                for ( Map.Entry<String, List<Map<String, Object>>> monthRows : rowsByMonth.entrySet() )
+                {
+                    write( monthRows.getValue(),
+                        Path.of( archiveDir, archiveFilePrefix + monthRows.getKey() + ".jsonl.gz" ) );
+                }
+                List<Object[]> batchArgs = new ArrayList<>();
+                for ( Map<String, Object> row : rows )
+                {
+                    batchArgs.add( new Object[] { row.get( "id" ) } );
+                }
+                jdbcTemplate.batchUpdate( deleteSql, batchArgs );
+                archived += rows.size();
+            }
+        }
+        while ( rows.size() == batchSize );
+
+        return archived;
+    }
+
+    /**
+     * Appends the rows to the archive file as a new GZIP member so that earlier batches are left untouched.
+     * <code>zcat</code> and {@link java.util.zip.GZIPInputStream} read all the members of the file in sequence.
+     */
+    protected void write( List<Map<String, Object>> rows, Path archiveFile )
+        throws
+        IOException
+    {
+        try ( FileOutputStream fileOutputStream = new FileOutputStream( archiveFile.toFile(), true );
+            BufferedOutputStream bufferedOutputStream = new BufferedOutputStream( fileOutputStream );
+            GZIPOutputStream gzipOutputStream = new GZIPOutputStream( bufferedOutputStream ) )
+        {
+            for ( Map<String, Object> row : rows )
+            {
+                Map<String, Object> archivedRow = SuccessLogWriter.decompress( row );
+                archivedRow.replaceAll( ( columnName, value ) -> value instanceof Timestamp timestamp ?
+                    timestamp.toInstant().toString() : value instanceof TemporalAccessor ? value.toString() : value );
+                gzipOutputStream.write( objectMapper.writeValueAsBytes( archivedRow ) );
+                gzipOutputStream.write( '\n' );
+            }
+            gzipOutputStream.finish();
+            bufferedOutputStream.flush();
+            fileOutputStream.getChannel().force( true );
+        }
+    }
+}
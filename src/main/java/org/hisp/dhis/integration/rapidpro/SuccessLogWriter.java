@@ -0,0 +1,494 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.UncheckedIOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes success log rows, such as those of <code>REPORT_SUCCESS_LOG</code>, in JDBC batches off the delivery path.
+ * Appended rows are held in a buffer of <code>success.log.buffer.size</code> rows which is flushed every
+ * <code>success.log.flush.interval</code> milliseconds or as soon as <code>success.log.batch.size</code> rows are
+ * buffered. A caller appending to a full buffer flushes it itself so that delivery slows down to the pace of the
+ * database. Rows which cannot be written are logged and dropped. Should the database itself be unavailable, the rows
+ * are kept and written again after a back-off which doubles from <code>success.log.flush.interval</code> up to
+ * <code>success.log.retry.max.delay</code> milliseconds. The buffer is flushed on shutdown. When
+ * <code>success.log.compress</code> is enabled, the DHIS2 request, DHIS2 response, and RapidPro payload are
+ * GZIP-compressed into the <code>_gz</code> binary columns instead of the <code>VARCHAR</code> ones. Buffer statistics
+ * are exposed under <code>/management/successlog</code> while <code>/management/successlog/{id}</code> returns a
+ * report row with its payloads decompressed. POSTing to <code>/management/successlog/{id}</code> replays the report
+ * through the dead letter channel, whether its payloads are compressed or not.
+ */
+@Component
+@Endpoint( id = "successlog" )
+public class SuccessLogWriter
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger( SuccessLogWriter.class );
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Value( "${report.success.log.batch.insert.${spring.sql.init.platform}}" )
+    private String reportInsertSql;
+
+    @Value( "${report.success.log.compressed.batch.insert.${spring.sql.init.platform}}" )
+    private String reportCompressedInsertSql;
+
+    @Value( "${report.success.log.select.${spring.sql.init.platform}}" )
+    private String reportSelectSql;
+
+    @Value( "${report.success.log.replay.${spring.sql.init.platform}}" )
+    private String reportReplaySql;
+
+    @Value( "${success.log.compress:false}" )
+    private boolean compress;
+
+    @Value( "${success.log.retry.max.delay:60000}" )
+    private long maxRetryDelayInMillis = 60000;
+
+    private final BlockingQueue<Row> buffer;
+
+    private final int batchSize;
+
+    private final long flushIntervalInMillis;
+
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private final AtomicLong written = new AtomicLong();
+
+    private final AtomicLong failedFlushes = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    // rows held back while the database is unavailable, written before the buffered ones
+    private volatile List<Row> retryRows = List.of();
+
+    private volatile long retryAtInMillis;
+
+    private long retryDelayInMillis;
+
+    private ScheduledExecutorService flushExecutorService;
+
+    private TransactionTemplate transactionTemplate;
+
+    protected record Row(String insertSql, Object[] args)
+    {
+    }
+
+    public SuccessLogWriter( @Value( "${success.log.buffer.size:10000}" ) int bufferSize,
+        @Value( "${success.log.batch.size:100}" ) int batchSize,
+        @Value( "${success.log.flush.interval:1000}" ) long flushIntervalInMillis )
+    {
+        this.buffer = new ArrayBlockingQueue<>( bufferSize );
+        this.batchSize = batchSize;
+        this.flushIntervalInMillis = flushIntervalInMillis;
+    }
+
+    @PostConstruct
+    public void start()
+    {
+        transactionTemplate = new TransactionTemplate(
+            new DataSourceTransactionManager( jdbcTemplate.getDataSource() ) );
+        flushExecutorService = Executors.newSingleThreadScheduledExecutor( runnable -> {
+            Thread thread = new Thread( runnable, "SuccessLogWriter" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        flushExecutorService.scheduleWithFixedDelay( this::flushQuietly, flushIntervalInMillis, flushIntervalInMillis,
+            TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Appends a <code>REPORT_SUCCESS_LOG</code> row from the headers of a delivered report.
+     */
+    public void appendReport( Exchange exchange )
+    {
+        Row row = newReportRow( exchange.getMessage() );
+        append( row.insertSql(), row.args() );
+    }
+
+    /**
+     * Inserts a <code>REPORT_SUCCESS_LOG</code> row from the headers of a delivered report without buffering it.
+     */
+    public void writeReport( Exchange exchange )
+    {
+        Row row = newReportRow( exchange.getMessage() );
+        jdbcTemplate.update( row.insertSql(), row.args() );
+    }
+
+    protected Row newReportRow( Message message )
+    {
+        String dhisRequest = message.getHeader( "dhisRequest", String.class );
+        String dhisResponse = message.getHeader( "dhisResponse", String.class );
+        String rapidProPayload = message.getHeader( "originalPayload", String.class );
+        Object[] args = new Object[] { dhisRequest, dhisResponse, rapidProPayload,
+            message.getHeader( "dataSetCode", String.class ), message.getHeader( "reportPeriodOffset", Integer.class ),
+            message.getHeader( "orgUnitId", String.class ), new Timestamp( System.currentTimeMillis() ) };
+        if ( compress )
+        {
+            args[0] = PayloadCompressor.compress( dhisRequest );
+            args[1] = PayloadCompressor.compress( dhisResponse );
+            args[2] = PayloadCompressor.compress( rapidProPayload );
+            return new Row( reportCompressedInsertSql, args );
+        }
+        else
+        {
+            return new Row( reportInsertSql, args );
+        }
+    }
+
+    /**
+     * Buffers a row to be inserted with the given statement. Rows inserted with the same statement are written in the
+     * same JDBC batch.
+     */
+    public void append( String insertSql, Object... args )
+    {
+        Row row = new Row( insertSql, args );
+        while ( !buffer.offer( row ) )
+        {
+            if ( !awaitRetry() )
+            {
+                dropped.incrementAndGet();
+                LOGGER.error( "Dropped success log row on interrupt while waiting for the database: {}",
+                    describe( args ) );
+                return;
+            }
+            flush();
+        }
+        if ( buffer.size() >= batchSize && flushRequested.compareAndSet( false, true ) )
+        {
+            try
+            {
+                flushExecutorService.execute( () -> {
+                    flushRequested.set( false );
+                    flushQuietly();
+                } );
+            }
+            catch ( RejectedExecutionException e )
+            {
+                // the writer is stopped so the rows are written on the caller thread
+                flushRequested.set( false );
+                flushQuietly();
+            }
+        }
+    }
+
+    /**
+     * Writes the buffered rows to the database in JDBC batches grouped by statement. Should a batch fail, its rows are
+     * written one by one so that only the rows failing on their own are dropped, and logged, while no row is ever
+     * written twice. Should the database be unavailable, the rows not yet written are kept and nothing is written
+     * until the back-off has elapsed. A failure to write the success log never propagates to the caller.
+     */
+    public synchronized void flush()
+    {
+        if ( System.currentTimeMillis() < retryAtInMillis )
+        {
+            return;
+        }
+        List<Row> batch = new ArrayList<>( retryRows );
+        retryRows = List.of();
+        while ( !batch.isEmpty() || buffer.drainTo( batch, batchSize ) > 0 )
+        {
+            Map<String, List<Row>> statementBatches = new LinkedHashMap<>();
+            for ( Row row : batch )
+            {
+                statementBatches.computeIfAbsent( row.insertSql(), k -> new ArrayList<>() ).add( row );
+            }
+            List<Row> unwrittenRows = new ArrayList<>();
+            for ( List<Row> statementBatch : statementBatches.values() )
+            {
+                if ( unwrittenRows.isEmpty() )
+                {
+                    unwrittenRows.addAll( write( statementBatch ) );
+                }
+                else
+                {
+                    unwrittenRows.addAll( statementBatch );
+                }
+            }
+            if ( !unwrittenRows.isEmpty() )
+            {
+                retryRows = List.copyOf( unwrittenRows );
+                retryDelayInMillis = Math.min( retryDelayInMillis == 0 ? flushIntervalInMillis : retryDelayInMillis * 2,
+                    maxRetryDelayInMillis );
+                retryAtInMillis = System.currentTimeMillis() + retryDelayInMillis;
+                LOGGER.warn( "Database unavailable while writing success log. Retrying {} rows in {} ms",
+                    unwrittenRows.size(), retryDelayInMillis );
+                return;
+            }
+            retryDelayInMillis = 0;
+            batch.clear();
+        }
+    }
+
+    /**
+     * @return the rows which are not written because the database is unavailable
+     */
+    private List<Row> write( List<Row> statementBatch )
+    {
+        String insertSql = statementBatch.get( 0 ).insertSql();
+        try
+        {
+            // the batch is written in a transaction so that none of its rows are written when one of them fails
+            transactionTemplate.executeWithoutResult( status -> jdbcTemplate.batchUpdate( insertSql,
+                statementBatch.stream().map( Row::args ).toList() ) );
+            written.addAndGet( statementBatch.size() );
+            return List.of();
+        }
+        catch ( Exception e )
+        {
+            failedFlushes.incrementAndGet();
+            if ( isDatabaseUnavailable( e ) )
+            {
+                LOGGER.warn( String.format( "Error while writing a batch of %s success log rows",
+                    statementBatch.size() ), e );
+                return statementBatch;
+            }
+            LOGGER.warn( String.format( "Error while writing a batch of %s success log rows. Writing rows one by one",
+                statementBatch.size() ), e );
+        }
+        for ( int i = 0; i < statementBatch.size(); i++ )
+        {
+            Object[] args = statementBatch.get( i ).args();
+            try
+            {
+                jdbcTemplate.update( insertSql, args );
+                written.incrementAndGet();
+            }
+            catch ( Exception e )
+            {
+                if ( isDatabaseUnavailable( e ) )
+                {
+                    LOGGER.warn( "Error while writing success log row", e );
+                    return statementBatch.subList( i, statementBatch.size() );
+                }
+                dropped.incrementAndGet();
+                LOGGER.error( String.format( "Dropped success log row which could not be written: %s",
+                    describe( args ) ), e );
+            }
+        }
+        return List.of();
+    }
+
+    /**
+     * Tells apart failures of the database, such as a lost connection, from failures of the rows themselves.
+     */
+    protected boolean isDatabaseUnavailable( Exception e )
+    {
+        return e instanceof TransientDataAccessException || e instanceof DataAccessResourceFailureException
+            || e instanceof RecoverableDataAccessException || e instanceof CannotCreateTransactionException;
+    }
+
+    /**
+     * Waits for the back-off to elapse when the database is unavailable.
+     *
+     * @return <code>false</code> if interrupted while waiting
+     */
+    private boolean awaitRetry()
+    {
+        long retryDelay = retryAtInMillis - System.currentTimeMillis();
+        if ( retryDelay > 0 )
+        {
+            try
+            {
+                Thread.sleep( retryDelay );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Describes a row for logging with its compressed payloads decompressed.
+     */
+    private static String describe( Object[] args )
+    {
+        StringJoiner description = new StringJoiner( ", ", "[", "]" );
+        for ( Object arg : args )
+        {
+            if ( arg instanceof byte[] bytes )
+            {
+                try
+                {
+                    description.add( PayloadCompressor.decompress( bytes ) );
+                }
+                catch ( UncheckedIOException e )
+                {
+                    description.add( String.format( "<%s bytes>", bytes.length ) );
+                }
+            }
+            else
+            {
+                description.add( String.valueOf( arg ) );
+            }
+        }
+        return description.toString();
+    }
+
+    protected void flushQuietly()
+    {
+        try
+        {
+            flush();
+        }
+        catch ( Exception e )
+        {
+            LOGGER.error( "Error while writing success log", e );
+        }
+    }
+
+    @PreDestroy
+    public void stop()
+        throws
+        InterruptedException
+    {
+        if ( flushExecutorService != null )
+        {
+            flushExecutorService.shutdown();
+            flushExecutorService.awaitTermination( 30, TimeUnit.SECONDS );
+        }
+        // a last attempt is made regardless of the back-off
+        retryAtInMillis = 0;
+        flushQuietly();
+        if ( !retryRows.isEmpty() )
+        {
+            LOGGER.error( "Lost {} success log rows which could not be written on shutdown", retryRows.size() );
+        }
+    }
+
+    /**
+     * @return the <code>REPORT_SUCCESS_LOG</code> row with its payloads decompressed, or <code>null</code> if there is
+     * no such row
+     */
+    @ReadOperation
+    public Map<String, Object> report( @Selector long id )
+    {
+        List<Map<String, Object>> rows = jdbcTemplate.queryForList( reportSelectSql, id );
+        return rows.isEmpty() ? null : decompress( rows.get( 0 ) );
+    }
+
+    /**
+     * Queues the report of a <code>REPORT_SUCCESS_LOG</code> row for redelivery by inserting its decompressed RapidPro
+     * payload into <code>REPORT_DEAD_LETTER_CHANNEL</code> with the <code>RETRY</code> status.
+     *
+     * @param rapidProPayload payload to redeliver in place of the row's own RapidPro payload, if any
+     * @return the queued dead letter channel values, or <code>null</code> if there is no such row
+     */
+    @WriteOperation
+    public Map<String, Object> replay( @Selector long id, @Nullable String rapidProPayload )
+    {
+        Map<String, Object> row = report( id );
+        if ( row == null )
+        {
+            return null;
+        }
+        Map<String, Object> deadLetter = new LinkedHashMap<>();
+        deadLetter.put( "payload", rapidProPayload == null ? row.get( "rapidpro_payload" ) : rapidProPayload );
+        deadLetter.put( "data_set_code", row.get( "data_set_code" ) );
+        deadLetter.put( "report_period_offset", row.get( "report_period_offset" ) );
+        deadLetter.put( "organisation_unit_id", row.get( "organisation_unit_id" ) );
+        jdbcTemplate.update( reportReplaySql, deadLetter.values().toArray() );
+        return deadLetter;
+    }
+
+    /**
+     * Replaces the <code>_gz</code> columns of a success log row with the decompressed payloads.
+     */
+    public static Map<String, Object> decompress( Map<String, Object> row )
+    {
+        Map<String, Object> decompressedRow = new LinkedHashMap<>();
+        for ( Map.Entry<String, Object> column : row.entrySet() )
+        {
+            String columnName = column.getKey().toLowerCase();
+            if ( columnName.endsWith( "_gz" ) )
+            {
+                if ( column.getValue() != null )
+                {
+                    decompressedRow.put( columnName.substring( 0, columnName.length() - 3 ),
+                        PayloadCompressor.decompress( (byte[]) column.getValue() ) );
+                }
+            }
+            else if ( column.getValue() != null || !decompressedRow.containsKey( columnName ) )
+            {
+                decompressedRow.put( columnName, column.getValue() );
+            }
+        }
+        return decompressedRow;
+    }
+
+    @ReadOperation
+    public Map<String, Object> statistics()
+    {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put( "buffered", buffer.size() + retryRows.size() );
+        statistics.put( "bufferCapacity", buffer.size() + buffer.remainingCapacity() );
+        statistics.put( "written", written.get() );
+        statistics.put( "failedFlushes", failedFlushes.get() );
+        statistics.put( "dropped", dropped.get() );
+        return statistics;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import jakarta.annotation.PreDestroy;
+import org.hisp.dhis.integration.rapidpro.expression.LastRunAtColumnReader;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the scan position, or watermark, of each RapidPro flow in memory. Watermarks are loaded from the
+ * <code>POLLER</code> table on first use and changed watermarks are written back in a single batch by {@link #flush()}.
+ * A watermark is only advanced once the runs before it are queued so a crash before a flush leads to runs being
+ * fetched again rather than being missed.
+ */
+@Component
+public class WatermarkRegistry
+{
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private LastRunAtColumnReader lastRunAtColumnReader;
+
+    @Value( "${watermark.select.all.${spring.sql.init.platform}}" )
+    private String selectAllSql;
+
+    @Value( "${watermark.upsert.${spring.sql.init.platform}}" )
+    private String upsertSql;
+
+    private final Map<String, Instant> watermarks = new ConcurrentHashMap<>();
+
+    private final Map<String, Instant> dirtyWatermarks = new ConcurrentHashMap<>();
+
+    private volatile boolean loaded;
+
+    /**
+     * @return the flow's watermark formatted for RapidPro's <code>after</code> query parameter or <code>null</code> if
+     * the flow was never scanned
+     */
+    public String getLastRunAt( String flowUuid )
+    {
+        load();
+        Instant lastRunAt = watermarks.get( flowUuid );
+        return lastRunAt == null ? null : lastRunAtColumnReader.format( lastRunAt );
+    }
+
+    public void update( String flowUuid, Timestamp lastRunAt )
+    {
+        load();
+        watermarks.put( flowUuid, lastRunAt.toInstant() );
+        dirtyWatermarks.put( flowUuid, lastRunAt.toInstant() );
+    }
+
+    /**
+     * Writes the watermarks that changed since the last flush to the database.
+     */
+    @PreDestroy
+    public synchronized void flush()
+    {
+        if ( dirtyWatermarks.isEmpty() )
+        {
+            return;
+        }
+
+        List<Map.Entry<String, Instant>> flushedWatermarks = new ArrayList<>( dirtyWatermarks.entrySet() );
+        List<Object[]> batchArgs = new ArrayList<>();
+        for ( Map.Entry<String, Instant> flushedWatermark : flushedWatermarks )
+        {
+            batchArgs.add( new Object[] { flushedWatermark.getKey(), Timestamp.from( flushedWatermark.getValue() ) } );
+        }
+        jdbcTemplate.batchUpdate( upsertSql, batchArgs );
+
+        for ( Map.Entry<String, Instant> flushedWatermark : flushedWatermarks )
+        {
+            // a watermark updated while flushing stays dirty
+            dirtyWatermarks.remove( flushedWatermark.getKey(), flushedWatermark.getValue() );
+        }
+    }
+
+    protected void load()
+    {
+        if ( !loaded )
+        {
+            synchronized ( this )
+            {
+                if ( !loaded )
+                {
+                    for ( Map<String, Object> row : jdbcTemplate.queryForList( selectAllSql ) )
+                    {
+                        watermarks.putIfAbsent( (String) row.get( "flow_uuid" ),
+                            TimestampColumns.toInstant( row.get( "last_run_at" ) ) );
+                    }
+                    loaded = true;
+                }
+            }
+        }
+    }
+}
@@ -29,12 +29,10 @@ package org.hisp.dhis.integration.rapidpro.expression;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.Expression;
-import org.hisp.dhis.integration.rapidpro.Dhis2RapidProException;
+import org.hisp.dhis.integration.rapidpro.TimestampColumns;
 import org.springframework.stereotype.Component;
 
-import java.sql.Timestamp;
 import java.time.Instant;
-import java.time.OffsetDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
@@ -49,29 +47,18 @@ public class LastRunAtColumnReader implements Expression
         List<Map<String, Object>> rows = exchange.getMessage().getBody( List.class );
         if ( !rows.isEmpty() )
         {
-            Instant lastRunAtAsInstant;
             Map<String, Object> row = rows.get( 0 );
-            Object lastRunAt = row.get( "last_run_at" );
-            if ( lastRunAt instanceof OffsetDateTime )
-            {
-                lastRunAtAsInstant = ((OffsetDateTime) lastRunAt).toInstant();
-            }
-            else if ( lastRunAt instanceof Timestamp )
-            {
-                lastRunAtAsInstant = ((Timestamp) lastRunAt).toInstant();
-            }
-            else
-            {
-                throw new Dhis2RapidProException(
-                    String.format( "Can't infer the Java type to use for an instance of %s",
-                        lastRunAt.getClass().getCanonicalName() ) );
-            }
-            DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern( "yyyy-MM-dd'T'HH:mm:ss.SSS" );
-            return (T) dateTimeFormatter.withZone( ZoneId.of( "UTC" ) ).format( lastRunAtAsInstant );
+            return (T) format( TimestampColumns.toInstant( row.get( "last_run_at" ) ) );
         }
         else
         {
             return null;
         }
     }
+
+    public String format( Instant lastRunAt )
+    {
+        DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern( "yyyy-MM-dd'T'HH:mm:ss.SSS" );
+        return dateTimeFormatter.withZone( ZoneId.of( "UTC" ) ).format( lastRunAt );
+    }
 }
@@ -29,32 +29,38 @@ package org.hisp.dhis.integration.rapidpro.expression;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.Expression;
+import org.hisp.dhis.integration.rapidpro.FlowRun;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.sql.Timestamp;
-import java.time.Instant;
-import java.util.List;
-import java.util.Map;
 
 @Component
 public class LastRunCalculator implements Expression
 {
+    // open runs are tracked and re-checked separately so they do not need to hold back the watermark
+    @Value( "${scan.reports.recheck.open.runs:false}" )
+    private boolean recheckOpenRuns;
+
     @Override
     public <T> T evaluate( Exchange exchange, Class<T> type )
     {
         Timestamp newLastRunAt = (Timestamp) exchange.getMessage().getHeader( "newLastRunAt" );
-        Map<String, Object> body = exchange.getMessage().getBody( Map.class );
-        String exitedOn = (String) body.get( "exited_on" );
-        if ( exitedOn == null )
+        FlowRun flowRun = exchange.getMessage().getBody( FlowRun.class );
+
+        return (T) calculate( newLastRunAt, flowRun );
+    }
+
+    public Timestamp calculate( Timestamp newLastRunAt, FlowRun flowRun )
+    {
+        if ( flowRun.exitedOn() == null && !recheckOpenRuns )
         {
-            String modifiedOn = (String) body.get( "modified_on" );
-            Instant modifiedOnAsInstant = Instant.parse( modifiedOn );
-            if ( modifiedOnAsInstant.isBefore( newLastRunAt.toInstant() ) )
+            if ( flowRun.modifiedOn().isBefore( newLastRunAt.toInstant() ) )
             {
-                newLastRunAt = Timestamp.from( modifiedOnAsInstant );
+                newLastRunAt = Timestamp.from( flowRun.modifiedOn() );
             }
         }
 
-        return (T) newLastRunAt;
+        return newLastRunAt;
     }
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.expression;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.camel.Exchange;
+import org.apache.camel.Expression;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Evaluates to the JMS message group of a queued report. Reports sharing a group are delivered one after the other by
+ * the same consumer while reports of different groups are delivered in parallel. The group is made up of the data set
+ * code, the report period offset, and the organisation unit ID or, when the report does not carry one, the UUID of the
+ * contact the organisation unit ID will be looked up from. The reporting period is only computed at delivery time so
+ * the report period offset stands in for it.
+ */
+@Component
+public class ReportGroupIdExpr implements Expression
+{
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Override
+    public <T> T evaluate( Exchange exchange, Class<T> type )
+    {
+        String orgUnitId = exchange.getMessage().getHeader( "orgUnitId", String.class );
+        if ( orgUnitId == null )
+        {
+            orgUnitId = "contact:" + readContactUuid( exchange.getMessage().getBody( String.class ) );
+        }
+        String reportPeriodOffset = exchange.getMessage().getHeader( "reportPeriodOffset", "-1", String.class );
+
+        return exchange.getContext().getTypeConverter().convertTo( type,
+            exchange.getMessage().getHeader( "dataSetCode", String.class ) + "/" + orgUnitId + "/"
+                + reportPeriodOffset );
+    }
+
+    protected String readContactUuid( String payload )
+    {
+        if ( payload == null )
+        {
+            return null;
+        }
+        try
+        {
+            return objectMapper.readTree( payload ).path( "contact" ).path( "uuid" ).asText( null );
+        }
+        catch ( JsonProcessingException e )
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.management;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of how long each RapidPro flow takes to scan. The statistics are exposed under
+ * <code>/management/flowscans</code>.
+ */
+@Component
+@Endpoint( id = "flowscans" )
+public class FlowScanStatistics
+{
+    private final Map<String, FlowScan> flowScans = new ConcurrentHashMap<>();
+
+    /**
+     * Marks the flow as being scanned.
+     *
+     * @return <code>false</code> if a previous scan of the flow is still in progress
+     */
+    public boolean start( String flowUuid )
+    {
+        return flowScans.computeIfAbsent( flowUuid, k -> new FlowScan() ).start();
+    }
+
+    public void finish( String flowUuid, long durationInMillis, Throwable error )
+    {
+        flowScans.computeIfAbsent( flowUuid, k -> new FlowScan() ).finish( durationInMillis, error );
+    }
+
+    public void timeOut( String flowUuid )
+    {
+        flowScans.computeIfAbsent( flowUuid, k -> new FlowScan() ).timeOut();
+    }
+
+    public void skip( String flowUuid )
+    {
+        flowScans.computeIfAbsent( flowUuid, k -> new FlowScan() ).skip();
+    }
+
+    @ReadOperation
+    public Map<String, Map<String, Object>> flowScans()
+    {
+        Map<String, Map<String, Object>> flowScansAsMap = new TreeMap<>();
+        for ( Map.Entry<String, FlowScan> flowScan : flowScans.entrySet() )
+        {
+            flowScansAsMap.put( flowScan.getKey(), flowScan.getValue().toMap() );
+        }
+        return flowScansAsMap;
+    }
+
+    @ReadOperation
+    public Map<String, Object> flowScan( @Selector String flowUuid )
+    {
+        FlowScan flowScan = flowScans.get( flowUuid );
+        return flowScan == null ? null : flowScan.toMap();
+    }
+
+    public void clear()
+    {
+        flowScans.clear();
+    }
+
+    private static class FlowScan
+    {
+        private boolean inProgress;
+
+        private long scanCount;
+
+        private long errorCount;
+
+        private long timeoutCount;
+
+        private long skipCount;
+
+        private long lastDurationInMillis;
+
+        private long maxDurationInMillis;
+
+        private long totalDurationInMillis;
+
+        private Instant lastStartedAt;
+
+        private String lastError;
+
+        synchronized boolean start()
+        {
+            if ( inProgress )
+            {
+                return false;
+            }
+            inProgress = true;
+            lastStartedAt = Instant.now();
+            return true;
+        }
+
+        synchronized void finish( long durationInMillis, Throwable error )
+        {
+            inProgress = false;
+            scanCount++;
+            lastDurationInMillis = durationInMillis;
+            maxDurationInMillis = Math.max( maxDurationInMillis, durationInMillis );
+            totalDurationInMillis += durationInMillis;
+            if ( error != null )
+            {
+                errorCount++;
+                lastError = error.getMessage();
+            }
+            else
+            {
+                lastError = null;
+            }
+        }
+
+        synchronized void timeOut()
+        {
+            timeoutCount++;
+        }
+
+        synchronized void skip()
+        {
+            skipCount++;
+        }
+
+        synchronized Map<String, Object> toMap()
+        {
+            Map<String, Object> flowScanAsMap = new LinkedHashMap<>();
+            flowScanAsMap.put( "inProgress", inProgress );
+            flowScanAsMap.put( "scanCount", scanCount );
+            flowScanAsMap.put( "errorCount", errorCount );
+            flowScanAsMap.put( "timeoutCount", timeoutCount );
+            flowScanAsMap.put( "skipCount", skipCount );
+            flowScanAsMap.put( "lastStartedAt", lastStartedAt == null ? null : lastStartedAt.toString() );
+            flowScanAsMap.put( "lastDurationInMillis", lastDurationInMillis );
+            flowScanAsMap.put( "maxDurationInMillis", maxDurationInMillis );
+            flowScanAsMap.put( "averageDurationInMillis", scanCount == 0 ? 0 : totalDurationInMillis / scanCount );
+            flowScanAsMap.put( "lastError", lastError );
+            return flowScanAsMap;
+        }
+    }
+}
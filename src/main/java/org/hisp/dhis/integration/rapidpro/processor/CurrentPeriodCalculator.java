@@ -27,59 +27,146 @@
  */
 package org.hisp.dhis.integration.rapidpro.processor;
 
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.temporal.TemporalAdjusters;
 import java.util.Date;
-import java.util.List;
+import java.util.Map;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
-import org.hisp.dhis.api.model.v40_0.DataSet;
+import org.apache.camel.support.LRUCacheFactory;
+import org.hisp.dhis.integration.rapidpro.DataSetCache;
+import org.hisp.dhis.integration.rapidpro.Dhis2RapidProException;
 import org.hisp.dhis.integration.sdk.support.period.PeriodBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 @Component
 public class CurrentPeriodCalculator implements Processor
 {
+    private record Period(LocalDate nextPeriodStart, String value)
+    {
+    }
+
+    @Autowired
+    private DataSetCache dataSetCache;
+
+    // a computed period holds until the first day of the period type's next period
+    private final Map<String, Period> periods = LRUCacheFactory.newLRUCache( 1000 );
+
     @Override
     public void process( Exchange exchange )
         throws Exception
     {
-        List<DataSet> dataSets = exchange.getMessage().getBody( List.class );
-        String periodType = dataSets.get( 0 ).getPeriodType().get().value();
+        String dataSetCode = exchange.getMessage().getHeader( "dataSetCode", String.class );
+        DataSetCache.DataSetDescriptor dataSet = dataSetCache.get( dataSetCode );
+        if ( dataSet == null )
+        {
+            throw new Dhis2RapidProException( String.format( "Unknown DHIS2 data set code '%s'", dataSetCode ) );
+        }
         int reportPeriodOffset = exchange.getMessage().getHeader( "reportPeriodOffset", Integer.class );
+
+        exchange.getMessage().setBody( getPeriod( dataSet.periodType(), reportPeriodOffset ) );
+    }
+
+    public String getPeriod( String periodType, int reportPeriodOffset )
+    {
+        LocalDate today = today();
+        String key = periodType + ":" + reportPeriodOffset;
+        Period period = periods.get( key );
+        if ( period == null || !today.isBefore( period.nextPeriodStart() ) )
+        {
+            period = new Period( nextPeriodStart( periodType, today ),
+                computePeriod( periodType, reportPeriodOffset, today ) );
+            periods.put( key, period );
+        }
+        return period.value();
+    }
+
+    protected LocalDate today()
+    {
+        return LocalDate.now();
+    }
+
+    /**
+     * @return the first day of the period following the period of the given type that <code>today</code> falls in
+     */
+    protected LocalDate nextPeriodStart( String periodType, LocalDate today )
+    {
+        if ( periodType.equalsIgnoreCase( "Daily" ) )
+        {
+            return today.plusDays( 1 );
+        }
+        else if ( periodType.equalsIgnoreCase( "Weekly" ) )
+        {
+            return today.with( TemporalAdjusters.next( DayOfWeek.MONDAY ) );
+        }
+        else if ( periodType.equalsIgnoreCase( "Monthly" ) )
+        {
+            return today.withDayOfMonth( 1 ).plusMonths( 1 );
+        }
+        else if ( periodType.equalsIgnoreCase( "BiMonthly" ) )
+        {
+            return today.withDayOfMonth( 1 ).minusMonths( (today.getMonthValue() - 1) % 2 ).plusMonths( 2 );
+        }
+        else if ( periodType.equalsIgnoreCase( "SixMonthly" ) )
+        {
+            return today.withDayOfMonth( 1 ).minusMonths( (today.getMonthValue() - 1) % 6 ).plusMonths( 6 );
+        }
+        else if ( periodType.equalsIgnoreCase( "Yearly" ) )
+        {
+            return today.withDayOfYear( 1 ).plusYears( 1 );
+        }
+        else if ( periodType.equalsIgnoreCase( "FinancialYearNov" ) )
+        {
+            LocalDate novemberFirst = today.withMonth( 11 ).withDayOfMonth( 1 );
+            return today.isBefore( novemberFirst ) ? novemberFirst : novemberFirst.plusYears( 1 );
+        }
+        else
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    protected String computePeriod( String periodType, int reportPeriodOffset, LocalDate today )
+    {
+        Date date = Date.from( today.atStartOfDay( ZoneId.systemDefault() ).toInstant() );
         String period;
         if ( periodType.equalsIgnoreCase( "Daily" ) )
         {
-            period = PeriodBuilder.dayOf( new Date(), reportPeriodOffset );
+            period = PeriodBuilder.dayOf( date, reportPeriodOffset );
         }
         else if ( periodType.equalsIgnoreCase( "Weekly" ) )
         {
-            period = PeriodBuilder.weekOf( new Date(), reportPeriodOffset );
+            period = PeriodBuilder.weekOf( date, reportPeriodOffset );
         }
         else if ( periodType.equalsIgnoreCase( "Monthly" ) )
         {
-            period = PeriodBuilder.monthOf( new Date(), reportPeriodOffset );
+            period = PeriodBuilder.monthOf( date, reportPeriodOffset );
         }
         else if ( periodType.equalsIgnoreCase( "BiMonthly" ) )
         {
-            period = PeriodBuilder.biMonthOf( new Date(), reportPeriodOffset );
+            period = PeriodBuilder.biMonthOf( date, reportPeriodOffset );
         }
         else if ( periodType.equalsIgnoreCase( "SixMonthly" ) )
         {
-            period = PeriodBuilder.sixMonthOf( new Date(), reportPeriodOffset );
+            period = PeriodBuilder.sixMonthOf( date, reportPeriodOffset );
         }
         else if ( periodType.equalsIgnoreCase( "Yearly" ) )
         {
-            period = PeriodBuilder.yearOf( new Date(), reportPeriodOffset );
+            period = PeriodBuilder.yearOf( date, reportPeriodOffset );
         }
         else if ( periodType.equalsIgnoreCase( "FinancialYearNov" ) )
         {
-            period = PeriodBuilder.financialYearStartingNovOf( new Date(), reportPeriodOffset );
+            period = PeriodBuilder.financialYearStartingNovOf( date, reportPeriodOffset );
         }
         else
         {
             throw new UnsupportedOperationException();
         }
 
-        exchange.getMessage().setBody( period );
+        return period;
     }
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.hisp.dhis.integration.rapidpro.Dhis2RapidProException;
+import org.hisp.dhis.integration.rapidpro.FlowRun;
+import org.hisp.dhis.integration.rapidpro.FlowRunReader;
+import org.hisp.dhis.integration.rapidpro.expression.LastRunCalculator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.InputStream;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Fetches the page of RapidPro flow runs at the URL held in the <code>nextPageUrl</code> exchange property. The body is
+ * set to the page's runs while <code>nextPageUrl</code> is set to the page's <code>next</code> cursor which is null
+ * once the last page is read.
+ */
+@Component
+public class FlowRunPageReader implements Processor
+{
+    @Autowired
+    private FlowRunReader flowRunReader;
+
+    @Autowired
+    private LastRunCalculator lastRunCalculator;
+
+    @Value( "${rapidpro.api.url:#{null}}" )
+    private String rapidProApiUrl;
+
+    @Value( "${rapidpro.api.token:#{null}}" )
+    private String rapidProApiToken;
+
+    @Value( "${scan.reports.max.pages:0}" )
+    private int maxPages;
+
+    @Autowired
+    private OkHttpClient rapidProHttpClient;
+
+    @Override
+    public void process( Exchange exchange )
+        throws
+        Exception
+    {
+        Request request = new Request.Builder().url( exchange.getProperty( "nextPageUrl", String.class ) )
+            .addHeader( "Authorization", "Token " + rapidProApiToken ).get().build();
+
+        FlowRunReader.Page page;
+        try ( Response response = rapidProHttpClient.newCall( request ).execute() )
+        {
+            if ( !response.isSuccessful() )
+            {
+                throw new Dhis2RapidProException(
+                    String.format( "Unexpected HTTP response code while fetching flow runs from RapidPro: %s. Response body: %s",
+                        response.code(), response.body() != null ? response.body().string() : "" ) );
+            }
+            try ( InputStream inputStream = response.body().byteStream() )
+            {
+                page = flowRunReader.readPage( inputStream );
+            }
+        }
+
+        List<FlowRun> flowRuns = page.results();
+        Timestamp newLastRunAt = exchange.getMessage().getHeader( "newLastRunAt", Timestamp.class );
+        if ( newLastRunAt != null )
+        {
+            Instant lastModifiedOn = null;
+            for ( FlowRun flowRun : flowRuns )
+            {
+                newLastRunAt = lastRunCalculator.calculate( newLastRunAt, flowRun );
+                Instant modifiedOn = flowRun.modifiedOn();
+                if ( lastModifiedOn == null || modifiedOn.isAfter( lastModifiedOn ) )
+                {
+                    lastModifiedOn = modifiedOn;
+                }
+            }
+
+            // runs are returned oldest first so no run on the following pages was modified before this checkpoint
+            if ( lastModifiedOn != null )
+            {
+                exchange.getMessage().setHeader( "checkpointAt",
+                    lastModifiedOn.isBefore( newLastRunAt.toInstant() ) ? Timestamp.from( lastModifiedOn ) : newLastRunAt );
+            }
+            else
+            {
+                exchange.getMessage().removeHeader( "checkpointAt" );
+            }
+            exchange.getMessage().setHeader( "newLastRunAt", newLastRunAt );
+        }
+        exchange.setProperty( "nextPageUrl", page.next() );
+        exchange.setProperty( "pageCount", exchange.getProperty( "pageCount", 0, Integer.class ) + 1 );
+        exchange.getMessage().setBody( flowRuns );
+    }
+
+    /**
+     * @return <code>true</code> if there is another page to read and the page limit has not been reached
+     */
+    public boolean hasNextPage( Exchange exchange )
+    {
+        return exchange.getProperty( "nextPageUrl" ) != null && (maxPages <= 0
+            || exchange.getProperty( "pageCount", 0, Integer.class ) < maxPages);
+    }
+
+    public String runUrl( Exchange exchange )
+    {
+        return HttpUrl.parse( rapidProApiUrl + "/runs.json" ).newBuilder()
+            .addQueryParameter( "uuid", exchange.getMessage().getHeader( "runUuid", String.class ) ).build()
+            .toString();
+    }
+
+    public String firstPageUrl( Exchange exchange )
+    {
+        HttpUrl.Builder httpUrlBuilder = HttpUrl.parse( rapidProApiUrl + "/runs.json" ).newBuilder()
+            .addQueryParameter( "flow", exchange.getMessage().getHeader( "flow", String.class ) )
+            .addQueryParameter( "reverse", "true" );
+        String after = exchange.getMessage().getHeader( "after", String.class );
+        if ( after != null )
+        {
+            httpUrlBuilder.addQueryParameter( "after", after );
+        }
+        return httpUrlBuilder.build().toString();
+    }
+}
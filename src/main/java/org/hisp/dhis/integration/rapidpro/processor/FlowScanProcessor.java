@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.hisp.dhis.integration.rapidpro.AdaptiveFlowScanScheduler;
+import org.hisp.dhis.integration.rapidpro.Dhis2RapidProException;
+import org.hisp.dhis.integration.rapidpro.management.FlowScanStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scans each flow listed in the <code>flowUuids</code> exchange property by calling <code>direct:pullFlow</code>. Flows
+ * are scanned one after the other unless <code>scan.reports.parallel</code> is enabled in which case they are scanned
+ * on a bounded worker pool. A failing flow is logged and does not stop the other flows from being scanned. Once all
+ * the flows are scanned, a {@link Dhis2RapidProException} is thrown should any flow have failed or timed out, with
+ * the error of each such flow attached as a suppressed exception.
+ */
+@Component
+public class FlowScanProcessor implements Processor
+{
+    protected static final Logger LOGGER = LoggerFactory.getLogger( FlowScanProcessor.class );
+
+    @Autowired
+    private CamelContext camelContext;
+
+    @Autowired
+    private ProducerTemplate producerTemplate;
+
+    @Autowired
+    private FlowScanStatistics flowScanStatistics;
+
+    @Autowired
+    private AdaptiveFlowScanScheduler adaptiveFlowScanScheduler;
+
+    @Value( "${scan.reports.parallel:false}" )
+    private boolean parallel;
+
+    @Value( "${scan.reports.max.concurrency:4}" )
+    private int maxConcurrency;
+
+    @Value( "${scan.reports.flow.timeout:0}" )
+    private long flowTimeout;
+
+    private ExecutorService executorService;
+
+    @Override
+    public void process( Exchange exchange )
+        throws
+        Exception
+    {
+        List<String> flowUuids = parseFlowUuids( exchange.getProperty( "flowUuids", String.class ) );
+        Map<String, Throwable> flowErrors;
+        if ( parallel && flowUuids.size() > 1 )
+        {
+            flowErrors = scanInParallel( flowUuids );
+        }
+        else
+        {
+            flowErrors = new LinkedHashMap<>();
+            for ( String flowUuid : flowUuids )
+            {
+                Throwable error = scan( flowUuid, new CompletableFuture<>() );
+                if ( error != null )
+                {
+                    flowErrors.put( flowUuid, error );
+                }
+            }
+        }
+
+        if ( !flowErrors.isEmpty() )
+        {
+            Dhis2RapidProException exception = new Dhis2RapidProException(
+                String.format( "Failed to scan %s of %s RapidPro flows: %s", flowErrors.size(), flowUuids.size(),
+                    String.join( ", ", flowErrors.keySet() ) ) );
+            flowErrors.values().forEach( exception::addSuppressed );
+            throw exception;
+        }
+    }
+
+    /**
+     * @return the error of each flow that failed or timed out
+     */
+    protected Map<String, Throwable> scanInParallel( List<String> flowUuids )
+        throws
+        InterruptedException
+    {
+        long scanStartedAt = System.currentTimeMillis();
+        Map<String, CompletableFuture<Long>> startTimes = new LinkedHashMap<>();
+        Map<String, Future<Throwable>> flowScans = new LinkedHashMap<>();
+        Map<String, Throwable> flowErrors = new LinkedHashMap<>();
+        for ( String flowUuid : flowUuids )
+        {
+            CompletableFuture<Long> startTime = new CompletableFuture<>();
+            startTimes.put( flowUuid, startTime );
+            flowScans.put( flowUuid, getExecutorService().submit( () -> scan( flowUuid, startTime ) ) );
+        }
+
+        // time needed to scan all flows should every round of scans on the worker pool time out
+        long deadline =
+            scanStartedAt + flowTimeout * ((flowUuids.size() + maxConcurrency - 1) / maxConcurrency);
+        for ( Map.Entry<String, Future<Throwable>> flowScan : flowScans.entrySet() )
+        {
+            String flowUuid = flowScan.getKey();
+            try
+            {
+                Throwable error;
+                if ( flowTimeout > 0 )
+                {
+                    long startedAt;
+                    try
+                    {
+                        startedAt = startTimes.get( flowUuid )
+                            .get( Math.max( 0, deadline - System.currentTimeMillis() ), TimeUnit.MILLISECONDS );
+                    }
+                    catch ( TimeoutException e )
+                    {
+                        if ( startTimes.get( flowUuid ).cancel( false ) )
+                        {
+                            flowScan.getValue().cancel( false );
+                            flowScanStatistics.skip( flowUuid );
+                            adaptiveFlowScanScheduler.cancelled( flowUuid );
+                            LOGGER.warn(
+                                "Skipping flow {} because no worker became free to scan it within {} ms. The flow will be scanned on the next poll",
+                                flowUuid, deadline - scanStartedAt );
+                            continue;
+                        }
+                        // the scan started right as the deadline passed
+                        startedAt = startTimes.get( flowUuid ).get();
+                    }
+                    long remaining = Math.max( 0, startedAt + flowTimeout - System.currentTimeMillis() );
+                    error = flowScan.getValue().get( remaining, TimeUnit.MILLISECONDS );
+                }
+                else
+                {
+                    error = flowScan.getValue().get();
+                }
+                if ( error != null )
+                {
+                    flowErrors.put( flowUuid, error );
+                }
+            }
+            catch ( TimeoutException e )
+            {
+                flowScanStatistics.timeOut( flowUuid );
+                LOGGER.warn(
+                    "Timed out after {} ms waiting for flow {} to be scanned. The scan continues in the background and the flow will be skipped until it completes",
+                    flowTimeout, flowUuid );
+                flowErrors.put( flowUuid, new TimeoutException(
+                    String.format( "Timed out after %s ms waiting for flow %s to be scanned", flowTimeout, flowUuid ) ) );
+            }
+            catch ( ExecutionException e )
+            {
+                LOGGER.error( "Unexpected error while scanning flow " + flowUuid, e.getCause() );
+                flowErrors.put( flowUuid, e.getCause() );
+            }
+        }
+        return flowErrors;
+    }
+
+    /**
+     * @return the error the flow failed with, or <code>null</code> if the flow was scanned or skipped
+     */
+    protected Throwable scan( String flowUuid, CompletableFuture<Long> startTime )
+    {
+        if ( !startTime.complete( System.currentTimeMillis() ) )
+        {
+            // given up on by the caller before a worker became free
+            return null;
+        }
+        AtomicInteger flowRunCount = new AtomicInteger();
+        if ( !flowScanStatistics.start( flowUuid ) )
+        {
+            flowScanStatistics.skip( flowUuid );
+            LOGGER.warn( "Skipping flow {} because its previous scan has not completed yet", flowUuid );
+            return null;
+        }
+
+        long startedAt = System.nanoTime();
+        Throwable error = null;
+        try
+        {
+            Exchange exchange = producerTemplate.send( "direct:pullFlow", flowExchange -> {
+                flowExchange.getMessage().setHeader( "flowUuid", flowUuid );
+                flowExchange.setProperty( "flowRunCount", flowRunCount );
+            } );
+            error = exchange.getException();
+        }
+        catch ( RuntimeException e )
+        {
+            error = e;
+        }
+        finally
+        {
+            long durationInMillis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - startedAt );
+            flowScanStatistics.finish( flowUuid, durationInMillis, error );
+            adaptiveFlowScanScheduler.scanned( flowUuid, flowRunCount.get() );
+            LOGGER.debug( "Scanned flow {} in {} ms", flowUuid, durationInMillis );
+        }
+
+        if ( error != null )
+        {
+            LOGGER.error( "Error while scanning flow " + flowUuid, error );
+        }
+        return error;
+    }
+
+    public List<String> parseFlowUuids( String flowUuids )
+    {
+        Set<String> parsedFlowUuids = new LinkedHashSet<>();
+        if ( flowUuids != null )
+        {
+            for ( String flowUuid : flowUuids.split( "," ) )
+            {
+                if ( !flowUuid.isBlank() )
+                {
+                    parsedFlowUuids.add( flowUuid.trim() );
+                }
+            }
+        }
+        return new ArrayList<>( parsedFlowUuids );
+    }
+
+    protected synchronized ExecutorService getExecutorService()
+    {
+        if ( executorService == null )
+        {
+            executorService = camelContext.getExecutorServiceManager()
+                .newFixedThreadPool( this, "FlowScan", maxConcurrency );
+        }
+        return executorService;
+    }
+}
@@ -30,9 +30,12 @@ package org.hisp.dhis.integration.rapidpro.route;
 import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
 import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.jms.JmsComponent;
 import org.apache.camel.http.base.HttpOperationFailedException;
+import org.apache.camel.spring.spi.SpringTransactionPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.jms.connection.JmsTransactionManager;
 
 public abstract class AbstractRouteBuilder extends RouteBuilder
 {
@@ -54,4 +57,11 @@ public abstract class AbstractRouteBuilder extends RouteBuilder
 
     protected abstract void doConfigure()
         throws Exception;
+
+    protected SpringTransactionPolicy newJmsTransactionPolicy()
+    {
+        JmsComponent jmsComponent = getCamelContext().getComponent( "jms", JmsComponent.class );
+        return new SpringTransactionPolicy(
+            new JmsTransactionManager( jmsComponent.getConfiguration().getConnectionFactory() ) );
+    }
 }
@@ -27,21 +27,38 @@
  */
 package org.hisp.dhis.integration.rapidpro.route;
 
+import com.datasonnet.document.MediaTypes;
 import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
-import org.apache.camel.processor.aggregate.GroupedBodyAggregationStrategy;
-import org.hisp.dhis.api.model.v40_0.DataSet;
+import org.apache.camel.builder.AggregationStrategies;
+import org.apache.camel.builder.PredicateBuilder;
+import org.apache.camel.model.language.DatasonnetExpression;
+import org.hisp.dhis.integration.rapidpro.CompleteDataSetRegistrationBatcher;
 import org.hisp.dhis.integration.rapidpro.CompleteDataSetRegistrationFunction;
+import org.hisp.dhis.integration.rapidpro.ContactDirectory;
+import org.hisp.dhis.integration.rapidpro.DataElementCodesCache;
+import org.hisp.dhis.integration.rapidpro.DataValueSetBatcher;
+import org.hisp.dhis.integration.rapidpro.Dhis2CallNotPermittedException;
+import org.hisp.dhis.integration.rapidpro.Dhis2CircuitBreaker;
+import org.hisp.dhis.integration.rapidpro.Dhis2CircuitBreakerRoutePolicy;
+import org.hisp.dhis.integration.rapidpro.Dhis2ConcurrencyLimiter;
+import org.hisp.dhis.integration.rapidpro.Dhis2RapidProException;
+import org.hisp.dhis.integration.rapidpro.ImportJobTracker;
+import org.hisp.dhis.integration.rapidpro.ReportQueueDrainer;
+import org.hisp.dhis.integration.rapidpro.SuccessLogWriter;
 import org.hisp.dhis.integration.rapidpro.aggregationStrategy.ContactOrgUnitIdAggrStrategy;
 import org.hisp.dhis.integration.rapidpro.expression.RootCauseExpr;
 import org.hisp.dhis.integration.rapidpro.processor.CurrentPeriodCalculator;
 import org.hisp.dhis.integration.rapidpro.processor.IdSchemeQueryParamSetter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.function.Function;
+import java.util.stream.IntStream;
 
 @Component
 public class DeliverReportRouteBuilder extends AbstractRouteBuilder
@@ -61,63 +78,156 @@ public class DeliverReportRouteBuilder extends AbstractRouteBuilder
     @Autowired
     private CompleteDataSetRegistrationFunction completeDataSetRegistrationFunction;
 
+    @Autowired
+    private CompleteDataSetRegistrationBatcher completeDataSetRegistrationBatcher;
+
+    @Autowired
+    private DataElementCodesCache dataElementCodesCache;
+
+    @Autowired
+    private ContactDirectory contactDirectory;
+
+    @Autowired
+    private DataValueSetBatcher dataValueSetBatcher;
+
+    @Autowired
+    private ImportJobTracker importJobTracker;
+
+    @Autowired
+    private ReportQueueDrainer reportQueueDrainer;
+
+    @Autowired
+    private SuccessLogWriter successLogWriter;
+
+    @Autowired
+    private Dhis2CircuitBreaker dhis2CircuitBreaker;
+
+    @Autowired
+    private Dhis2CircuitBreakerRoutePolicy dhis2CircuitBreakerRoutePolicy;
+
+    @Autowired
+    private Dhis2ConcurrencyLimiter dhis2ConcurrencyLimiter;
+
+    @Value( "${report.delivery.drain.parallelism:1}" )
+    private int drainParallelism;
+
     @Override
     protected void doConfigure()
     {
-        from( "quartz://dhis2AggregateReports?cron={{report.delivery.schedule.expression}}" )
+        ExecutorService drainExecutorService = getCamelContext().getExecutorServiceManager()
+            .newFixedThreadPool( this, "DrainReports", drainParallelism );
+
+        from( "quartz://dhis2AggregateReports?cron={{report.delivery.schedule.expression}}&stateful=true" )
             .routeId( "Schedule Report Delivery" )
             .precondition( "'{{report.delivery.schedule.expression:}}' != ''" )
-            .pollEnrich( "jms:queue:dhis2AggregateReports" )
-            .to( "direct:deliverReport" );
+            .to( "direct:drainReports" );
+
+        // each drain worker de-queues and delivers batches of reports on its own thread
+        List<Integer> drainWorkers = IntStream.range( 0, drainParallelism ).boxed().toList();
+        from( "direct:drainReports" )
+            .routeId( "Drain Reports" )
+            .bean( reportQueueDrainer, "start" )
+            .loopDoWhile( PredicateBuilder.and( method( reportQueueDrainer, "isDraining" ),
+                method( dhis2CircuitBreaker, "isAvailable" ) ) )
+                .split( constant( drainWorkers ) ).parallelProcessing().executorService( drainExecutorService )
+                    .to( "direct:drainReportBatch" )
+                .end()
+            .end()
+            .log( LoggingLevel.INFO, LOGGER, "Drained ${exchangeProperty.drainedCount} queued reports" );
+
+        // the reports of a batch are de-queued in a JMS transaction bound to the worker thread and delivered one after
+        // the other on that same thread so that the transaction is only committed once they are all delivered
+        getCamelContext().getRegistry().bind( "drainTransactionPolicy", newJmsTransactionPolicy() );
+        from( "direct:drainReportBatch" )
+            .routeId( "Drain Report Batch" )
+            .transacted( "drainTransactionPolicy" )
+            .setBody( method( reportQueueDrainer, "receiveBatch" ) )
+            .log( LoggingLevel.DEBUG, LOGGER, "Draining ${body.size()} queued reports" )
+            .split( body(), AggregationStrategies.useOriginal( false ) )
+                .filter( PredicateBuilder.not( method( reportQueueDrainer, "isBatchRejected" ) ) )
+                    .bean( reportQueueDrainer, "acquirePermit" )
+                    .kamelet( "hie-create-replay-checkpoint-action" )
+                    .doTry()
+                        .to( "direct:deliverReport" )
+                    .doCatch( Dhis2CallNotPermittedException.class )
+                        .log( LoggingLevel.WARN, LOGGER, "Returning batch of reports to queue because DHIS2 is unavailable => ${exception.message}" )
+                        .bean( reportQueueDrainer, "reject" )
+                    .end()
+                .end()
+            .end()
+            .filter( method( reportQueueDrainer, "isBatchRejected" ) )
+                // DHIS2 was not called for the rest of the batch so the whole batch is rolled back onto the queue
+                .bean( reportQueueDrainer, "returnBatch" )
+                .markRollbackOnly()
+            .end();
 
-        from( "jms:queue:dhis2AggregateReports" )
+        from( "jms:queue:dhis2AggregateReports?concurrentConsumers={{report.delivery.concurrent.consumers:1}}&transacted={{dhis2.circuit.breaker.enabled:false}}" )
             .routeId( "Consume Report" )
             .precondition( "'{{report.delivery.schedule.expression:}}' == ''" )
+            .routePolicy( dhis2CircuitBreakerRoutePolicy )
             .kamelet( "hie-create-replay-checkpoint-action" )
-            .to( "direct:deliverReport" );
+            .doTry()
+                .to( "direct:deliverReport" )
+            .doCatch( Dhis2CallNotPermittedException.class )
+                // DHIS2 was not called so the report is rolled back onto the queue instead of being marked as failed
+                .log( LoggingLevel.WARN, LOGGER, "Returning report to queue because DHIS2 is unavailable => ${exception.message}" )
+                .markRollbackOnly()
+            .end();
 
         from( "direct:deliverReport" )
             .routeId( "Deliver Report" )
             .to( "direct:transformReport" )
-            .to( "direct:transmitReport" );
+            .choice().when( simple( "{{report.delivery.async:false}}" ) )
+                .to( "direct:submitImportJob" )
+            .otherwise()
+                .to( "direct:transmitReport" )
+            .end();
 
         from( "direct:transformReport" )
             .routeId( "Transform Report" )
-            .streamCache("true")
-            .setHeader( "originalPayload", simple( "${body}" ) )
+            .convertBodyTo( String.class )
+            .setHeader( "originalPayload", body() )
             .unmarshal().json()
             .choice().when( header( "reportPeriodOffset" ).isNull() )
                 .setHeader( "reportPeriodOffset", constant( -1 ) )
             .end()
-            .enrich()
-            .simple( "dhis2://get/resource?path=dataElements&filter=dataSetElements.dataSet.code:eq:${headers['dataSetCode']}&fields=code&client=#dhis2Client" )
-            .aggregationStrategy( ( oldExchange, newExchange ) -> {
-                oldExchange.getMessage().setHeader( "dataElementCodes",
-                    jsonpath( "$.dataElements..code" ).evaluate( newExchange, List.class ) );
-                return oldExchange;
-            } )
+            .setHeader( "dataElementCodes", method( dataElementCodesCache, "get(${header.dataSetCode})" ) )
+            .setHeader( "dataElementCodeIndex", method( dataElementCodesCache, "getIndex(${header.dataSetCode})" ) )
             .choice().when( header( "orgUnitId" ).isNull() )
                 .setHeader( "uuid", simple( "${body[contact][uuid]}" ) )
-                .enrich().simple( "kamelet:hie-rapidpro-get-contacts-sink?rapidProApiToken={{rapidpro.api.token}}&rapidProApiUrl={{rapidpro.api.url}}" )
-                    .aggregationStrategy( contactOrgUnitIdAggrStrategy )
+                .setHeader( "orgUnitId", method( contactDirectory, "getContactOrgUnitId(${body[contact]})" ) )
+                .filter( header( "orgUnitId" ).isNull() )
+                    .enrich().simple( "kamelet:hie-rapidpro-get-contacts-sink?rapidProApiToken={{rapidpro.api.token}}&rapidProApiUrl={{rapidpro.api.url}}" )
+                        .aggregationStrategy( contactOrgUnitIdAggrStrategy )
+                    .end()
+                    .bean( contactDirectory, "put(${header.uuid}, ${header.orgUnitId})" )
                 .end()
             .end()
             .enrich( "direct:computePeriod", ( oldExchange, newExchange ) -> {
                 oldExchange.getMessage().setHeader( "period", newExchange.getMessage().getBody() );
                 return oldExchange;
             } )
-            .transform( datasonnet( "resource:classpath:dataValueSet.ds", Map.class, "application/x-java-object",
-                "application/x-java-object" ) )
-            .process( idSchemeQueryParamSetter )
-            .marshal().json().transform().body( String.class );
+            .transform( dataValueSetExpression() )
+            .process( idSchemeQueryParamSetter );
 
         from( "direct:transmitReport" )
             .routeId( "Transmit Report" )
             .log( LoggingLevel.INFO, LOGGER, "Saving data value set => ${body}" )
-            .setHeader( "dhisRequest", simple( "${body}" ) )
-            .toD( "dhis2://post/resource?path=dataValueSets&inBody=resource&client=#dhis2Client" )
-            .setBody( (Function<Exchange, Object>) exchange -> exchange.getMessage().getBody( String.class ) )
-            .setHeader( "dhisResponse", simple( "${body}" ) )
+            .setHeader( "dhisRequest", body() )
+            .choice().when( simple( "{{report.delivery.batch.size:1}} > 1" ) )
+                .setBody( (Function<Exchange, Object>) exchange -> dataValueSetBatcher.submit(
+                    exchange.getMessage().getHeader( "dataSetCode", String.class ),
+                    exchange.getMessage().getHeader( "CamelDhis2.queryParams", Map.class ),
+                    exchange.getMessage().getBody( String.class ) ) )
+            .otherwise()
+                .policy( dhis2CircuitBreaker.policy( "dataValueSets" ) )
+                    .policy( dhis2ConcurrencyLimiter.policy( "dataValueSets" ) )
+                        .toD( "dhis2://post/resource?path=dataValueSets&inBody=resource&client=#dhis2Client" )
+                    .end()
+                .end()
+                .setBody( (Function<Exchange, Object>) exchange -> exchange.getMessage().getBody( String.class ) )
+            .end()
+            .setHeader( "dhisResponse", body() )
             .unmarshal().json()
             .choice()
             .when( simple( "${body['status']} == 'SUCCESS' || ${body['status']} == 'OK'" ) )
@@ -128,27 +238,136 @@ public class DeliverReportRouteBuilder extends AbstractRouteBuilder
                 .kamelet( "hie-fail-replay-checkpoint-action" )
             .end();
 
+        from( "direct:submitImportJob" )
+            .routeId( "Submit Import Job" )
+            .log( LoggingLevel.INFO, LOGGER, "Submitting data value set import job => ${body}" )
+            .setHeader( "dhisRequest", body() )
+            .process( exchange -> exchange.getMessage().getHeader( "CamelDhis2.queryParams", Map.class )
+                .put( "async", "true" ) )
+            .policy( dhis2CircuitBreaker.policy( "dataValueSets" ) )
+                .policy( dhis2ConcurrencyLimiter.policy( "dataValueSets" ) )
+                    .toD( "dhis2://post/resource?path=dataValueSets&inBody=resource&client=#dhis2Client" )
+                .end()
+            .end()
+            .setBody( (Function<Exchange, Object>) exchange -> exchange.getMessage().getBody( String.class ) )
+            .unmarshal().json()
+            .setHeader( "jobId", simple( "${body[response][id]}" ) )
+            .setHeader( "jobType", simple( "${body[response][jobType]}" ) )
+            .filter( header( "jobId" ).isNull() )
+                .throwException( Dhis2RapidProException.class, "Unexpected reply from DHIS2 while submitting import job => ${body}" )
+            .end()
+            .setHeader( "rapidProPayload", header( "originalPayload" ) )
+            .setBody( simple( "${properties:report.import.job.insert.{{spring.sql.init.platform}}}" ) )
+            .to( "jdbc:dataSource?useHeadersAsParameters=true" )
+            .log( LoggingLevel.DEBUG, LOGGER, "Submitted DHIS2 import job ${header.jobId}" );
+
+        from( "quartz://pollImportJobs?cron={{report.delivery.async.poll.schedule.expression:0/10 * * * * ?}}&stateful=true" )
+            .routeId( "Schedule Import Job Polling" )
+            .precondition( "{{report.delivery.async:false}}" )
+            .to( "direct:pollImportJobs" );
+
+        from( "direct:pollImportJobs" )
+            .routeId( "Poll Import Jobs" )
+            .setHeader( "batchSize", simple( "{{report.delivery.async.poll.batch.size:1000}}", Integer.class ) )
+            .setBody( simple( "${properties:report.import.job.select.{{spring.sql.init.platform}}}" ) )
+            .to( "jdbc:dataSource?useHeadersAsParameters=true" )
+            .filter( simple( "${body.size()} > 0" ) )
+                .setBody( method( importJobTracker, "resolve" ) )
+                .split( body() )
+                    .to( "direct:completeImportJob" )
+                .end()
+            .end();
+
+        from( "direct:completeImportJob" )
+            .routeId( "Complete Import Job" )
+            .setProperty( "importJob", body() )
+            // the attempt is counted up front so that a job whose completion keeps erroring out is eventually given up
+            .setHeader( "jobId", simple( "${body[job_id]}" ) )
+            .setBody( simple( "${properties:report.import.job.attempt.{{spring.sql.init.platform}}}" ) )
+            .to( "jdbc:dataSource?useHeadersAsParameters=true" )
+            .choice().when( simple( "${exchangeProperty.importJob[attempts]} >= {{report.delivery.async.job.max.attempts:5}}" ) )
+                // the report was already marked as failed through the replay checkpoint of the first attempt
+                .log( LoggingLevel.ERROR, LOGGER, "Giving up on DHIS2 import job ${header.jobId} after ${exchangeProperty.importJob[attempts]} attempts" )
+            .otherwise()
+                .to( "direct:finishImportJob" )
+            .end()
+            // the job is deleted last so that the next poll completes it again should registration or logging fail
+            .setBody( simple( "${properties:report.import.job.delete.{{spring.sql.init.platform}}}" ) )
+            .to( "jdbc:dataSource?useHeadersAsParameters=true" );
+
+        from( "direct:finishImportJob" )
+            .routeId( "Finish Import Job" )
+            .setHeader( "dataSetCode", simple( "${exchangeProperty.importJob[data_set_code]}" ) )
+            .setHeader( "reportPeriodOffset", simple( "${exchangeProperty.importJob[report_period_offset]}" ) )
+            .setHeader( "orgUnitId", simple( "${exchangeProperty.importJob[organisation_unit_id]}" ) )
+            .setHeader( "originalPayload", simple( "${exchangeProperty.importJob[rapidpro_payload]}" ) )
+            .setBody( header( "originalPayload" ) )
+            // the replay checkpoint is created once per job rather than once per attempt
+            .filter( simple( "${exchangeProperty.importJob[attempts]} == 0" ) )
+                .kamelet( "hie-create-replay-checkpoint-action" )
+            .end()
+            .setHeader( "period", simple( "${exchangeProperty.importJob[period]}" ) )
+            .setHeader( "dhisRequest", simple( "${exchangeProperty.importJob[dhis_request]}" ) )
+            .setHeader( "dhisResponse", simple( "${exchangeProperty.importJob[importSummary]}" ) )
+            .process( idSchemeQueryParamSetter )
+            .setBody( header( "dhisResponse" ) )
+            .unmarshal().json()
+            .choice()
+            .when( simple( "${body['status']} == 'SUCCESS' || ${body['status']} == 'OK'" ) )
+                .to( "direct:completeDataSetRegistration" )
+            .otherwise()
+                .setHeader( "errorMessage", simple( "Import error from DHIS2 while saving data value set => ${body}" ) )
+                .log( LoggingLevel.ERROR, LOGGER, "${header.errorMessage}" )
+                .kamelet( "hie-fail-replay-checkpoint-action" )
+            .end();
+
         from( "direct:computePeriod" )
             .routeId( "Compute Period" )
-            .toD( "dhis2://get/collection?path=dataSets&arrayName=dataSets&filter=code:eq:${headers['dataSetCode']}&fields=periodType&client=#dhis2Client" )
-            .split().body().aggregationStrategy( new GroupedBodyAggregationStrategy() )
-                .convertBodyTo( DataSet.class )
-            .end()
             .process( currentPeriodCalculator );
 
         from( "direct:completeDataSetRegistration" )
-            .setBody( completeDataSetRegistrationFunction )
-            .toD( "dhis2://post/resource?path=completeDataSetRegistrations&inBody=resource&client=#dhis2Client" )
+            .choice().when( simple( "{{report.delivery.registration.batch.size:1}} > 1" ) )
+                .setBody( (Function<Exchange, Object>) exchange -> completeDataSetRegistrationBatcher.submit(
+                    exchange.getMessage().getHeader( "CamelDhis2.queryParams", Map.class ),
+                    completeDataSetRegistrationFunction.newRegistration( exchange ) ) )
+            .otherwise()
+                .setBody( completeDataSetRegistrationFunction )
+                .policy( dhis2CircuitBreaker.policy( "completeDataSetRegistrations" ) )
+                    .toD( "dhis2://post/resource?path=completeDataSetRegistrations&inBody=resource&client=#dhis2Client" )
+                .end()
+            .end()
             .unmarshal().json()
             .choice()
             .when( simple( "${body['status']} == 'SUCCESS' || ${body['status']} == 'OK'" ) )
-                .setHeader( "rapidProPayload", header( "originalPayload" ) )
-                .setBody( simple( "${properties:report.success.log.insert.{{spring.sql.init.platform}}}" ) )
-                .to( "jdbc:dataSource?useHeadersAsParameters=true" )
+                .choice().when( simple( "{{success.log.async:false}}" ) )
+                    .bean( successLogWriter, "appendReport" )
+                .when( simple( "{{success.log.compress:false}}" ) )
+                    .bean( successLogWriter, "writeReport" )
+                .otherwise()
+                    .setHeader( "rapidProPayload", header( "originalPayload" ) )
+                    .setBody( simple( "${properties:report.success.log.insert.{{spring.sql.init.platform}}}" ) )
+                    .to( "jdbc:dataSource?useHeadersAsParameters=true" )
+                .end()
+            .endChoice()
             .otherwise()
                 .setHeader( "errorMessage", simple( "Error from DHIS2 while completing data set registration => ${body}" ) )
                 .log( LoggingLevel.ERROR, LOGGER, "${header.errorMessage}" )
                 .kamelet( "hie-fail-replay-checkpoint-action" )
             .end();
     }
+
+    /**
+     * Maps the report held in the <code>originalPayload</code> header straight from and to JSON text so that the
+     * report is neither converted from its parsed form nor marshalled again after the mapping.
+     */
+    protected DatasonnetExpression dataValueSetExpression()
+    {
+        DatasonnetExpression dataValueSetExpression = new DatasonnetExpression(
+            "resource:classpath:dataValueSet.ds" );
+        dataValueSetExpression.setSource( "header:originalPayload" );
+        dataValueSetExpression.setBodyMediaType( MediaTypes.APPLICATION_JSON_VALUE );
+        dataValueSetExpression.setOutputMediaType( MediaTypes.APPLICATION_JSON_VALUE );
+        dataValueSetExpression.setResultType( String.class );
+        return dataValueSetExpression;
+    }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.route;
+
+import org.apache.camel.LoggingLevel;
+import org.hisp.dhis.integration.rapidpro.SeenFlowRunRepository;
+import org.hisp.dhis.integration.rapidpro.SuccessLogArchiver;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+@Component
+public class HousekeepingRouteBuilder extends AbstractRouteBuilder
+{
+    @Autowired
+    private SeenFlowRunRepository seenFlowRunRepository;
+
+    @Autowired
+    private SuccessLogArchiver successLogArchiver;
+
+    @Override
+    protected void doConfigure()
+    {
+        from( "quartz://pruneSeenFlowRuns?cron={{scan.reports.dedup.prune.schedule.expression:0 0 2 * * ?}}&stateful=true" )
+            .routeId( "Prune Seen Flow Runs" )
+            .setBody( method( seenFlowRunRepository, "prune" ) )
+            .log( LoggingLevel.DEBUG, LOGGER, "Pruned ${body} seen flow run/s" );
+
+        from( "quartz://archiveSuccessLogs?cron={{success.log.archive.schedule.expression:0 0 3 * * ?}}&stateful=true" )
+            .precondition( "{{success.log.retention.days:0}} > 0" )
+            .routeId( "Archive Success Logs" )
+            .setBody( method( successLogArchiver, "archive" ) )
+            .log( LoggingLevel.INFO, LOGGER, "Archived ${body} success log row/s" );
+    }
+}
@@ -29,14 +29,24 @@ package org.hisp.dhis.integration.rapidpro.route;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
+import org.apache.camel.model.RouteDefinition;
+import org.hisp.dhis.integration.rapidpro.AdaptiveFlowScanScheduler;
+import org.hisp.dhis.integration.rapidpro.FlowRun;
+import org.hisp.dhis.integration.rapidpro.FlowRunReader;
 import org.hisp.dhis.integration.rapidpro.ProgramStageToFlowMap;
+import org.hisp.dhis.integration.rapidpro.SeenFlowRunRepository;
+import org.hisp.dhis.integration.rapidpro.WatermarkRegistry;
 import org.hisp.dhis.integration.rapidpro.expression.LastRunCalculator;
-import org.hisp.dhis.integration.rapidpro.expression.LastRunAtColumnReader;
+import org.hisp.dhis.integration.rapidpro.expression.ReportGroupIdExpr;
+import org.hisp.dhis.integration.rapidpro.processor.FlowRunPageReader;
+import org.hisp.dhis.integration.rapidpro.processor.FlowScanProcessor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Component
 public class PullRapidProFlowsRouteBuilder extends AbstractRouteBuilder
@@ -45,14 +55,53 @@ public class PullRapidProFlowsRouteBuilder extends AbstractRouteBuilder
     private LastRunCalculator lastRunCalculator;
 
     @Autowired
-    private LastRunAtColumnReader lastRunAtColumnReader;
+    private WatermarkRegistry watermarkRegistry;
 
     @Autowired
     private ProgramStageToFlowMap programStageToFlowMap;
 
+    @Autowired
+    private FlowScanProcessor flowScanProcessor;
+
+    @Autowired
+    private FlowRunPageReader flowRunPageReader;
+
+    @Autowired
+    private FlowRunReader flowRunReader;
+
+    @Autowired
+    private SeenFlowRunRepository seenFlowRunRepository;
+
+    @Autowired
+    private AdaptiveFlowScanScheduler adaptiveFlowScanScheduler;
+
+    @Autowired
+    private ReportGroupIdExpr reportGroupIdExpr;
+
     @Value( "${rapidpro.flow.uuids:}" )
     private String aggregateReportFlowUuids;
 
+    @Value( "${scan.reports.enqueue.batch.size:1}" )
+    private int enqueueBatchSize;
+
+    protected String getFlowUuids()
+    {
+        String programStageFlowUuids = programStageToFlowMap.getFlowUuids();
+        return (programStageFlowUuids.isEmpty() && aggregateReportFlowUuids.isEmpty()) ?
+            "" :
+            String.join( ",", programStageFlowUuids, aggregateReportFlowUuids );
+    }
+
+    protected void countQueuedFlowRun( Exchange exchange )
+    {
+        // only newly queued runs count towards the flow's run arrival rate
+        AtomicInteger flowRunCount = exchange.getProperty( "flowRunCount", AtomicInteger.class );
+        if ( flowRunCount != null )
+        {
+            flowRunCount.incrementAndGet();
+        }
+    }
+
     @Override
     protected void doConfigure()
     {
@@ -64,64 +113,165 @@ public class PullRapidProFlowsRouteBuilder extends AbstractRouteBuilder
             .marshal().json();
 
         from( "quartz://pull?cron={{scan.reports.schedule.expression:0 0/30 * * * ?}}&stateful=true" )
+            .precondition( "'{{scan.reports.adaptive:false}}' != 'true'" )
             .to( "direct:pull" );
 
+        from( "timer://adaptivePull?period=1000" )
+            .precondition( "{{scan.reports.adaptive:false}}" )
+            .routeId( "Scan Due RapidPro Flows" )
+            .process( exchange -> exchange.setProperty( "flowUuids",
+                String.join( ",", adaptiveFlowScanScheduler.dueFlowUuids( flowScanProcessor.parseFlowUuids( getFlowUuids() ) ) ) ) )
+            .filter( simple( "${exchangeProperty.flowUuids} != ''" ) )
+                .doTry()
+                    .process( flowScanProcessor )
+                .doFinally()
+                    .bean( watermarkRegistry, "flush" )
+                .end()
+            .end();
+
         from( "direct:pull" )
             .routeId( "Scan RapidPro Flows" )
+            .process( exchange -> exchange.setProperty( "flowUuids", getFlowUuids() ) )
+            // the watermarks of the flows that were scanned are saved even when other flows failed
+            .doTry()
+                .process( flowScanProcessor )
+            .doFinally()
+                .bean( watermarkRegistry, "flush" )
+            .end();
+
+        from( "direct:pullFlow" )
+            .routeId( "Scan RapidPro Flow" )
             .streamCache("true")
-            .process( exchange -> {
-                String programStageFlowUuids = programStageToFlowMap.getFlowUuids();
-                String flowUuids = (programStageFlowUuids.isEmpty() && aggregateReportFlowUuids.isEmpty()) ?
-                    "" :
-                    String.join( ",", programStageFlowUuids, aggregateReportFlowUuids );
-                exchange.setProperty( "flowUuids", flowUuids );
-            } )
-            .split( simple( "${exchangeProperty.flowUuids}" ), "," )
-                .setHeader( "flowUuid", simple( "${body}" ) )
-                .setBody( simple( "${properties:last.run.select.{{spring.sql.init.platform}}}" ) )
-                .to( "jdbc:dataSource?useHeadersAsParameters=true" )
-                .setProperty( "lastRunAt", lastRunAtColumnReader )
-                .setHeader( "newLastRunAt" ).ognl( "@java.sql.Timestamp@from(@java.time.Instant@now())" )
-                .setHeader( "reverse", constant( true ) )
-                .setHeader( "flow", header( "flowUuid" ) )
-                .setHeader( "after", exchangeProperty( "lastRunAt" ) )
-                .to("kamelet:hie-rapidpro-get-flow-runs-sink?rapidProApiToken={{rapidpro.api.token}}&rapidProApiUrl={{rapidpro.api.url}}")
-                .split(body())
-                    .log( LoggingLevel.DEBUG, LOGGER, "Fetched flow runs after ${header.after} for flow ${header.flow} => ${body}" )
+            .setProperty( "lastRunAt", method( watermarkRegistry, "getLastRunAt(${header.flowUuid})" ) )
+            .setHeader( "newLastRunAt" ).ognl( "@java.sql.Timestamp@from(@java.time.Instant@now())" )
+            .setHeader( "reverse", constant( true ) )
+            .setHeader( "flow", header( "flowUuid" ) )
+            .setHeader( "after", exchangeProperty( "lastRunAt" ) )
+            .choice()
+                .when( simple( "{{scan.reports.streaming:false}}" ) )
+                    .to( "direct:streamFlowRuns" )
+                .otherwise()
+                    .to("kamelet:hie-rapidpro-get-flow-runs-sink?rapidProApiToken={{rapidpro.api.token}}&rapidProApiUrl={{rapidpro.api.url}}")
+                    .setBody( method( flowRunReader, "readAll" ) )
+                    .split( simple( "${collate(" + enqueueBatchSize + ")}" ) )
+                        .to( "direct:queueFlowRunBatch" )
+                    .end()
+            .end()
+            .bean( watermarkRegistry, "update(${header.flowUuid}, ${header.newLastRunAt})" );
+
+        from( "direct:streamFlowRuns" )
+            .routeId( "Stream RapidPro Flow Runs" )
+            .setProperty( "nextPageUrl", method( flowRunPageReader, "firstPageUrl" ) )
+            .removeProperty( "pageCount" )
+            .loopDoWhile( method( flowRunPageReader, "hasNextPage" ) )
+                .process( flowRunPageReader )
+                .split( simple( "${collate(" + enqueueBatchSize + ")}" ) )
+                    .to( "direct:queueFlowRunBatch" )
+                .end()
+                .filter( header( "checkpointAt" ).isNotNull() )
+                    .bean( watermarkRegistry, "update(${header.flowUuid}, ${header.checkpointAt})" )
+                    .bean( watermarkRegistry, "flush" )
+                .end()
+            .end()
+            .filter( simple( "${exchangeProperty.nextPageUrl} != null && ${header.checkpointAt} != null" ) )
+                .log( LoggingLevel.INFO, LOGGER, "Reached page limit while scanning flow ${header.flowUuid}. Remaining flow runs will be scanned on the next poll" )
+                .setHeader( "newLastRunAt", header( "checkpointAt" ) )
+            .end();
+
+        RouteDefinition queueFlowRunBatchRoute = from( "direct:queueFlowRunBatch" ).routeId( "Queue Flow Run Batch" );
+        if ( enqueueBatchSize > 1 )
+        {
+            // the runs of a batch are sent to the queues in a single JMS transaction
+            getCamelContext().getRegistry().bind( "jmsTransactionPolicy", newJmsTransactionPolicy() );
+            queueFlowRunBatchRoute.transacted( "jmsTransactionPolicy" );
+        }
+        queueFlowRunBatchRoute
+            .doTry()
+                .split( body() )
                     .setHeader( "newLastRunAt", lastRunCalculator )
-                    .filter( simple( "${body[exited_on]} != null && ${body[exit_type]} == 'completed'" ) )
-                    .choice()
-                        .when().simple("${body[values][data_set_code]} != null && ${body[values][event_id]} == null" )
-                            .to("direct:queueAggregateReport")
-                        .when().simple( "${body[values][data_set_code]} == null && ${body[values][event_id]} != null")
-                            .to("direct:queueProgramStageEvent")
-                        .otherwise()
-                            .log( LoggingLevel.ERROR, LOGGER,
-                        "Cannot process flow run for flow definition ${header.flowUuid} because one of the required flow results is missing. Hint: for aggregate data reports, save the data set code to a flow result named 'data_set_code' in RapidPro. For program stage events, save the value '@trigger.params.eventId' to a flow result named 'event_id'  in RapidPro." )
-                        .end()
+                    .to( "direct:processFlowRun" )
                 .end()
-                .setBody( simple( "${properties:last.run.upsert.{{spring.sql.init.platform}}}" ) )
+            .endDoTry()
+            .doCatch( Exception.class )
+                .process( exchange -> {
+                    // queued runs of a rolled back batch must be queued again on the next scan
+                    for ( FlowRun flowRun : (List<FlowRun>) exchange.getMessage().getBody( List.class ) )
+                    {
+                        seenFlowRunRepository.remove( flowRun.uuid() );
+                    }
+                    throw exchange.getProperty( Exchange.EXCEPTION_CAUGHT, Exception.class );
+                } )
+            .end();
+
+        from( "direct:processFlowRun" )
+            .routeId( "Process RapidPro Flow Run" )
+            .log( LoggingLevel.DEBUG, LOGGER, "Fetched flow runs after ${header.after} for flow ${header.flow} => ${body}" )
+            .filter( simple( "${properties:scan.reports.recheck.open.runs:false} == 'true' && ${body.exitedOn} == null" ) )
+                .setHeader( "runUuid", simple( "${body.uuid}" ) )
+                .setBody( simple( "${properties:pending.flow.run.upsert.{{spring.sql.init.platform}}}" ) )
                 .to( "jdbc:dataSource?useHeadersAsParameters=true" )
+                .stop()
+            .end()
+            .filter( simple( "${body.exitedOn} != null && ${body.exitType} == 'completed'" ) )
+            .choice()
+                .when().simple("${body.dataSetCode} != null && ${body.eventId} == null" )
+                    .to("direct:queueAggregateReport")
+                .when().simple( "${body.dataSetCode} == null && ${body.eventId} != null")
+                    .to("direct:queueProgramStageEvent")
+                .otherwise()
+                    .log( LoggingLevel.ERROR, LOGGER,
+                "Cannot process flow run for flow definition ${header.flowUuid} because one of the required flow results is missing. Hint: for aggregate data reports, save the data set code to a flow result named 'data_set_code' in RapidPro. For program stage events, save the value '@trigger.params.eventId' to a flow result named 'event_id'  in RapidPro." )
+            .end();
+
+        from( "quartz://recheckOpenFlowRuns?cron={{scan.reports.recheck.schedule.expression:0 0/5 * * * ?}}&stateful=true" )
+            .precondition( "{{scan.reports.recheck.open.runs:false}}" )
+            .to( "direct:recheckOpenFlowRuns" );
+
+        from( "direct:recheckOpenFlowRuns" )
+            .routeId( "Recheck Open Flow Runs" )
+            .setHeader( "batchSize", simple( "{{scan.reports.recheck.batch.size:100}}", Integer.class ) )
+            .setBody( simple( "${properties:pending.flow.run.select.{{spring.sql.init.platform}}}" ) )
+            .to( "jdbc:dataSource?useHeadersAsParameters=true" )
+            .split( body() )
+                .setHeader( "runUuid", simple( "${body[run_uuid]}" ) )
+                .setHeader( "flowUuid", simple( "${body[flow_uuid]}" ) )
+                .setProperty( "nextPageUrl", method( flowRunPageReader, "runUrl" ) )
+                .process( flowRunPageReader )
+                .choice()
+                    .when( simple( "${body.size()} > 0 && ${body[0].exitedOn} == null" ) )
+                        .setBody( simple( "${properties:pending.flow.run.touch.{{spring.sql.init.platform}}}" ) )
+                        .to( "jdbc:dataSource?useHeadersAsParameters=true" )
+                    .otherwise()
+                        .split( body() )
+                            .to( "direct:processFlowRun" )
+                        .end()
+                        .log( LoggingLevel.DEBUG, LOGGER, "Flow run ${header.runUuid} is no longer open" )
+                        .setBody( simple( "${properties:pending.flow.run.delete.{{spring.sql.init.platform}}}" ) )
+                        .to( "jdbc:dataSource?useHeadersAsParameters=true" )
+                .end()
             .end();
 
         from( "direct:queueAggregateReport" )
             .routeId("Queue Aggregate Report")
-            .setHeader( "dataSetCode", simple( "${body[values][data_set_code][value]}" ) )
-            .setHeader( "orgUnitId" ).ognl(
-                "request.body['values']['org_unit_id'] == null ? null : request.body['values']['org_unit_id']['value']" )
-            .setHeader( "reportPeriodOffset" ).ognl(
-                "request.body['values']['report_period_offset'] == null ? null : request.body['values']['report_period_offset']['value']" )
-            .transform( datasonnet( "resource:classpath:webhook.ds", String.class, "application/x-java-object",
-                "application/json" ) )
+            .idempotentConsumer( simple( "${body.uuid}" ) ).idempotentRepository( seenFlowRunRepository )
+            .log( LoggingLevel.DEBUG, LOGGER, "Queuing flow run ${body.uuid} for flow ${header.flowUuid}" )
+            .process( this::countQueuedFlowRun )
+            .setHeader( "dataSetCode", simple( "${body.dataSetCode}" ) )
+            .setHeader( "orgUnitId", simple( "${body.orgUnitId}" ) )
+            .setHeader( "reportPeriodOffset", simple( "${body.reportPeriodOffset}" ) )
+            .transform( simple( "${body.payload}" ) )
+            .setHeader( "JMSXGroupID", reportGroupIdExpr )
             .to( "jms:queue:dhis2AggregateReports?exchangePattern=InOnly" )
             .log( LoggingLevel.DEBUG, LOGGER,
                 "Enqueued aggregate report flow run [data set code = ${header.dataSetCode}, report period offset = ${header.reportPeriodOffset}, content = ${body}]" );
 
         from( "direct:queueProgramStageEvent" )
             .routeId( "Queue Program Stage Event" )
-            .setHeader( "eventId", simple( "${body[values][event_id][value]}" ) )
-            .transform( datasonnet( "resource:classpath:webhook.ds", String.class, "application/x-java-object",
-                "application/json" ) )
+            .idempotentConsumer( simple( "${body.uuid}" ) ).idempotentRepository( seenFlowRunRepository )
+            .log( LoggingLevel.DEBUG, LOGGER, "Queuing flow run ${body.uuid} for flow ${header.flowUuid}" )
+            .process( this::countQueuedFlowRun )
+            .setHeader( "eventId", simple( "${body.eventId}" ) )
+            .transform( simple( "${body.payload}" ) )
             .to( "jms:queue:dhis2ProgramStageEvents?exchangePattern=InOnly" )
             .log( LoggingLevel.DEBUG, LOGGER, "Enqueued program stage event flow run [event Id = ${header.eventId}]" );
     }
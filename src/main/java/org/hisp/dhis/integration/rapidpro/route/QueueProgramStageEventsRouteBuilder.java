@@ -30,6 +30,7 @@ package org.hisp.dhis.integration.rapidpro.route;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
+import org.hisp.dhis.integration.rapidpro.Dhis2ConcurrencyLimiter;
 import org.hisp.dhis.integration.rapidpro.aggregationStrategy.AttributesAggrStrategy;
 import org.hisp.dhis.integration.rapidpro.aggregationStrategy.ProgramStageEventsAggrStrategy;
 import org.hisp.dhis.integration.rapidpro.aggregationStrategy.TrackedEntityIdAggrStrategy;
@@ -66,6 +67,9 @@ public class QueueProgramStageEventsRouteBuilder extends AbstractRouteBuilder
     @Autowired
     private EventStatusUpdateProcessor eventStatusUpdateProcessor;
 
+    @Autowired
+    private Dhis2ConcurrencyLimiter dhis2ConcurrencyLimiter;
+
     @Override
     protected void doConfigure()
         throws
@@ -124,7 +128,9 @@ public class QueueProgramStageEventsRouteBuilder extends AbstractRouteBuilder
             .routeId( "Update DHIS Program Stage Event Status" )
             .process( eventStatusUpdateProcessor )
             .marshal().json().convertBodyTo( String.class )
-            .toD( "dhis2://post/resource?path=tracker&inBody=resource&client=#dhis2Client" )
+            .policy( dhis2ConcurrencyLimiter.policy( "tracker" ) )
+                .toD( "dhis2://post/resource?path=tracker&inBody=resource&client=#dhis2Client" )
+            .end()
             .unmarshal().json()
             .choice().when( simple( "${body['status']} == 'SUCCESS' || ${body['status']} == 'OK'" ) )
                 .log( LoggingLevel.DEBUG, LOGGER, "Successfully updated DHIS program stage event status for event with ID => ${exchangeProperty.eventPayload['event']}" )
@@ -30,6 +30,7 @@ package org.hisp.dhis.integration.rapidpro.route;
 import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
 import org.hisp.dhis.api.model.v40_0.User;
+import org.hisp.dhis.integration.rapidpro.ContactDirectory;
 import org.hisp.dhis.integration.rapidpro.IsContactPoint;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -44,6 +45,9 @@ public class SyncRouteBuilder extends AbstractRouteBuilder
     @Autowired
     private IsContactPoint isContactPoint;
 
+    @Autowired
+    private ContactDirectory contactDirectory;
+
     @Value( "${org.unit.id.scheme}" )
     private String orgUnitIdScheme;
 
@@ -100,7 +104,8 @@ public class SyncRouteBuilder extends AbstractRouteBuilder
                     .log( LoggingLevel.DEBUG, LOGGER, "Updating RapidPro contact for DHIS2 user ${exchangeProperty.dhis2UserId}" )
                     .setHeader( "uuid" ).groovy( "variables.rapidProContact.iterator().next().uuid" )
                     .to( "kamelet:hie-rapidpro-create-or-update-contact-sink?rapidProApiToken={{rapidpro.api.token}}&rapidProApiUrl={{rapidpro.api.url}}&httpOkStatusRange=200-499" )
-            .end();
+            .end()
+            .process( exchange -> contactDirectory.putContact( exchange.getMessage().getBody( String.class ) ) );
 
     }
 }
@@ -29,11 +29,16 @@ package org.hisp.dhis.integration.rapidpro.route;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
+import org.hisp.dhis.integration.rapidpro.expression.ReportGroupIdExpr;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 @Component
 public class WebHookRouteBuilder extends AbstractRouteBuilder
 {
+    @Autowired
+    private ReportGroupIdExpr reportGroupIdExpr;
+
     @Override
     protected void doConfigure()
     {
@@ -41,6 +46,7 @@ public class WebHookRouteBuilder extends AbstractRouteBuilder
             .precondition( "{{rapidpro.webhook.enabled}}" )
             .routeId( "RapidPro Webhook" )
             .removeHeader( Exchange.HTTP_URI )
+            .setHeader( "JMSXGroupID", reportGroupIdExpr )
             .to( "jms:queue:dhis2AggregateReports?exchangePattern=InOnly" )
             .log( LoggingLevel.DEBUG, LOGGER, "Enqueued webhook message [data set code = ${header.dataSetCode},report period offset = ${header.reportPeriodOffset},orgUnitId = ${header.orgUnitId},content = ${body}]" )
             .setHeader( Exchange.HTTP_RESPONSE_CODE, constant( 202 ) )
@@ -37,3 +37,41 @@ CREATE TABLE IF NOT EXISTS EVENT_SUCCESS_LOG (
     event_id                VARCHAR                             NOT NULL,
     created_at              TIMESTAMP WITH TIME ZONE            NOT NULL DEFAULT CURRENT_TIMESTAMP
 );
+
+CREATE TABLE IF NOT EXISTS SEEN_FLOW_RUN (
+    run_uuid    VARCHAR                   PRIMARY KEY,
+    seen_at     TIMESTAMP WITH TIME ZONE  NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE TABLE IF NOT EXISTS PENDING_FLOW_RUN (
+    run_uuid    VARCHAR                   PRIMARY KEY,
+    flow_uuid   VARCHAR                   NOT NULL,
+    created_at  TIMESTAMP WITH TIME ZONE  NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    checked_at  TIMESTAMP WITH TIME ZONE  NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE TABLE IF NOT EXISTS CONTACT_DIRECTORY (
+    contact_uuid  VARCHAR                   PRIMARY KEY,
+    org_unit_id   VARCHAR                   NOT NULL,
+    updated_at    TIMESTAMP WITH TIME ZONE  NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE TABLE IF NOT EXISTS REPORT_IMPORT_JOB (
+    job_id                  VARCHAR                             PRIMARY KEY,
+    job_type                VARCHAR                             NOT NULL,
+    dhis_request            VARCHAR                             NOT NULL,
+    rapidpro_payload        VARCHAR                             NOT NULL,
+    data_set_code           VARCHAR                             NOT NULL,
+    report_period_offset    INTEGER                             NOT NULL,
+    organisation_unit_id    VARCHAR,
+    period                  VARCHAR                             NOT NULL,
+    attempts                INTEGER                             NOT NULL DEFAULT 0,
+    created_at              TIMESTAMP WITH TIME ZONE            NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+ALTER TABLE REPORT_SUCCESS_LOG ALTER COLUMN dhis_request DROP NOT NULL;
+ALTER TABLE REPORT_SUCCESS_LOG ALTER COLUMN dhis_response DROP NOT NULL;
+ALTER TABLE REPORT_SUCCESS_LOG ALTER COLUMN rapidpro_payload DROP NOT NULL;
+ALTER TABLE REPORT_SUCCESS_LOG ADD COLUMN IF NOT EXISTS dhis_request_gz BYTEA;
+ALTER TABLE REPORT_SUCCESS_LOG ADD COLUMN IF NOT EXISTS dhis_response_gz BYTEA;
+ALTER TABLE REPORT_SUCCESS_LOG ADD COLUMN IF NOT EXISTS rapidpro_payload_gz BYTEA;
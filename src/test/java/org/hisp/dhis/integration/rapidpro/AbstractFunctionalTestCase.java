@@ -112,12 +112,17 @@ public class AbstractFunctionalTestCase
         System.clearProperty( "org.unit.id.scheme" );
         System.clearProperty( "reminder.data.set.codes" );
         System.clearProperty( "report.delivery.schedule.expression" );
+        System.clearProperty( "report.delivery.async.job.max.attempts" );
         System.clearProperty( "rapidpro.flow.uuids" );
         System.clearProperty( "rapidpro.webhook.enabled" );
+        System.clearProperty( "scan.reports.streaming" );
 
         jdbcTemplate.execute( "TRUNCATE TABLE MESSAGE_STORE" );
         jdbcTemplate.execute( "TRUNCATE TABLE REPORT_SUCCESS_LOG" );
         jdbcTemplate.execute( "TRUNCATE TABLE MESSAGES" );
+        jdbcTemplate.execute( "TRUNCATE TABLE SEEN_FLOW_RUN" );
+        jdbcTemplate.execute( "TRUNCATE TABLE CONTACT_DIRECTORY" );
+        jdbcTemplate.execute( "TRUNCATE TABLE REPORT_IMPORT_JOB" );
 
         for ( Map<String, Object> contact : fetchRapidProContacts() )
         {
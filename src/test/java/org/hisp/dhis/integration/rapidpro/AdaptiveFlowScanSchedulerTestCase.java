@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AdaptiveFlowScanSchedulerTestCase
+{
+    private AdaptiveFlowScanScheduler adaptiveFlowScanScheduler;
+
+    @BeforeEach
+    public void beforeEach()
+    {
+        adaptiveFlowScanScheduler = new AdaptiveFlowScanScheduler();
+        ReflectionTestUtils.setField( adaptiveFlowScanScheduler, "minIntervalInMillis", 1000L );
+        ReflectionTestUtils.setField( adaptiveFlowScanScheduler, "maxIntervalInMillis", 8000L );
+        ReflectionTestUtils.setField( adaptiveFlowScanScheduler, "maxScansPerMinute", 60 );
+    }
+
+    @Test
+    public void testDueFlowUuidsGivenIdleAndBusyFlows()
+    {
+        assertEquals( List.of( "idle", "busy" ), adaptiveFlowScanScheduler.dueFlowUuids( List.of( "idle", "busy" ), 0 ) );
+        assertTrue( adaptiveFlowScanScheduler.dueFlowUuids( List.of( "idle", "busy" ), 0 ).isEmpty() );
+
+        adaptiveFlowScanScheduler.scanned( "idle", 0, 0 );
+        adaptiveFlowScanScheduler.scanned( "busy", 10, 0 );
+        assertEquals( List.of( "busy" ), adaptiveFlowScanScheduler.dueFlowUuids( List.of( "idle", "busy" ), 1000 ) );
+        assertEquals( List.of( "idle" ), adaptiveFlowScanScheduler.dueFlowUuids( List.of( "idle", "busy" ), 2000 ) );
+
+        adaptiveFlowScanScheduler.scanned( "idle", 0, 2000 );
+        adaptiveFlowScanScheduler.scanned( "idle", 0, 2000 );
+        adaptiveFlowScanScheduler.scanned( "idle", 0, 2000 );
+        assertEquals( 8000L,
+            adaptiveFlowScanScheduler.flowScanIntervals().get( "idle" ).get( "intervalInMillis" ) );
+    }
+
+    @Test
+    public void testScannedDrivesIntervalFromRunArrivalRate()
+    {
+        ReflectionTestUtils.setField( adaptiveFlowScanScheduler, "maxIntervalInMillis", 600000L );
+        adaptiveFlowScanScheduler.dueFlowUuids( List.of( "steady" ), 0 );
+        for ( long now = 10000; now <= 200000; now += 10000 )
+        {
+            adaptiveFlowScanScheduler.scanned( "steady", 1, now );
+        }
+        Map<String, Object> flowScanInterval = adaptiveFlowScanScheduler.flowScanIntervals().get( "steady" );
+        assertEquals( 6, (double) flowScanInterval.get( "runsPerMinute" ), 0.01 );
+        assertEquals( 10000, (long) flowScanInterval.get( "intervalInMillis" ), 100 );
+
+        adaptiveFlowScanScheduler.scanned( "steady", 0, 210000 );
+        assertEquals( 14285,
+            (long) adaptiveFlowScanScheduler.flowScanIntervals().get( "steady" ).get( "intervalInMillis" ), 100 );
+    }
+
+    @Test
+    public void testDueFlowUuidsGivenExhaustedBudget()
+    {
+        ReflectionTestUtils.setField( adaptiveFlowScanScheduler, "maxScansPerMinute", 2 );
+        assertEquals( List.of( "a", "b" ), adaptiveFlowScanScheduler.dueFlowUuids( List.of( "a", "b", "c" ), 0 ) );
+        adaptiveFlowScanScheduler.scanned( "a", 1, 0 );
+        assertTrue( adaptiveFlowScanScheduler.dueFlowUuids( List.of( "a", "b", "c" ), 30000 ).isEmpty() );
+        assertEquals( List.of( "c", "a" ), adaptiveFlowScanScheduler.dueFlowUuids( List.of( "a", "b", "c" ), 60000 ) );
+    }
+
+    @Test
+    public void testDueFlowUuidsGivenRemovedFlow()
+    {
+        adaptiveFlowScanScheduler.dueFlowUuids( List.of( "a", "b" ), 0 );
+        adaptiveFlowScanScheduler.dueFlowUuids( List.of( "a" ), 0 );
+        assertEquals( 1, adaptiveFlowScanScheduler.flowScanIntervals().size() );
+    }
+}
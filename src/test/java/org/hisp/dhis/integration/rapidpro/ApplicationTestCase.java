@@ -27,6 +27,7 @@
  */
 package org.hisp.dhis.integration.rapidpro;
 
+import okhttp3.OkHttpClient;
 import org.hisp.dhis.integration.sdk.Dhis2ClientBuilder;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
@@ -184,6 +185,7 @@ public class ApplicationTestCase
         Application application = new Application();
         application.setRapidProApiUrl( Environment.RAPIDPRO_API_URL );
         application.setRapidProApiToken( Environment.RAPIDPRO_API_TOKEN );
+        application.setRapidProHttpClient( new OkHttpClient() );
         application.testRapidProConnection();
     }
 
@@ -252,6 +254,7 @@ public class ApplicationTestCase
         application.setRapidProApiUrl(
             String.format( "http://localhost:%s/anything", Environment.HTTPBIN_CONTAINER.getFirstMappedPort() ) );
         application.setRapidProApiToken( "98f3fe494b94742cf577f442e2cc175ae4f635a5" );
+        application.setRapidProHttpClient( new OkHttpClient() );
         assertThrows( TerminateException.class, application::testRapidProConnection );
     }
 
@@ -271,6 +274,7 @@ public class ApplicationTestCase
         };
         application.setRapidProApiUrl( Environment.RAPIDPRO_API_URL );
         application.setRapidProApiToken( "98f3fe494b94742cf577f442e2cc175ae4f635a5" );
+        application.setRapidProHttpClient( new OkHttpClient() );
         assertThrows( TerminateException.class, application::testRapidProConnection );
     }
 
@@ -289,6 +293,7 @@ public class ApplicationTestCase
         };
         application.setRapidProApiUrl( "http://rapidpro.test/api/v2" );
         application.setRapidProApiToken( Environment.RAPIDPRO_API_TOKEN );
+        application.setRapidProHttpClient( new OkHttpClient() );
         assertThrows( TerminateException.class, application::testRapidProConnection );
     }
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class CategoryOptionComboIndexTestCase
+{
+    private AtomicInteger fetchCount;
+
+    private CategoryOptionComboIndex categoryOptionComboIndex;
+
+    @BeforeEach
+    public void beforeEach()
+    {
+        fetchCount = new AtomicInteger();
+        categoryOptionComboIndex = new CategoryOptionComboIndex( 3600, 900 )
+        {
+            @Override
+            protected Map<String, String> fetchCategoryOptionComboCodes()
+            {
+                fetchCount.incrementAndGet();
+                return Map.of( "mal-0514y", "MAL-0514Y", "mal-1564y", "MAL-1564Y" );
+            }
+        };
+    }
+
+    @Test
+    public void testGetCode()
+    {
+        assertEquals( "MAL-0514Y", categoryOptionComboIndex.getCode( "mal-0514y" ) );
+        assertEquals( "MAL-1564Y", categoryOptionComboIndex.getCode( "Mal-1564Y" ) );
+        assertNull( categoryOptionComboIndex.getCode( "mal-0514" ) );
+        assertEquals( 1, fetchCount.get() );
+        assertEquals( 2, categoryOptionComboIndex.statistics().get( "size" ) );
+        assertEquals( 3L, categoryOptionComboIndex.statistics().get( "lookups" ) );
+    }
+
+    @Test
+    public void testInvalidate()
+    {
+        categoryOptionComboIndex.getCode( "mal-0514y" );
+        categoryOptionComboIndex.invalidate();
+        categoryOptionComboIndex.getCode( "mal-0514y" );
+        assertEquals( 2, fetchCount.get() );
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CompleteDataSetRegistrationBatcherTestCase
+{
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private List<Map<String, Object>> postedRegistrations;
+
+    private CompleteDataSetRegistrationBatcher completeDataSetRegistrationBatcher;
+
+    @BeforeEach
+    public void beforeEach()
+    {
+        postedRegistrations = Collections.synchronizedList( new ArrayList<>() );
+        completeDataSetRegistrationBatcher = new CompleteDataSetRegistrationBatcher( 3, 60000 )
+        {
+            @Override
+            protected Map<String, Object> importRegistrations( Map<String, String> queryParams,
+                Map<String, Object> completeDataSetRegistrations )
+            {
+                postedRegistrations.add( completeDataSetRegistrations );
+                // reports are submitted from several threads so the index of OU_B varies
+                List<Map<String, Object>> registrations = (List<Map<String, Object>>) completeDataSetRegistrations.get(
+                    "completeDataSetRegistrations" );
+                int index = registrations.indexOf( registration( "OU_B" ) );
+                return Map.of( "status", "OK", "response", Map.of( "status", "WARNING", "importCount",
+                    Map.of( "imported", 1, "ignored", 1 ), "conflicts",
+                    List.of( Map.of( "object", "OU_B", "value", "Organisation unit not found", "indexes",
+                        List.of( index ) ) ) ) );
+            }
+        };
+        ReflectionTestUtils.setField( completeDataSetRegistrationBatcher, "objectMapper", objectMapper );
+    }
+
+    private Map<String, Object> registration( String orgUnitId )
+    {
+        return Map.of( "completed", true, "dataSet", "MAL_YEARLY", "organisationUnit", orgUnitId, "period", "2021" );
+    }
+
+    private Map<String, Object> readImportSummary( String importSummary )
+        throws
+        Exception
+    {
+        return objectMapper.readValue( importSummary, Map.class );
+    }
+
+    @Test
+    public void testSubmitPostsUniqueRegistrationsOnceAndPinsConflicts()
+        throws
+        Exception
+    {
+        CompletableFuture<String> firstReport = CompletableFuture.supplyAsync(
+            () -> completeDataSetRegistrationBatcher.submit( Map.of(), registration( "OU_A" ) ) );
+        CompletableFuture<String> secondReport = CompletableFuture.supplyAsync(
+            () -> completeDataSetRegistrationBatcher.submit( Map.of(), registration( "OU_A" ) ) );
+        String thirdImportSummary = completeDataSetRegistrationBatcher.submit( Map.of(), registration( "OU_B" ) );
+
+        assertEquals( 1, postedRegistrations.size() );
+        assertEquals( 2,
+            ((List<?>) postedRegistrations.get( 0 ).get( "completeDataSetRegistrations" )).size() );
+
+        assertEquals( "SUCCESS", readImportSummary( firstReport.get() ).get( "status" ) );
+        assertEquals( "SUCCESS", readImportSummary( secondReport.get() ).get( "status" ) );
+        Map<String, Object> importSummary = readImportSummary( thirdImportSummary );
+        assertEquals( "WARNING", importSummary.get( "status" ) );
+        assertEquals( 1, ((List<?>) importSummary.get( "conflicts" )).size() );
+    }
+
+    @Test
+    @Timeout( 10 )
+    public void testSubmitPostsImmediatelyGivenSingleConcurrentCaller()
+        throws
+        Exception
+    {
+        ReflectionTestUtils.setField( completeDataSetRegistrationBatcher, "maxConcurrentCallers", 1 );
+        String importSummary = completeDataSetRegistrationBatcher.submit( Map.of(), registration( "OU_B" ) );
+
+        assertEquals( 1, postedRegistrations.size() );
+        assertEquals( "WARNING", readImportSummary( importSummary ).get( "status" ) );
+    }
+
+    @Test
+    public void testSplitImportSummaryGivesUnattributedConflictsToAllRegistrations()
+    {
+        List<Map<String, Object>> registrations = List.of( registration( "OU_A" ), registration( "OU_B" ) );
+        List<Map<String, Object>> registrationImportSummaries = completeDataSetRegistrationBatcher.splitImportSummary(
+            registrations, registrations,
+            Map.of( "status", "WARNING", "conflicts", List.of( Map.of( "value", "Data set is locked" ) ) ) );
+
+        assertEquals( "WARNING", registrationImportSummaries.get( 0 ).get( "status" ) );
+        assertEquals( "WARNING", registrationImportSummaries.get( 1 ).get( "status" ) );
+    }
+
+    @Test
+    public void testSplitImportSummaryDoesNotPinConflictsByASingleSharedValue()
+    {
+        List<Map<String, Object>> registrations = List.of( registration( "OU_A" ), registration( "OU_B" ),
+            Map.of( "completed", true, "dataSet", "MAL_MONTHLY", "organisationUnit", "OU_C", "period", "202101" ) );
+        List<Map<String, Object>> registrationImportSummaries = completeDataSetRegistrationBatcher.splitImportSummary(
+            registrations, registrations, Map.of( "status", "WARNING", "conflicts",
+                List.of( Map.of( "object", "MAL_YEARLY", "value", "Data set is locked" ) ) ) );
+
+        // the conflict cannot be attributed to a single registration so the batch fails as a whole
+        for ( Map<String, Object> registrationImportSummary : registrationImportSummaries )
+        {
+            assertEquals( "WARNING", registrationImportSummary.get( "status" ) );
+        }
+    }
+
+    @Test
+    public void testSplitImportSummaryPinsConflictsByObjects()
+    {
+        List<Map<String, Object>> registrations = List.of( registration( "OU_A" ), registration( "OU_B" ),
+            registration( "OU_A" ) );
+        List<Map<String, Object>> postedRegistrations = List.of( registration( "OU_A" ), registration( "OU_B" ) );
+        List<Map<String, Object>> registrationImportSummaries = completeDataSetRegistrationBatcher.splitImportSummary(
+            registrations, postedRegistrations, Map.of( "status", "WARNING", "conflicts", List.of(
+                Map.of( "object", "OU_A", "value", "Period is locked", "objects",
+                    Map.of( "dataSet", "MAL_YEARLY", "organisationUnit", "OU_A", "period", "2021" ) ) ) ) );
+
+        assertEquals( "WARNING", registrationImportSummaries.get( 0 ).get( "status" ) );
+        assertEquals( "SUCCESS", registrationImportSummaries.get( 1 ).get( "status" ) );
+        assertEquals( "WARNING", registrationImportSummaries.get( 2 ).get( "status" ) );
+    }
+}
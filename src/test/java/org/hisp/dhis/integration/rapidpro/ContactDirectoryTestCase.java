@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class ContactDirectoryTestCase
+{
+    private JdbcTemplate jdbcTemplate;
+
+    private ContactDirectory contactDirectory;
+
+    @BeforeEach
+    public void beforeEach()
+    {
+        jdbcTemplate = new JdbcTemplate(
+            new DriverManagerDataSource( "jdbc:h2:mem:contactDirectoryTestCase;DB_CLOSE_DELAY=-1" ) );
+        jdbcTemplate.execute(
+            "CREATE TABLE IF NOT EXISTS CONTACT_DIRECTORY (contact_uuid VARCHAR PRIMARY KEY, org_unit_id VARCHAR NOT NULL, updated_at TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT CURRENT_TIMESTAMP)" );
+        jdbcTemplate.execute( "TRUNCATE TABLE CONTACT_DIRECTORY" );
+
+        contactDirectory = newContactDirectory();
+    }
+
+    private ContactDirectory newContactDirectory()
+    {
+        return newContactDirectory( 86400 );
+    }
+
+    private ContactDirectory newContactDirectory( long ttlInSeconds )
+    {
+        ContactDirectory newContactDirectory = new ContactDirectory( 2, ttlInSeconds );
+        ReflectionTestUtils.setField( newContactDirectory, "jdbcTemplate", jdbcTemplate );
+        ReflectionTestUtils.setField( newContactDirectory, "objectMapper", new ObjectMapper() );
+        ReflectionTestUtils.setField( newContactDirectory, "selectSql",
+            "SELECT org_unit_id FROM CONTACT_DIRECTORY WHERE contact_uuid = ? AND updated_at > ?" );
+        ReflectionTestUtils.setField( newContactDirectory, "upsertSql",
+            "MERGE INTO CONTACT_DIRECTORY (contact_uuid, org_unit_id, updated_at) VALUES (?, ?, CURRENT_TIMESTAMP)" );
+        ReflectionTestUtils.setField( newContactDirectory, "deleteSql",
+            "DELETE FROM CONTACT_DIRECTORY WHERE contact_uuid = ?" );
+        ReflectionTestUtils.setField( newContactDirectory, "deleteAllSql", "DELETE FROM CONTACT_DIRECTORY" );
+        return newContactDirectory;
+    }
+
+    @Test
+    public void testPut()
+    {
+        assertNull( contactDirectory.getOrgUnitId( "foo" ) );
+        contactDirectory.put( "foo", "fdc6uOvgoji" );
+        contactDirectory.put( "bar", "ImspTQPwCqd" );
+        contactDirectory.put( "bar", "O6uvpzGd5pu" );
+        assertEquals( "fdc6uOvgoji", contactDirectory.getOrgUnitId( "foo" ) );
+
+        ContactDirectory reloadedContactDirectory = newContactDirectory();
+        assertEquals( "fdc6uOvgoji", reloadedContactDirectory.getOrgUnitId( "foo" ) );
+        assertEquals( "O6uvpzGd5pu", reloadedContactDirectory.getOrgUnitId( "bar" ) );
+    }
+
+    @Test
+    public void testGetOrgUnitIdGivenExpiredEntry()
+    {
+        contactDirectory.put( "foo", "fdc6uOvgoji" );
+        jdbcTemplate.update( "UPDATE CONTACT_DIRECTORY SET updated_at = DATEADD( 'HOUR', -2, CURRENT_TIMESTAMP )" );
+
+        assertEquals( "fdc6uOvgoji", newContactDirectory( 10800 ).getOrgUnitId( "foo" ) );
+        ContactDirectory expiringContactDirectory = newContactDirectory( 3600 );
+        assertNull( expiringContactDirectory.getOrgUnitId( "foo" ) );
+
+        expiringContactDirectory.put( "foo", "fdc6uOvgoji" );
+        assertEquals( "fdc6uOvgoji", newContactDirectory( 3600 ).getOrgUnitId( "foo" ) );
+    }
+
+    @Test
+    public void testInvalidate()
+    {
+        contactDirectory.put( "foo", "fdc6uOvgoji" );
+        contactDirectory.put( "bar", "ImspTQPwCqd" );
+        assertEquals( "fdc6uOvgoji", contactDirectory.getOrgUnitId( "foo" ) );
+
+        contactDirectory.invalidate( "foo" );
+        assertNull( contactDirectory.getOrgUnitId( "foo" ) );
+        assertEquals( "ImspTQPwCqd", contactDirectory.getOrgUnitId( "bar" ) );
+        assertEquals( 1L, contactDirectory.statistics().get( "size" ) );
+
+        contactDirectory.invalidate( null );
+        assertNull( contactDirectory.getOrgUnitId( "bar" ) );
+        assertEquals( 0, jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM CONTACT_DIRECTORY", Integer.class ) );
+    }
+
+    @Test
+    public void testGetContactOrgUnitId()
+    {
+        contactDirectory.put( "foo", "fdc6uOvgoji" );
+        assertEquals( "fdc6uOvgoji", contactDirectory.getContactOrgUnitId( Map.of( "uuid", "foo" ) ) );
+        assertEquals( "ImspTQPwCqd", contactDirectory.getContactOrgUnitId(
+            Map.of( "uuid", "foo", "fields", Map.of( "dhis2_organisation_unit_id", "ImspTQPwCqd" ) ) ) );
+        assertEquals( "ImspTQPwCqd", newContactDirectory().getOrgUnitId( "foo" ) );
+        assertNull( contactDirectory.getContactOrgUnitId( Map.of( "uuid", "bar", "fields", Map.of() ) ) );
+    }
+
+    @Test
+    public void testPutContact()
+    {
+        contactDirectory.putContact(
+            "{\"uuid\": \"foo\", \"name\": \"John Doe\", \"fields\": {\"dhis2_organisation_unit_id\": \"fdc6uOvgoji\", \"dhis2_user_id\": \"xE7jOejl9FI\"}}" );
+        contactDirectory.putContact( "{\"detail\": \"Not found.\"}" );
+        contactDirectory.putContact( "Bad Gateway" );
+        contactDirectory.putContact( null );
+
+        assertEquals( "fdc6uOvgoji", contactDirectory.getOrgUnitId( "foo" ) );
+        assertEquals( 1, jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM CONTACT_DIRECTORY", Integer.class ) );
+    }
+}
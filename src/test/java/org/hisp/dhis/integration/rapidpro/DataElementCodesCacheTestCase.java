@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class DataElementCodesCacheTestCase
+{
+    private AtomicInteger fetchCount;
+
+    private DataElementCodesCache dataElementCodesCache;
+
+    @BeforeEach
+    public void beforeEach()
+    {
+        fetchCount = new AtomicInteger();
+        dataElementCodesCache = new DataElementCodesCache( 10, 3600, 900 )
+        {
+            @Override
+            protected List<String> fetchDataElementCodes( String dataSetCode )
+            {
+                fetchCount.incrementAndGet();
+                return List.of( dataSetCode + "_DE" );
+            }
+        };
+    }
+
+    @Test
+    public void testGet()
+    {
+        assertEquals( List.of( "foo_DE" ), dataElementCodesCache.get( "foo" ) );
+        assertEquals( List.of( "foo_DE" ), dataElementCodesCache.get( "foo" ) );
+        assertEquals( List.of( "bar_DE" ), dataElementCodesCache.get( "bar" ) );
+        assertEquals( 2, fetchCount.get() );
+
+        assertEquals( 2L, dataElementCodesCache.statistics().get( "size" ) );
+        assertEquals( 1L, dataElementCodesCache.statistics().get( "hits" ) );
+        assertEquals( 2L, dataElementCodesCache.statistics().get( "misses" ) );
+        assertEquals( 2L, dataElementCodesCache.statistics().get( "loads" ) );
+    }
+
+    @Test
+    public void testInvalidate()
+    {
+        dataElementCodesCache.get( "foo" );
+        dataElementCodesCache.get( "bar" );
+
+        dataElementCodesCache.invalidate( "foo" );
+        dataElementCodesCache.get( "foo" );
+        dataElementCodesCache.get( "bar" );
+        assertEquals( 3, fetchCount.get() );
+
+        dataElementCodesCache.invalidate( null );
+        dataElementCodesCache.get( "foo" );
+        dataElementCodesCache.get( "bar" );
+        assertEquals( 5, fetchCount.get() );
+    }
+}
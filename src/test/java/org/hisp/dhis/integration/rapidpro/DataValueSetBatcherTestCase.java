@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class DataValueSetBatcherTestCase
+{
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private List<Map<String, Object>> importedDataValueSets;
+
+    private Function<Map<String, Object>, Map<String, Object>> importSummaryFunction;
+
+    @BeforeEach
+    public void beforeEach()
+    {
+        importedDataValueSets = Collections.synchronizedList( new ArrayList<>() );
+        importSummaryFunction = dataValueSet -> Map.of( "status", "SUCCESS", "importCount", Map.of( "imported", 2 ),
+            "conflicts", List.of() );
+    }
+
+    private DataValueSetBatcher newDataValueSetBatcher( int maxSize, long windowInMillis )
+    {
+        DataValueSetBatcher dataValueSetBatcher = new DataValueSetBatcher( maxSize, windowInMillis )
+        {
+            @Override
+            protected Map<String, Object> importDataValueSet( Map<String, String> queryParams,
+                Map<String, Object> dataValueSet )
+            {
+                importedDataValueSets.add( dataValueSet );
+                return importSummaryFunction.apply( dataValueSet );
+            }
+        };
+        ReflectionTestUtils.setField( dataValueSetBatcher, "objectMapper", objectMapper );
+        return dataValueSetBatcher;
+    }
+
+    private String dataValueSet( String orgUnit, String... dataElements )
+        throws
+        Exception
+    {
+        return completedDataValueSet( "2022-11-17", orgUnit, dataElements );
+    }
+
+    private String completedDataValueSet( String completedDate, String orgUnit, String... dataElements )
+        throws
+        Exception
+    {
+        List<Map<String, Object>> dataValues = new ArrayList<>();
+        for ( String dataElement : dataElements )
+        {
+            dataValues.add( Map.of( "dataElement", dataElement, "value", "1" ) );
+        }
+        return objectMapper.writeValueAsString(
+            Map.of( "dataSet", "MAL_YEARLY", "orgUnit", orgUnit, "period", "2021", "completedDate", completedDate,
+                "dataValues", dataValues ) );
+    }
+
+    private Map<String, Object> readImportSummary( String importSummary )
+        throws
+        Exception
+    {
+        return objectMapper.readValue( importSummary, Map.class );
+    }
+
+    @Test
+    public void testSubmitImportsFullBatchOnce()
+        throws
+        Exception
+    {
+        DataValueSetBatcher dataValueSetBatcher = newDataValueSetBatcher( 2, 60000 );
+        CompletableFuture<String> firstReport = CompletableFuture.supplyAsync(
+            () -> dataValueSetBatcher.submit( "MAL_YEARLY", Map.of(), unchecked( "OU_A", "DE_1" ) ) );
+        String secondImportSummary = dataValueSetBatcher.submit( "MAL_YEARLY", Map.of(),
+            dataValueSet( "OU_B", "DE_1", "DE_2" ) );
+
+        assertEquals( "SUCCESS", readImportSummary( firstReport.get() ).get( "status" ) );
+        assertEquals( "SUCCESS", readImportSummary( secondImportSummary ).get( "status" ) );
+        assertEquals( 1, importedDataValueSets.size() );
+
+        List<Map<String, Object>> dataValues = (List<Map<String, Object>>) importedDataValueSets.get( 0 )
+            .get( "dataValues" );
+        assertEquals( 3, dataValues.size() );
+        assertEquals( "MAL_YEARLY", importedDataValueSets.get( 0 ).get( "dataSet" ) );
+        assertEquals( 2, dataValues.stream().filter( v -> v.get( "orgUnit" ).equals( "OU_B" ) ).count() );
+        assertEquals( "2021", dataValues.get( 0 ).get( "period" ) );
+        assertEquals( "2022-11-17", importedDataValueSets.get( 0 ).get( "completedDate" ) );
+    }
+
+    @Test
+    public void testSubmitBatchesOnlyReportsWithIdenticalDataValueSetFields()
+        throws
+        Exception
+    {
+        DataValueSetBatcher dataValueSetBatcher = newDataValueSetBatcher( 2, 200 );
+        CompletableFuture<String> firstReport = CompletableFuture.supplyAsync(
+            () -> dataValueSetBatcher.submit( "MAL_YEARLY", Map.of(), unchecked( "OU_A", "DE_1" ) ) );
+        String secondImportSummary = dataValueSetBatcher.submit( "MAL_YEARLY", Map.of(),
+            completedDataValueSet( "2022-11-18", "OU_B", "DE_1" ) );
+
+        assertEquals( "SUCCESS", readImportSummary( firstReport.get() ).get( "status" ) );
+        assertEquals( "SUCCESS", readImportSummary( secondImportSummary ).get( "status" ) );
+        assertEquals( 2, importedDataValueSets.size() );
+        assertEquals( List.of( "2022-11-17", "2022-11-18" ),
+            importedDataValueSets.stream().map( dataValueSet -> (String) dataValueSet.get( "completedDate" ) )
+                .sorted().toList() );
+    }
+
+    @Test
+    public void testSubmitImportsPartialBatchWhenWindowElapses()
+        throws
+        Exception
+    {
+        DataValueSetBatcher dataValueSetBatcher = newDataValueSetBatcher( 10, 100 );
+        String importSummary = dataValueSetBatcher.submit( "MAL_YEARLY", Map.of(), dataValueSet( "OU_A", "DE_1" ) );
+
+        assertEquals( "SUCCESS", readImportSummary( importSummary ).get( "status" ) );
+        assertEquals( 1, importedDataValueSets.size() );
+    }
+
+    @Test
+    @Timeout( 10 )
+    public void testSubmitImportsImmediatelyGivenSingleConcurrentCaller()
+        throws
+        Exception
+    {
+        DataValueSetBatcher dataValueSetBatcher = newDataValueSetBatcher( 10, 60000 );
+        ReflectionTestUtils.setField( dataValueSetBatcher, "maxConcurrentCallers", 1 );
+        String importSummary = dataValueSetBatcher.submit( "MAL_YEARLY", Map.of(), dataValueSet( "OU_A", "DE_1" ) );
+
+        assertEquals( "SUCCESS", readImportSummary( importSummary ).get( "status" ) );
+        assertEquals( 1, importedDataValueSets.size() );
+    }
+
+    @Test
+    public void testSubmitImportsReportsOnTheirOwnGivenConflictSharedByReports()
+        throws
+        Exception
+    {
+        importSummaryFunction = dataValueSet -> {
+            List<Map<String, Object>> dataValues = (List<Map<String, Object>>) dataValueSet.get( "dataValues" );
+            boolean isOfOuB = dataValues.stream().anyMatch(
+                dataValue -> "OU_B".equals( dataValue.getOrDefault( "orgUnit", dataValueSet.get( "orgUnit" ) ) ) );
+            return Map.of( "status", "WARNING", "conflicts", isOfOuB ? List.of(
+                Map.of( "objects", Map.of( "dataElement", "DE_1" ), "value", "Value is not a valid number" ) ) :
+                List.of() );
+        };
+        DataValueSetBatcher dataValueSetBatcher = newDataValueSetBatcher( 2, 60000 );
+        CompletableFuture<String> firstReport = CompletableFuture.supplyAsync(
+            () -> dataValueSetBatcher.submit( "MAL_YEARLY", Map.of(), unchecked( "OU_A", "DE_1" ) ) );
+        String secondImportSummary = dataValueSetBatcher.submit( "MAL_YEARLY", Map.of(),
+            dataValueSet( "OU_B", "DE_1" ) );
+
+        assertEquals( 3, importedDataValueSets.size() );
+        assertEquals( "SUCCESS", readImportSummary( firstReport.get() ).get( "status" ) );
+        assertEquals( "WARNING", readImportSummary( secondImportSummary ).get( "status" ) );
+        assertEquals( 1, ((List<?>) readImportSummary( secondImportSummary ).get( "conflicts" )).size() );
+    }
+
+    @Test
+    public void testSubmitFailsEveryReportOfBatchGivenImportError()
+    {
+        DataValueSetBatcher dataValueSetBatcher = new DataValueSetBatcher( 1, 0 )
+        {
+            @Override
+            protected Map<String, Object> importDataValueSet( Map<String, String> queryParams,
+                Map<String, Object> dataValueSet )
+            {
+                throw new IllegalStateException( "DHIS2 is down" );
+            }
+        };
+        ReflectionTestUtils.setField( dataValueSetBatcher, "objectMapper", objectMapper );
+
+        IllegalStateException e = assertThrows( IllegalStateException.class,
+            () -> dataValueSetBatcher.submit( "MAL_YEARLY", Map.of(), dataValueSet( "OU_A", "DE_1" ) ) );
+        assertEquals( "DHIS2 is down", e.getMessage() );
+    }
+
+    @Test
+    public void testSplitImportSummaryPinsConflictsByIndex()
+        throws
+        Exception
+    {
+        List<Map<String, Object>> reports = List.of(
+            objectMapper.readValue( dataValueSet( "OU_A", "DE_1", "DE_2" ), Map.class ),
+            objectMapper.readValue( dataValueSet( "OU_B", "DE_1" ), Map.class ) );
+
+        List<Map<String, Object>> reportImportSummaries = newDataValueSetBatcher( 2, 0 ).splitImportSummary( reports,
+            Map.of( "status", "OK", "response", Map.of( "status", "WARNING", "conflicts",
+                List.of( Map.of( "object", "DE_1", "value", "Value is invalid", "indexes", List.of( 2 ) ) ) ) ) );
+
+        assertEquals( "SUCCESS", reportImportSummaries.get( 0 ).get( "status" ) );
+        assertEquals( 0, ((List<?>) reportImportSummaries.get( 0 ).get( "conflicts" )).size() );
+        assertEquals( "WARNING", reportImportSummaries.get( 1 ).get( "status" ) );
+        assertEquals( 1, ((List<?>) reportImportSummaries.get( 1 ).get( "conflicts" )).size() );
+    }
+
+    @Test
+    public void testSplitImportSummaryPinsConflictsByDataElement()
+        throws
+        Exception
+    {
+        List<Map<String, Object>> reports = List.of(
+            objectMapper.readValue( dataValueSet( "OU_A", "DE_1" ), Map.class ),
+            objectMapper.readValue( dataValueSet( "OU_B", "DE_2" ), Map.class ) );
+
+        List<Map<String, Object>> reportImportSummaries = newDataValueSetBatcher( 2, 0 ).splitImportSummary( reports,
+            Map.of( "status", "WARNING", "conflicts",
+                List.of( Map.of( "objects", Map.of( "dataElement", "DE_2" ), "value", "Data element not found" ) ) ) );
+
+        assertEquals( "SUCCESS", reportImportSummaries.get( 0 ).get( "status" ) );
+        assertEquals( 0, ((List<?>) reportImportSummaries.get( 0 ).get( "conflicts" )).size() );
+        assertEquals( "WARNING", reportImportSummaries.get( 1 ).get( "status" ) );
+        assertEquals( 1, ((List<?>) reportImportSummaries.get( 1 ).get( "conflicts" )).size() );
+    }
+
+    @Test
+    public void testSplitImportSummaryPinsConflictsByOrgUnit()
+        throws
+        Exception
+    {
+        List<Map<String, Object>> reports = List.of(
+            objectMapper.readValue( dataValueSet( "OU_A", "DE_1" ), Map.class ),
+            objectMapper.readValue( dataValueSet( "OU_B", "DE_1" ), Map.class ) );
+
+        List<Map<String, Object>> reportImportSummaries = newDataValueSetBatcher( 2, 0 ).splitImportSummary( reports,
+            Map.of( "status", "WARNING", "conflicts", List.of(
+                Map.of( "objects", Map.of( "dataElement", "DE_1", "orgUnit", "OU_B", "period", "2021" ), "value",
+                    "Period is locked" ) ) ) );
+
+        assertEquals( "SUCCESS", reportImportSummaries.get( 0 ).get( "status" ) );
+        assertEquals( "WARNING", reportImportSummaries.get( 1 ).get( "status" ) );
+        assertEquals( 1, ((List<?>) reportImportSummaries.get( 1 ).get( "conflicts" )).size() );
+    }
+
+    @Test
+    public void testSplitImportSummaryDoesNotPinConflictsBySharedDataElement()
+        throws
+        Exception
+    {
+        List<Map<String, Object>> reports = List.of(
+            objectMapper.readValue( dataValueSet( "OU_A", "DE_1" ), Map.class ),
+            objectMapper.readValue( dataValueSet( "OU_B", "DE_1" ), Map.class ),
+            objectMapper.readValue( dataValueSet( "OU_C", "DE_2" ), Map.class ) );
+
+        List<Map<String, Object>> reportImportSummaries = newDataValueSetBatcher( 3, 0 ).splitImportSummary( reports,
+            Map.of( "status", "WARNING", "conflicts",
+                List.of( Map.of( "objects", Map.of( "dataElement", "DE_1" ), "value", "Value is not a valid number" ) ) ) );
+
+        assertNull( reportImportSummaries.get( 0 ) );
+        assertNull( reportImportSummaries.get( 1 ) );
+        assertEquals( "SUCCESS", reportImportSummaries.get( 2 ).get( "status" ) );
+    }
+
+    @Test
+    public void testSplitImportSummaryDoesNotPinConflictsBySharedValue()
+        throws
+        Exception
+    {
+        List<Map<String, Object>> reports = List.of(
+            objectMapper.readValue( dataValueSet( "OU_A", "DE_1" ), Map.class ),
+            objectMapper.readValue( dataValueSet( "OU_B", "DE_2" ), Map.class ) );
+
+        List<Map<String, Object>> reportImportSummaries = newDataValueSetBatcher( 2, 0 ).splitImportSummary( reports,
+            Map.of( "status", "WARNING", "conflicts",
+                List.of( Map.of( "object", "OU_A", "value", "Organisation unit not found" ),
+                    Map.of( "object", "1", "value", "Value is not a valid number" ) ) ) );
+
+        assertNull( reportImportSummaries.get( 0 ) );
+        assertNull( reportImportSummaries.get( 1 ) );
+    }
+
+    @Test
+    public void testSplitImportSummaryFailsEveryReportGivenErrorStatus()
+        throws
+        Exception
+    {
+        List<Map<String, Object>> reports = List.of(
+            objectMapper.readValue( dataValueSet( "OU_A", "DE_1" ), Map.class ),
+            objectMapper.readValue( dataValueSet( "OU_B", "DE_2" ), Map.class ) );
+
+        List<Map<String, Object>> reportImportSummaries = newDataValueSetBatcher( 2, 0 ).splitImportSummary( reports,
+            Map.of( "status", "ERROR", "conflicts", List.of() ) );
+
+        assertEquals( "ERROR", reportImportSummaries.get( 0 ).get( "status" ) );
+        assertEquals( "ERROR", reportImportSummaries.get( 1 ).get( "status" ) );
+    }
+
+    private String unchecked( String orgUnit, String... dataElements )
+    {
+        try
+        {
+            return dataValueSet( orgUnit, dataElements );
+        }
+        catch ( Exception e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+}
@@ -144,6 +144,7 @@ public class DataValueSetDataSonnetTestCase
         exchange = new DefaultExchange( camelContext );
         exchange.getMessage().setHeader( "orgUnitId", "fdc6uOvgoji" );
         exchange.getMessage().setHeader( "dataElementCodes", dataElementCodes );
+        exchange.getMessage().setHeader( "dataElementCodeIndex", DataElementCodesCache.index( dataElementCodes ) );
         exchange.getMessage().setHeader( "period", PeriodBuilder.weekOf( new Date( 1657626227255L ) ) );
         exchange.getMessage().setHeader( "dataSetCode", "MAL_YEARLY" );
 
@@ -205,6 +206,25 @@ public class DataValueSetDataSonnetTestCase
         assertEquals( 0, logCountDownLatch.getCount() );
     }
 
+    @Test
+    public void testMappingGivenNoDataElementCodeIndexHeader()
+        throws IOException
+    {
+        exchange.getMessage().removeHeader( "dataElementCodeIndex" );
+        exchange.getMessage().setBody( OBJECT_MAPPER.readValue( StreamUtils.copyToString(
+            Thread.currentThread().getContextClassLoader().getResourceAsStream( "webhook.json" ),
+            Charset.defaultCharset() ), Map.class ) );
+
+        Map dataValueSet = new ValueBuilder( dsExpression ).evaluate( exchange, Map.class );
+
+        List<Map<String, Object>> dataValues = (List<Map<String, Object>>) dataValueSet.get( "dataValues" );
+        assertEquals( 4, dataValues.size() );
+        assertEquals( "GEN_EXT_FUND", dataValues.get( 0 ).get( "dataElement" ) );
+        assertEquals( "MAL_POP_TOTAL", dataValues.get( 1 ).get( "dataElement" ) );
+        assertEquals( "MAL_LLIN_DISTR_PW", dataValues.get( 2 ).get( "dataElement" ) );
+        assertEquals( "GEN_DOMESTIC FUND", dataValues.get( 3 ).get( "dataElement" ) );
+    }
+
     @Test
     public void testMappingGivenValidCategoryOptionComboCode()
         throws IOException
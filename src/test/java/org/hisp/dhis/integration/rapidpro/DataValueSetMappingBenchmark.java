@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import com.datasonnet.document.MediaTypes;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.language.datasonnet.DatasonnetExpression;
+import org.apache.camel.support.DefaultExchange;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per-report CPU time and allocation of mapping a RapidPro report to a data value set with the original
+ * <code>dataValueSet.ds</code>, which scanned the data set's data element codes for every result, against the current
+ * script which looks up each result in the precomputed {@link DataElementCodesCache#index(List)}. Every data element of
+ * the data set is reported. Run {@link #main(String[])} from the IDE or with <code>java -cp target/test-classes:&lt;test
+ * classpath&gt; org.hisp.dhis.integration.rapidpro.DataValueSetMappingBenchmark</code>.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class DataValueSetMappingBenchmark
+{
+    @Param( { "20", "200" } )
+    private int dataElementCount;
+
+    private CamelContext camelContext;
+
+    private DatasonnetExpression filterExpression;
+
+    private DatasonnetExpression indexExpression;
+
+    private Map<String, Object> report;
+
+    private List<String> dataElementCodes;
+
+    private Map<String, String> dataElementCodeIndex;
+
+    @Setup
+    public void setUp()
+        throws
+        IOException
+    {
+        camelContext = new DefaultCamelContext();
+        camelContext.getRegistry().bind( "native", new NativeDataSonnetLibrary() );
+        camelContext.start();
+        filterExpression = newExpression( "benchmark/dataValueSetFilter.ds" );
+        indexExpression = newExpression( "dataValueSet.ds" );
+
+        dataElementCodes = new ArrayList<>();
+        Map<String, Object> results = new LinkedHashMap<>();
+        for ( int i = 0; i < dataElementCount; i++ )
+        {
+            dataElementCodes.add( "DE CODE " + i );
+            results.put( "de_code_" + i, Map.of( "value", String.valueOf( i ), "name", "de_code_" + i ) );
+        }
+        dataElementCodeIndex = DataElementCodesCache.index( dataElementCodes );
+        report = Map.of( "contact", Map.of( "uuid", "fb3787ab-2eb5-48a6-b4e8-4d2d46a6e3a2", "name", "John Doe" ),
+            "results", results );
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        camelContext.stop();
+    }
+
+    @Benchmark
+    public Map filter()
+    {
+        return filterExpression.evaluate( newExchange(), Map.class );
+    }
+
+    @Benchmark
+    public Map index()
+    {
+        return indexExpression.evaluate( newExchange(), Map.class );
+    }
+
+    private DatasonnetExpression newExpression( String resource )
+        throws
+        IOException
+    {
+        String script;
+        try ( InputStream inputStream = Thread.currentThread().getContextClassLoader().getResourceAsStream( resource ) )
+        {
+            script = new String( inputStream.readAllBytes(), StandardCharsets.UTF_8 );
+        }
+        DatasonnetExpression expression = DatasonnetExpression.builder( script, Map.class )
+            .bodyMediaType( MediaTypes.APPLICATION_JAVA ).outputMediaType( MediaTypes.APPLICATION_JAVA );
+        expression.init( camelContext );
+        return expression;
+    }
+
+    private Exchange newExchange()
+    {
+        Exchange exchange = new DefaultExchange( camelContext );
+        exchange.getMessage().setHeader( "orgUnitId", "fdc6uOvgoji" );
+        exchange.getMessage().setHeader( "dataSetCode", "MAL_YEARLY" );
+        exchange.getMessage().setHeader( "period", "2022W28" );
+        exchange.getMessage().setHeader( "dataElementCodes", dataElementCodes );
+        exchange.getMessage().setHeader( "dataElementCodeIndex", dataElementCodeIndex );
+        exchange.getMessage().setBody( report );
+        return exchange;
+    }
+
+    public static void main( String[] args )
+        throws
+        RunnerException
+    {
+        new Runner( new OptionsBuilder().include( DataValueSetMappingBenchmark.class.getSimpleName() )
+            .addProfiler( GCProfiler.class ).build() ).run();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Route;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.service.ServiceHelper;
+import org.hisp.dhis.integration.sdk.api.RemoteDhis2ClientException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class Dhis2CircuitBreakerRoutePolicyTestCase
+{
+    private Dhis2CircuitBreaker dhis2CircuitBreaker;
+
+    private CamelContext camelContext;
+
+    @BeforeEach
+    public void beforeEach()
+        throws
+        Exception
+    {
+        dhis2CircuitBreaker = new Dhis2CircuitBreaker( true, 100, 1, 1, 1, 10, 0 );
+        Dhis2CircuitBreakerRoutePolicy dhis2CircuitBreakerRoutePolicy = new Dhis2CircuitBreakerRoutePolicy();
+        ReflectionTestUtils.setField( dhis2CircuitBreakerRoutePolicy, "dhis2CircuitBreaker", dhis2CircuitBreaker );
+
+        camelContext = new DefaultCamelContext();
+        camelContext.addRoutes( new RouteBuilder()
+        {
+            @Override
+            public void configure()
+            {
+                from( "seda:reports" ).routeId( "Consume Report" ).routePolicy( dhis2CircuitBreakerRoutePolicy )
+                    .log( "${body}" );
+            }
+        } );
+        camelContext.start();
+    }
+
+    @AfterEach
+    public void afterEach()
+    {
+        camelContext.stop();
+        dhis2CircuitBreaker.stop();
+    }
+
+    private void openCircuit()
+    {
+        assertThrows( RemoteDhis2ClientException.class, () -> dhis2CircuitBreaker.call( "dataValueSets", () -> {
+            throw new RemoteDhis2ClientException( "", 503, "" );
+        } ) );
+    }
+
+    @Test
+    public void testConsumerIsRestartedWhenCircuitHalfOpens()
+        throws
+        Exception
+    {
+        Route route = camelContext.getRoute( "Consume Report" );
+        openCircuit();
+        Thread.sleep( 500 );
+        assertTrue( ServiceHelper.isStopped( route.getConsumer() ) );
+
+        Thread.sleep( 1500 );
+        assertTrue( ServiceHelper.isStarted( route.getConsumer() ) );
+    }
+
+    @Test
+    public void testStoppedRouteIsNotRestartedWhenCircuitHalfOpens()
+        throws
+        Exception
+    {
+        Route route = camelContext.getRoute( "Consume Report" );
+        openCircuit();
+        Thread.sleep( 500 );
+        camelContext.getRouteController().stopRoute( "Consume Report" );
+
+        Thread.sleep( 1500 );
+        assertTrue( dhis2CircuitBreaker.isAvailable() );
+        assertFalse( ServiceHelper.isStarted( route.getConsumer() ) );
+        assertTrue( camelContext.getRouteController().getRouteStatus( "Consume Report" ).isStopped() );
+    }
+}
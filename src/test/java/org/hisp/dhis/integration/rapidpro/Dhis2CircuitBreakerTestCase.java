@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import org.hisp.dhis.integration.sdk.api.RemoteDhis2ClientException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class Dhis2CircuitBreakerTestCase
+{
+    private Dhis2CircuitBreaker dhis2CircuitBreaker;
+
+    @AfterEach
+    public void afterEach()
+    {
+        dhis2CircuitBreaker.stop();
+    }
+
+    private Object fail( int httpStatusCode )
+    {
+        throw new RemoteDhis2ClientException( "", httpStatusCode, "" );
+    }
+
+    private Map<?, ?> statistics( String operation )
+    {
+        return (Map<?, ?>) dhis2CircuitBreaker.statistics().get( operation );
+    }
+
+    @Test
+    public void testCallOpensCircuitWhenFailureRateReachesThreshold()
+    {
+        dhis2CircuitBreaker = new Dhis2CircuitBreaker( true, 50, 4, 60, 1, 10, 0 );
+        dhis2CircuitBreaker.call( "dataValueSets", () -> "OK" );
+        assertThrows( RemoteDhis2ClientException.class, () -> dhis2CircuitBreaker.call( "dataValueSets", () -> fail( 503 ) ) );
+        dhis2CircuitBreaker.call( "dataValueSets", () -> "OK" );
+        assertTrue( dhis2CircuitBreaker.isAvailable() );
+
+        assertThrows( UncheckedIOException.class, () -> dhis2CircuitBreaker.call( "dataValueSets", () -> {
+            throw new UncheckedIOException( new ConnectException() );
+        } ) );
+        assertFalse( dhis2CircuitBreaker.isAvailable() );
+        assertEquals( Dhis2CircuitBreaker.State.OPEN, statistics( "dataValueSets" ).get( "state" ) );
+        assertThrows( Dhis2CallNotPermittedException.class,
+            () -> dhis2CircuitBreaker.call( "dataValueSets", () -> "OK" ) );
+        assertEquals( "OK", dhis2CircuitBreaker.call( "metadata", () -> "OK" ) );
+    }
+
+    @Test
+    public void testCallDoesNotCountClientErrorsAsFailures()
+    {
+        dhis2CircuitBreaker = new Dhis2CircuitBreaker( true, 50, 2, 60, 1, 10, 0 );
+        for ( int i = 0; i < 4; i++ )
+        {
+            assertThrows( RemoteDhis2ClientException.class,
+                () -> dhis2CircuitBreaker.call( "dataValueSets", () -> fail( 409 ) ) );
+        }
+        assertTrue( dhis2CircuitBreaker.isAvailable() );
+        assertEquals( 0, statistics( "dataValueSets" ).get( "failureRate" ) );
+    }
+
+    @Test
+    public void testCallClosesCircuitAfterSuccessfulTrialCalls()
+        throws
+        Exception
+    {
+        dhis2CircuitBreaker = new Dhis2CircuitBreaker( true, 100, 1, 1, 2, 10, 0 );
+        CountDownLatch stateChangeLatch = new CountDownLatch( 3 );
+        dhis2CircuitBreaker.addStateChangeListener( stateChangeLatch::countDown );
+
+        assertThrows( RemoteDhis2ClientException.class,
+            () -> dhis2CircuitBreaker.call( "dataValueSets", () -> fail( 500 ) ) );
+        assertFalse( dhis2CircuitBreaker.isAvailable() );
+
+        Thread.sleep( 1500 );
+        assertEquals( Dhis2CircuitBreaker.State.HALF_OPEN, statistics( "dataValueSets" ).get( "state" ) );
+        assertTrue( dhis2CircuitBreaker.isAvailable() );
+        dhis2CircuitBreaker.call( "dataValueSets", () -> "OK" );
+        dhis2CircuitBreaker.call( "dataValueSets", () -> "OK" );
+        assertEquals( Dhis2CircuitBreaker.State.CLOSED, statistics( "dataValueSets" ).get( "state" ) );
+        assertEquals( 1, statistics( "dataValueSets" ).get( "concurrentCallLimit" ) );
+        assertTrue( stateChangeLatch.await( 5, TimeUnit.SECONDS ) );
+
+        dhis2CircuitBreaker.call( "dataValueSets", () -> "OK" );
+        dhis2CircuitBreaker.call( "dataValueSets", () -> "OK" );
+        assertEquals( 3, statistics( "dataValueSets" ).get( "concurrentCallLimit" ) );
+    }
+
+    @Test
+    public void testCallReopensCircuitWhenTrialCallFails()
+        throws
+        Exception
+    {
+        dhis2CircuitBreaker = new Dhis2CircuitBreaker( true, 100, 1, 1, 2, 10, 0 );
+        assertThrows( RemoteDhis2ClientException.class,
+            () -> dhis2CircuitBreaker.call( "dataValueSets", () -> fail( 502 ) ) );
+
+        Thread.sleep( 1500 );
+        assertThrows( RemoteDhis2ClientException.class,
+            () -> dhis2CircuitBreaker.call( "dataValueSets", () -> fail( 502 ) ) );
+        assertEquals( Dhis2CircuitBreaker.State.OPEN, statistics( "dataValueSets" ).get( "state" ) );
+    }
+
+    @Test
+    public void testCallIsRejectedWhenBulkheadIsFull()
+        throws
+        Exception
+    {
+        dhis2CircuitBreaker = new Dhis2CircuitBreaker( true, 50, 20, 60, 1, 1, 0 );
+        CountDownLatch callStartedLatch = new CountDownLatch( 1 );
+        CountDownLatch callReleaseLatch = new CountDownLatch( 1 );
+        Thread thread = new Thread( () -> dhis2CircuitBreaker.call( "dataValueSets", () -> {
+            callStartedLatch.countDown();
+            return callReleaseLatch.await( 5, TimeUnit.SECONDS );
+        } ) );
+        thread.start();
+        assertTrue( callStartedLatch.await( 5, TimeUnit.SECONDS ) );
+
+        assertThrows( Dhis2CallNotPermittedException.class,
+            () -> dhis2CircuitBreaker.call( "dataValueSets", () -> "OK" ) );
+        callReleaseLatch.countDown();
+        thread.join();
+        assertEquals( "OK", dhis2CircuitBreaker.call( "dataValueSets", () -> "OK" ) );
+        assertEquals( 1L, statistics( "dataValueSets" ).get( "rejectedCalls" ) );
+    }
+
+    @Test
+    public void testCallIsNotGuardedWhenDisabled()
+    {
+        dhis2CircuitBreaker = new Dhis2CircuitBreaker( false, 50, 1, 60, 1, 10, 0 );
+        for ( int i = 0; i < 3; i++ )
+        {
+            assertThrows( RemoteDhis2ClientException.class,
+                () -> dhis2CircuitBreaker.call( "dataValueSets", () -> fail( 503 ) ) );
+        }
+        assertTrue( dhis2CircuitBreaker.isAvailable() );
+        assertTrue( dhis2CircuitBreaker.statistics().isEmpty() );
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hisp.dhis.integration.sdk.api.RemoteDhis2ClientException;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class Dhis2ConcurrencyLimiterTestCase
+{
+    private static final long LATENCY = TimeUnit.MILLISECONDS.toNanos( 100 );
+
+    private void callConcurrently( Dhis2ConcurrencyLimiter.ConcurrencyLimit concurrencyLimit, int calls,
+        long latencyInNanos, boolean failed )
+    {
+        long startTime = System.nanoTime();
+        for ( int i = 0; i < calls; i++ )
+        {
+            concurrencyLimit.acquire();
+        }
+        for ( int i = 0; i < calls; i++ )
+        {
+            concurrencyLimit.release( startTime, latencyInNanos, failed );
+        }
+    }
+
+    @Test
+    public void testLimitGrowsWhileLatencyIsFlat()
+    {
+        Dhis2ConcurrencyLimiter dhis2ConcurrencyLimiter = new Dhis2ConcurrencyLimiter( true, 4, 1, 10, 2.0, 0.5, 100,
+            0 );
+        Dhis2ConcurrencyLimiter.ConcurrencyLimit concurrencyLimit = dhis2ConcurrencyLimiter.getConcurrencyLimit(
+            "dataValueSets" );
+        callConcurrently( concurrencyLimit, 4, LATENCY, false );
+        assertEquals( 6, concurrencyLimit.getLimit() );
+        for ( int i = 0; i < 10; i++ )
+        {
+            callConcurrently( concurrencyLimit, concurrencyLimit.getLimit(), LATENCY, false );
+        }
+        assertEquals( 10, concurrencyLimit.getLimit() );
+        assertEquals( 0, concurrencyLimit.getInFlightCalls() );
+    }
+
+    @Test
+    public void testLimitDoesNotGrowWhenUnderused()
+    {
+        Dhis2ConcurrencyLimiter dhis2ConcurrencyLimiter = new Dhis2ConcurrencyLimiter( true, 8, 1, 10, 2.0, 0.5, 100,
+            0 );
+        Dhis2ConcurrencyLimiter.ConcurrencyLimit concurrencyLimit = dhis2ConcurrencyLimiter.getConcurrencyLimit(
+            "dataValueSets" );
+        for ( int i = 0; i < 10; i++ )
+        {
+            callConcurrently( concurrencyLimit, 1, LATENCY, false );
+        }
+        assertEquals( 8, concurrencyLimit.getLimit() );
+    }
+
+    @Test
+    public void testLimitBacksOffWhenLatencyClimbs()
+    {
+        Dhis2ConcurrencyLimiter dhis2ConcurrencyLimiter = new Dhis2ConcurrencyLimiter( true, 8, 1, 10, 2.0, 0.5, 100,
+            0 );
+        Dhis2ConcurrencyLimiter.ConcurrencyLimit concurrencyLimit = dhis2ConcurrencyLimiter.getConcurrencyLimit(
+            "dataValueSets" );
+        callConcurrently( concurrencyLimit, 1, LATENCY, false );
+        callConcurrently( concurrencyLimit, 1, LATENCY * 3, false );
+        assertEquals( 4, concurrencyLimit.getLimit() );
+
+        // calls made before the back-off do not cut the limit again
+        long startTime = System.nanoTime() - LATENCY;
+        concurrencyLimit.acquire();
+        concurrencyLimit.release( startTime, LATENCY * 3, false );
+        assertEquals( 4, concurrencyLimit.getLimit() );
+    }
+
+    @Test
+    public void testLimitBacksOffOnServerErrorsButNotOnClientErrors()
+    {
+        Dhis2ConcurrencyLimiter dhis2ConcurrencyLimiter = new Dhis2ConcurrencyLimiter( true, 8, 1, 10, 2.0, 0.5, 100,
+            0 );
+        assertThrows( RemoteDhis2ClientException.class, () -> dhis2ConcurrencyLimiter.call( "tracker", () -> {
+            throw new RemoteDhis2ClientException( "", 409, "" );
+        } ) );
+        assertEquals( 8, dhis2ConcurrencyLimiter.getConcurrencyLimit( "tracker" ).getLimit() );
+
+        assertThrows( RemoteDhis2ClientException.class, () -> dhis2ConcurrencyLimiter.call( "tracker", () -> {
+            throw new RemoteDhis2ClientException( "", 503, "" );
+        } ) );
+        assertEquals( 4, dhis2ConcurrencyLimiter.getConcurrencyLimit( "tracker" ).getLimit() );
+    }
+
+    @Test
+    public void testLimitDoesNotFallBelowMinimum()
+    {
+        Dhis2ConcurrencyLimiter dhis2ConcurrencyLimiter = new Dhis2ConcurrencyLimiter( true, 2, 1, 10, 2.0, 0.5, 100,
+            0 );
+        Dhis2ConcurrencyLimiter.ConcurrencyLimit concurrencyLimit = dhis2ConcurrencyLimiter.getConcurrencyLimit(
+            "dataValueSets" );
+        for ( int i = 0; i < 3; i++ )
+        {
+            callConcurrently( concurrencyLimit, 1, LATENCY, true );
+        }
+        assertEquals( 1, concurrencyLimit.getLimit() );
+    }
+
+    @Test
+    public void testCallIsRejectedWhenLimitIsNotFreedUpInTime()
+        throws
+        Exception
+    {
+        Dhis2ConcurrencyLimiter dhis2ConcurrencyLimiter = new Dhis2ConcurrencyLimiter( true, 1, 1, 1, 2.0, 0.5, 100,
+            0 );
+        CountDownLatch callStartedLatch = new CountDownLatch( 1 );
+        CountDownLatch callReleaseLatch = new CountDownLatch( 1 );
+        Thread thread = new Thread( () -> dhis2ConcurrencyLimiter.call( "dataValueSets", () -> {
+            callStartedLatch.countDown();
+            return callReleaseLatch.await( 5, TimeUnit.SECONDS );
+        } ) );
+        thread.start();
+        assertTrue( callStartedLatch.await( 5, TimeUnit.SECONDS ) );
+
+        assertThrows( Dhis2CallNotPermittedException.class,
+            () -> dhis2ConcurrencyLimiter.call( "dataValueSets", () -> "OK" ) );
+        callReleaseLatch.countDown();
+        thread.join();
+        assertEquals( "OK", dhis2ConcurrencyLimiter.call( "dataValueSets", () -> "OK" ) );
+        assertEquals( 1L, dhis2ConcurrencyLimiter.getConcurrencyLimit( "dataValueSets" ).statistics()
+            .get( "rejectedCalls" ) );
+    }
+
+    @Test
+    public void testBindToRegistersMetrics()
+    {
+        Dhis2ConcurrencyLimiter dhis2ConcurrencyLimiter = new Dhis2ConcurrencyLimiter( true, 4, 1, 10, 2.0, 0.5, 100,
+            0 );
+        dhis2ConcurrencyLimiter.call( "dataValueSets", () -> "OK" );
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        dhis2ConcurrencyLimiter.bindTo( meterRegistry );
+        dhis2ConcurrencyLimiter.call( "tracker", () -> "OK" );
+
+        assertEquals( 4.0,
+            meterRegistry.get( "dhis2.concurrency.limit" ).tag( "operation", "dataValueSets" ).gauge().value() );
+        assertEquals( 0.0,
+            meterRegistry.get( "dhis2.concurrency.in.flight" ).tag( "operation", "tracker" ).gauge().value() );
+        assertEquals( 1,
+            meterRegistry.get( "dhis2.concurrency.queueing.delay" ).tag( "operation", "tracker" ).timer().count() );
+    }
+}
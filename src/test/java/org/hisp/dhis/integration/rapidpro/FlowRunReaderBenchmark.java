@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import com.datasonnet.document.MediaTypes;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.language.datasonnet.DatasonnetExpression;
+import org.apache.camel.support.DefaultExchange;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per-run CPU time and allocation of reading a page of RapidPro flow runs into maps and transforming each
+ * run with DataSonnet against reading the page with {@link FlowRunReader}. Run {@link #main(String[])} from the IDE or
+ * with <code>java -cp target/test-classes:&lt;test classpath&gt; org.hisp.dhis.integration.rapidpro.FlowRunReaderBenchmark</code>;
+ * the <code>gc.alloc.rate.norm</code> figures give the bytes allocated per run.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class FlowRunReaderBenchmark
+{
+    private static final int PAGE_SIZE = 250;
+
+    private ObjectMapper objectMapper;
+
+    private FlowRunReader flowRunReader;
+
+    private CamelContext camelContext;
+
+    private DatasonnetExpression webhookExpression;
+
+    private byte[] page;
+
+    @Setup
+    public void setUp()
+        throws
+        IOException
+    {
+        objectMapper = new ObjectMapper();
+        flowRunReader = new FlowRunReader();
+        ReflectionTestUtils.setField( flowRunReader, "objectMapper", objectMapper );
+
+        camelContext = new DefaultCamelContext();
+        camelContext.start();
+        webhookExpression = DatasonnetExpression.builder(
+                "{ flow: body.flow, contact: body.contact, results: body.values }", String.class )
+            .bodyMediaType( MediaTypes.APPLICATION_JAVA ).outputMediaType( MediaTypes.APPLICATION_JSON );
+        webhookExpression.init( camelContext );
+
+        Map<String, Object> flowRuns;
+        try ( InputStream inputStream = Thread.currentThread().getContextClassLoader()
+            .getResourceAsStream( "flowRuns.json" ) )
+        {
+            flowRuns = objectMapper.readValue( inputStream, Map.class );
+        }
+        Object flowRun = ((List<Object>) flowRuns.get( "results" )).get( 0 );
+        List<Object> results = new ArrayList<>();
+        for ( int i = 0; i < PAGE_SIZE; i++ )
+        {
+            results.add( flowRun );
+        }
+        page = objectMapper.writeValueAsBytes( Map.of( "results", results ) );
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        camelContext.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( PAGE_SIZE )
+    public void mapAndDataSonnet( Blackhole blackhole )
+        throws
+        IOException
+    {
+        Map<String, Object> flowRuns = objectMapper.readValue( page, Map.class );
+        for ( Map<String, Object> flowRun : (List<Map<String, Object>>) flowRuns.get( "results" ) )
+        {
+            Map<String, Object> values = (Map<String, Object>) flowRun.get( "values" );
+            blackhole.consume( flowRun.get( "exited_on" ) != null && "completed".equals( flowRun.get( "exit_type" ) ) );
+            blackhole.consume( ((Map<String, Object>) values.get( "data_set_code" )).get( "value" ) );
+            blackhole.consume( values.get( "event_id" ) );
+
+            Exchange exchange = new DefaultExchange( camelContext );
+            exchange.getMessage().setBody( flowRun );
+            blackhole.consume( webhookExpression.evaluate( exchange, String.class ) );
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( PAGE_SIZE )
+    public void flowRunReader( Blackhole blackhole )
+        throws
+        IOException
+    {
+        for ( FlowRun flowRun : flowRunReader.readPage( new ByteArrayInputStream( page ) ).results() )
+        {
+            blackhole.consume( flowRun.exitedOn() != null && "completed".equals( flowRun.exitType() ) );
+            blackhole.consume( flowRun.dataSetCode() );
+            blackhole.consume( flowRun.eventId() );
+            blackhole.consume( flowRun.payload() );
+        }
+    }
+
+    public static void main( String[] args )
+        throws
+        RunnerException
+    {
+        new Runner( new OptionsBuilder().include( FlowRunReaderBenchmark.class.getSimpleName() )
+            .addProfiler( GCProfiler.class ).build() ).run();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class FlowRunReaderTestCase
+{
+    private ObjectMapper objectMapper;
+
+    private FlowRunReader flowRunReader;
+
+    @BeforeEach
+    public void beforeEach()
+    {
+        objectMapper = new ObjectMapper();
+        flowRunReader = new FlowRunReader();
+        ReflectionTestUtils.setField( flowRunReader, "objectMapper", objectMapper );
+    }
+
+    @Test
+    public void testReadPage()
+        throws
+        IOException
+    {
+        FlowRunReader.Page page;
+        try ( InputStream inputStream = Thread.currentThread().getContextClassLoader()
+            .getResourceAsStream( "flowRuns.json" ) )
+        {
+            page = flowRunReader.readPage( inputStream );
+        }
+
+        assertNull( page.next() );
+        assertEquals( 1, page.results().size() );
+        FlowRun flowRun = page.results().get( 0 );
+        assertEquals( "3e9137ee-574c-4d3e-8ac8-9103788b91ac", flowRun.uuid() );
+        assertEquals( Instant.parse( "2022-09-30T15:01:52.939079Z" ), flowRun.modifiedOn() );
+        assertEquals( Instant.parse( "2022-09-30T15:01:52.938999Z" ), flowRun.exitedOn() );
+        assertEquals( "completed", flowRun.exitType() );
+        assertEquals( "MAL_YEARLY", flowRun.dataSetCode() );
+        assertNull( flowRun.eventId() );
+        assertNull( flowRun.orgUnitId() );
+        assertEquals( "-3", flowRun.reportPeriodOffset() );
+
+        Map<String, Object> payload = objectMapper.readValue( flowRun.payload(), Map.class );
+        assertEquals( List.of( "flow", "contact", "results" ), List.copyOf( payload.keySet() ) );
+        assertEquals( "1dd832bb-0f3b-4522-9457-d56859f3cc18", ((Map<String, Object>) payload.get( "flow" )).get( "uuid" ) );
+        assertEquals( "MAL_YEARLY",
+            ((Map<String, Object>) ((Map<String, Object>) payload.get( "results" )).get( "data_set_code" )).get(
+                "value" ) );
+    }
+
+    @Test
+    public void testReadPageGivenOpenRunAndNextPage()
+        throws
+        IOException
+    {
+        String page = "{\"next\": \"https://rapidpro/api/v2/runs.json?cursor=2\", \"results\": [{\"uuid\": \"a\", \"path\": [{\"node\": \"b\"}], \"values\": {\"event_id\": {\"value\": \"c\"}, \"report_period_offset\": {\"value\": \"-2\"}}, \"exited_on\": null, \"exit_type\": null, \"modified_on\": \"2022-09-30T15:01:52.939079Z\"}]}";
+        FlowRunReader.Page flowRunPage = flowRunReader.readPage(
+            new ByteArrayInputStream( page.getBytes( StandardCharsets.UTF_8 ) ) );
+
+        assertEquals( "https://rapidpro/api/v2/runs.json?cursor=2", flowRunPage.next() );
+        FlowRun flowRun = flowRunPage.results().get( 0 );
+        assertNull( flowRun.exitedOn() );
+        assertNull( flowRun.exitType() );
+        assertEquals( "c", flowRun.eventId() );
+        assertEquals( "-2", flowRun.reportPeriodOffset() );
+        assertFalse( flowRun.payload().contains( "path" ) );
+    }
+
+    @Test
+    public void testReadAll()
+        throws
+        IOException
+    {
+        Map<String, Object> flowRuns = objectMapper.readValue(
+            Thread.currentThread().getContextClassLoader().getResourceAsStream( "flowRuns.json" ), Map.class );
+        List<Map<String, Object>> results = (List<Map<String, Object>>) flowRuns.get( "results" );
+        ((Map<String, Object>) results.get( 0 ).get( "values" )).put( "org_unit_id",
+            Map.of( "name", "org_unit_id", "value", "acme" ) );
+
+        FlowRun flowRun = flowRunReader.readAll( results ).get( 0 );
+        assertEquals( "3e9137ee-574c-4d3e-8ac8-9103788b91ac", flowRun.uuid() );
+        assertEquals( "MAL_YEARLY", flowRun.dataSetCode() );
+        assertEquals( "acme", flowRun.orgUnitId() );
+    }
+}
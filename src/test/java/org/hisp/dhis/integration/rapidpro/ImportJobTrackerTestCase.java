@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ImportJobTrackerTestCase
+{
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private AtomicInteger fetchTaskSummariesCount;
+
+    private ImportJobTracker importJobTracker;
+
+    @BeforeEach
+    public void beforeEach()
+    {
+        fetchTaskSummariesCount = new AtomicInteger();
+        importJobTracker = new ImportJobTracker()
+        {
+            @Override
+            protected Map<String, List<Map<String, Object>>> fetchTasks( String jobType )
+            {
+                return Map.of( "done", List.of( Map.of( "completed", true, "message", "Import complete" ) ),
+                    "failed", List.of( Map.of( "completed", true, "level", "ERROR", "message", "Process failed" ) ),
+                    "running", List.of( Map.of( "completed", false, "message", "Importing data values" ) ) );
+            }
+
+            @Override
+            protected Map<String, Object> fetchTaskSummaries( String jobType )
+            {
+                fetchTaskSummariesCount.incrementAndGet();
+                return Map.of( "done", Map.of( "status", "SUCCESS", "importCount", Map.of( "imported", 4 ) ) );
+            }
+        };
+        ReflectionTestUtils.setField( importJobTracker, "objectMapper", objectMapper );
+        ReflectionTestUtils.setField( importJobTracker, "jobTimeoutInSeconds", 3600 );
+    }
+
+    private Map<String, Object> job( String jobId, Instant createdAt )
+    {
+        return Map.of( "job_id", jobId, "job_type", "DATAVALUE_IMPORT", "created_at", Timestamp.from( createdAt ) );
+    }
+
+    @Test
+    public void testResolve()
+        throws
+        Exception
+    {
+        List<Map<String, Object>> finishedJobs = importJobTracker.resolve(
+            List.of( job( "done", Instant.now() ), job( "failed", Instant.now() ), job( "running", Instant.now() ),
+                job( "unknown", Instant.now() ) ) );
+
+        assertEquals( 2, finishedJobs.size() );
+        assertEquals( 1, fetchTaskSummariesCount.get() );
+
+        assertEquals( "done", finishedJobs.get( 0 ).get( "job_id" ) );
+        Map<String, Object> importSummary = objectMapper.readValue(
+            (String) finishedJobs.get( 0 ).get( "importSummary" ), Map.class );
+        assertEquals( "SUCCESS", importSummary.get( "status" ) );
+
+        assertEquals( "failed", finishedJobs.get( 1 ).get( "job_id" ) );
+        importSummary = objectMapper.readValue( (String) finishedJobs.get( 1 ).get( "importSummary" ), Map.class );
+        assertEquals( "ERROR", importSummary.get( "status" ) );
+        assertTrue( ((String) importSummary.get( "description" )).endsWith( "Process failed" ) );
+    }
+
+    @Test
+    public void testResolveFailsTimedOutJob()
+        throws
+        Exception
+    {
+        List<Map<String, Object>> finishedJobs = importJobTracker.resolve(
+            List.of( job( "running", Instant.now().minus( 2, ChronoUnit.HOURS ) ),
+                job( "unknown", Instant.now().minus( 2, ChronoUnit.HOURS ) ) ) );
+
+        assertEquals( 2, finishedJobs.size() );
+        assertEquals( 0, fetchTaskSummariesCount.get() );
+        for ( Map<String, Object> finishedJob : finishedJobs )
+        {
+            Map<String, Object> importSummary = objectMapper.readValue( (String) finishedJob.get( "importSummary" ),
+                Map.class );
+            assertEquals( "ERROR", importSummary.get( "status" ) );
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.apache.camel.component.http.HttpComponent;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class RapidProHttpClientConfigTestCase
+{
+    private final AtomicReference<String> acceptEncoding = new AtomicReference<>();
+
+    private HttpServer httpServer;
+
+    private RapidProHttpClientConfig rapidProHttpClientConfig;
+
+    @BeforeEach
+    public void beforeEach()
+        throws
+        IOException
+    {
+        httpServer = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 );
+        httpServer.createContext( "/", httpExchange -> {
+            acceptEncoding.set( httpExchange.getRequestHeaders().getFirst( "Accept-Encoding" ) );
+            httpExchange.sendResponseHeaders( 204, -1 );
+            httpExchange.close();
+        } );
+        httpServer.start();
+
+        rapidProHttpClientConfig = new RapidProHttpClientConfig();
+        ReflectionTestUtils.setField( rapidProHttpClientConfig, "maxIdleConnections", 8 );
+        ReflectionTestUtils.setField( rapidProHttpClientConfig, "keepAliveInSeconds", 60L );
+        ReflectionTestUtils.setField( rapidProHttpClientConfig, "maxConnections", 32 );
+        ReflectionTestUtils.setField( rapidProHttpClientConfig, "maxConnectionsPerHost", 16 );
+        ReflectionTestUtils.setField( rapidProHttpClientConfig, "connectTimeoutInSeconds", 5L );
+        ReflectionTestUtils.setField( rapidProHttpClientConfig, "readTimeoutInSeconds", 30L );
+        ReflectionTestUtils.setField( rapidProHttpClientConfig, "writeTimeoutInSeconds", 20L );
+        ReflectionTestUtils.setField( rapidProHttpClientConfig, "callTimeoutInSeconds", 90L );
+        ReflectionTestUtils.setField( rapidProHttpClientConfig, "gzip", true );
+    }
+
+    @AfterEach
+    public void afterEach()
+    {
+        httpServer.stop( 0 );
+    }
+
+    private String get( OkHttpClient okHttpClient )
+        throws
+        IOException
+    {
+        Request request = new Request.Builder().url(
+            String.format( "http://localhost:%s/workspace.json", httpServer.getAddress().getPort() ) ).get().build();
+        try ( Response response = okHttpClient.newCall( request ).execute() )
+        {
+            assertEquals( 204, response.code() );
+        }
+        return acceptEncoding.get();
+    }
+
+    @Test
+    public void testRapidProHttpClient()
+        throws
+        IOException
+    {
+        OkHttpClient okHttpClient = rapidProHttpClientConfig.rapidProHttpClient();
+        assertEquals( 5000, okHttpClient.connectTimeoutMillis() );
+        assertEquals( 30000, okHttpClient.readTimeoutMillis() );
+        assertEquals( 20000, okHttpClient.writeTimeoutMillis() );
+        assertEquals( 90000, okHttpClient.callTimeoutMillis() );
+        assertEquals( "gzip", get( okHttpClient ) );
+    }
+
+    @Test
+    public void testRapidProHttpClientGivenGzipDisabled()
+        throws
+        IOException
+    {
+        ReflectionTestUtils.setField( rapidProHttpClientConfig, "gzip", false );
+        assertEquals( "identity", get( rapidProHttpClientConfig.rapidProHttpClient() ) );
+    }
+
+    @Test
+    public void testRapidProHttpComponentCustomizer()
+        throws
+        IOException
+    {
+        try ( DefaultCamelContext camelContext = new DefaultCamelContext() )
+        {
+            camelContext.getRegistry()
+                .bind( "rapidProHttpComponentCustomizer", rapidProHttpClientConfig.rapidProHttpComponentCustomizer() );
+            HttpComponent httpComponent = camelContext.getComponent( "https", HttpComponent.class );
+            assertEquals( 32, httpComponent.getMaxTotalConnections() );
+            assertEquals( 16, httpComponent.getConnectionsPerRoute() );
+            assertEquals( 5, httpComponent.getConnectTimeout().toSeconds() );
+            assertEquals( 30, httpComponent.getResponseTimeout().toSeconds() );
+            assertFalse( httpComponent.isContentCompressionDisabled() );
+            assertEquals( 32, camelContext.getComponent( "http", HttpComponent.class ).getMaxTotalConnections() );
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.engine.DefaultConsumerTemplate;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ReportQueueDrainerTestCase
+{
+    private CamelContext camelContext;
+
+    private ReportQueueDrainer reportQueueDrainer;
+
+    @BeforeEach
+    public void beforeEach()
+    {
+        camelContext = new DefaultCamelContext();
+        camelContext.start();
+
+        reportQueueDrainer = new ReportQueueDrainer();
+        ReflectionTestUtils.setField( reportQueueDrainer, "consumerTemplate", camelContext.createConsumerTemplate() );
+        ReflectionTestUtils.setField( reportQueueDrainer, "queueUri", "seda:reports" );
+        ReflectionTestUtils.setField( reportQueueDrainer, "batchSize", 100 );
+        ReflectionTestUtils.setField( reportQueueDrainer, "maxDurationInSeconds", 3600L );
+        ReflectionTestUtils.setField( reportQueueDrainer, "receiveTimeoutInMillis", 10L );
+    }
+
+    @AfterEach
+    public void afterEach()
+    {
+        camelContext.stop();
+    }
+
+    private void queueReports( int count )
+    {
+        ProducerTemplate producerTemplate = camelContext.createProducerTemplate();
+        for ( int i = 0; i < count; i++ )
+        {
+            producerTemplate.sendBodyAndHeader( "seda:reports", "{}", "dataSetCode", "MAL_YEARLY" );
+        }
+    }
+
+    @Test
+    public void testReceiveBatchDrainsQueueUntilEmpty()
+    {
+        queueReports( 250 );
+        Exchange exchange = new DefaultExchange( camelContext );
+        reportQueueDrainer.start( exchange );
+
+        assertEquals( 100, reportQueueDrainer.receiveBatch( exchange ).size() );
+        assertTrue( reportQueueDrainer.isDraining( exchange ) );
+        assertEquals( 100, reportQueueDrainer.receiveBatch( exchange ).size() );
+        assertTrue( reportQueueDrainer.isDraining( exchange ) );
+        assertEquals( "MAL_YEARLY",
+            reportQueueDrainer.receiveBatch( exchange ).get( 0 ).getHeader( "dataSetCode" ) );
+        assertFalse( reportQueueDrainer.isDraining( exchange ) );
+        assertEquals( 250L, exchange.getProperty( "drainedCount", AtomicLong.class ).get() );
+    }
+
+    @Test
+    public void testReceiveBatchCompletesUnitOfWorkOfEachReport()
+    {
+        AtomicInteger doneCount = new AtomicInteger();
+        DefaultConsumerTemplate consumerTemplate = new DefaultConsumerTemplate( camelContext )
+        {
+            @Override
+            public void doneUoW( Exchange exchange )
+            {
+                doneCount.incrementAndGet();
+                super.doneUoW( exchange );
+            }
+        };
+        consumerTemplate.start();
+        ReflectionTestUtils.setField( reportQueueDrainer, "consumerTemplate", consumerTemplate );
+        queueReports( 5 );
+        Exchange exchange = new DefaultExchange( camelContext );
+        reportQueueDrainer.start( exchange );
+
+        assertEquals( 5, reportQueueDrainer.receiveBatch( exchange ).size() );
+        assertEquals( 5, doneCount.get() );
+        consumerTemplate.stop();
+    }
+
+    @Test
+    public void testReceiveBatchStopsAtMaxReports()
+    {
+        ReflectionTestUtils.setField( reportQueueDrainer, "maxReports", 150L );
+        queueReports( 250 );
+        Exchange exchange = new DefaultExchange( camelContext );
+        reportQueueDrainer.start( exchange );
+
+        assertEquals( 100, reportQueueDrainer.receiveBatch( exchange ).size() );
+        assertTrue( reportQueueDrainer.isDraining( exchange ) );
+        assertEquals( 50, reportQueueDrainer.receiveBatch( exchange ).size() );
+        assertFalse( reportQueueDrainer.isDraining( exchange ) );
+    }
+
+    @Test
+    public void testReceiveBatchSharesMaxReportsAcrossWorkers()
+    {
+        ReflectionTestUtils.setField( reportQueueDrainer, "maxReports", 150L );
+        queueReports( 250 );
+        Exchange exchange = new DefaultExchange( camelContext );
+        reportQueueDrainer.start( exchange );
+
+        assertEquals( 100, reportQueueDrainer.receiveBatch( exchange.copy() ).size() );
+        assertEquals( 50, reportQueueDrainer.receiveBatch( exchange.copy() ).size() );
+        assertEquals( 0, reportQueueDrainer.receiveBatch( exchange.copy() ).size() );
+        assertFalse( reportQueueDrainer.isDraining( exchange ) );
+        assertEquals( 150L, exchange.getProperty( "drainedCount", AtomicLong.class ).get() );
+    }
+
+    @Test
+    public void testRejectEndsDrainAndReturnsBatch()
+    {
+        queueReports( 250 );
+        Exchange exchange = new DefaultExchange( camelContext );
+        reportQueueDrainer.start( exchange );
+        Exchange batchExchange = exchange.copy();
+        List<?> batch = reportQueueDrainer.receiveBatch( batchExchange );
+        batchExchange.getMessage().setBody( batch );
+        assertFalse( reportQueueDrainer.isBatchRejected( batchExchange ) );
+
+        reportQueueDrainer.reject( batchExchange.copy() );
+        assertTrue( reportQueueDrainer.isBatchRejected( batchExchange ) );
+        assertFalse( reportQueueDrainer.isDraining( exchange ) );
+
+        reportQueueDrainer.returnBatch( batchExchange );
+        assertEquals( 0L, exchange.getProperty( "drainedCount", AtomicLong.class ).get() );
+    }
+
+    @Test
+    public void testReceiveBatchStopsWhenMaxDurationElapsed()
+    {
+        queueReports( 10 );
+        Exchange exchange = new DefaultExchange( camelContext );
+        reportQueueDrainer.start( exchange );
+        exchange.setProperty( "drainStartedAt", System.currentTimeMillis() - 3601000 );
+
+        assertEquals( 0, reportQueueDrainer.receiveBatch( exchange ).size() );
+        assertFalse( reportQueueDrainer.isDraining( exchange ) );
+    }
+
+    @Test
+    public void testAcquirePermitLimitsRate()
+        throws
+        Exception
+    {
+        ReflectionTestUtils.setField( reportQueueDrainer, "maxReportsPerSecond", 100.0 );
+        long startTime = System.nanoTime();
+        for ( int i = 0; i < 11; i++ )
+        {
+            reportQueueDrainer.acquirePermit();
+        }
+        assertTrue( System.nanoTime() - startTime >= 95_000_000L );
+    }
+}
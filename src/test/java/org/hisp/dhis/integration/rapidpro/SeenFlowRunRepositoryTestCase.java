@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SeenFlowRunRepositoryTestCase
+{
+    private JdbcTemplate jdbcTemplate;
+
+    private SeenFlowRunRepository seenFlowRunRepository;
+
+    @BeforeEach
+    public void beforeEach()
+    {
+        jdbcTemplate = new JdbcTemplate(
+            new DriverManagerDataSource( "jdbc:h2:mem:seenFlowRunRepositoryTestCase;DB_CLOSE_DELAY=-1" ) );
+        jdbcTemplate.execute(
+            "CREATE TABLE IF NOT EXISTS SEEN_FLOW_RUN (run_uuid VARCHAR PRIMARY KEY, seen_at TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT CURRENT_TIMESTAMP)" );
+        jdbcTemplate.execute( "TRUNCATE TABLE SEEN_FLOW_RUN" );
+
+        seenFlowRunRepository = newSeenFlowRunRepository();
+    }
+
+    private SeenFlowRunRepository newSeenFlowRunRepository()
+    {
+        SeenFlowRunRepository newSeenFlowRunRepository = new SeenFlowRunRepository( 2 );
+        ReflectionTestUtils.setField( newSeenFlowRunRepository, "jdbcTemplate", jdbcTemplate );
+        ReflectionTestUtils.setField( newSeenFlowRunRepository, "selectSql",
+            "SELECT COUNT(*) FROM SEEN_FLOW_RUN WHERE run_uuid = ?" );
+        ReflectionTestUtils.setField( newSeenFlowRunRepository, "insertSql",
+            "INSERT INTO SEEN_FLOW_RUN (run_uuid) VALUES (?)" );
+        ReflectionTestUtils.setField( newSeenFlowRunRepository, "deleteSql",
+            "DELETE FROM SEEN_FLOW_RUN WHERE run_uuid = ?" );
+        ReflectionTestUtils.setField( newSeenFlowRunRepository, "deleteAllSql", "DELETE FROM SEEN_FLOW_RUN" );
+        ReflectionTestUtils.setField( newSeenFlowRunRepository, "pruneSql",
+            "DELETE FROM SEEN_FLOW_RUN WHERE seen_at < ?" );
+        return newSeenFlowRunRepository;
+    }
+
+    @Test
+    public void testAdd()
+    {
+        assertTrue( seenFlowRunRepository.add( "foo" ) );
+        assertFalse( seenFlowRunRepository.add( "foo" ) );
+        assertTrue( seenFlowRunRepository.add( "bar" ) );
+        assertEquals( 1L, seenFlowRunRepository.statistics().get( "hits" ) );
+        assertEquals( 2L, seenFlowRunRepository.statistics().get( "misses" ) );
+    }
+
+    @Test
+    public void testAddGivenFlowRunSeenBeforeRestart()
+    {
+        assertTrue( seenFlowRunRepository.add( "foo" ) );
+
+        SeenFlowRunRepository restartedSeenFlowRunRepository = newSeenFlowRunRepository();
+        assertTrue( restartedSeenFlowRunRepository.contains( "foo" ) );
+        assertFalse( restartedSeenFlowRunRepository.add( "foo" ) );
+    }
+
+    @Test
+    public void testRemove()
+    {
+        seenFlowRunRepository.add( "foo" );
+        assertTrue( seenFlowRunRepository.remove( "foo" ) );
+        assertFalse( seenFlowRunRepository.contains( "foo" ) );
+        assertTrue( seenFlowRunRepository.add( "foo" ) );
+    }
+
+    @Test
+    public void testPrune()
+    {
+        seenFlowRunRepository.add( "foo" );
+        jdbcTemplate.update( "UPDATE SEEN_FLOW_RUN SET seen_at = DATEADD('DAY', -31, CURRENT_TIMESTAMP)" );
+        seenFlowRunRepository.add( "bar" );
+        ReflectionTestUtils.setField( seenFlowRunRepository, "ttlInDays", 30 );
+
+        assertEquals( 1, seenFlowRunRepository.prune() );
+        assertEquals( 1, jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM SEEN_FLOW_RUN", Integer.class ) );
+    }
+}
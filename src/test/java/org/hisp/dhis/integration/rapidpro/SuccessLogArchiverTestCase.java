@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class SuccessLogArchiverTestCase
+{
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private JdbcTemplate jdbcTemplate;
+
+    private SuccessLogArchiver successLogArchiver;
+
+    @TempDir
+    private Path archiveDir;
+
+    @BeforeEach
+    public void beforeEach()
+    {
+        jdbcTemplate = new JdbcTemplate(
+            new DriverManagerDataSource( "jdbc:h2:mem:successLogArchiverTestCase;DB_CLOSE_DELAY=-1" ) );
+        new ResourceDatabasePopulator( new ClassPathResource( "schema-h2.sql" ) ).execute(
+            jdbcTemplate.getDataSource() );
+        jdbcTemplate.execute( "TRUNCATE TABLE REPORT_SUCCESS_LOG" );
+        jdbcTemplate.execute( "TRUNCATE TABLE EVENT_SUCCESS_LOG" );
+
+        successLogArchiver = new SuccessLogArchiver();
+        ReflectionTestUtils.setField( successLogArchiver, "jdbcTemplate", jdbcTemplate );
+        ReflectionTestUtils.setField( successLogArchiver, "objectMapper", objectMapper );
+        ReflectionTestUtils.setField( successLogArchiver, "reportSelectSql",
+            "SELECT * FROM REPORT_SUCCESS_LOG WHERE created_at < ? ORDER BY id FETCH FIRST ? ROWS ONLY" );
+        ReflectionTestUtils.setField( successLogArchiver, "reportDeleteSql",
+            "DELETE FROM REPORT_SUCCESS_LOG WHERE id = ?" );
+        ReflectionTestUtils.setField( successLogArchiver, "eventSelectSql",
+            "SELECT * FROM EVENT_SUCCESS_LOG WHERE created_at < ? ORDER BY id FETCH FIRST ? ROWS ONLY" );
+        ReflectionTestUtils.setField( successLogArchiver, "eventDeleteSql",
+            "DELETE FROM EVENT_SUCCESS_LOG WHERE id = ?" );
+        ReflectionTestUtils.setField( successLogArchiver, "retentionInDays", 30 );
+        ReflectionTestUtils.setField( successLogArchiver, "archiveDir", archiveDir.toString() );
+        ReflectionTestUtils.setField( successLogArchiver, "batchSize", 2 );
+    }
+
+    private void insertReport( String dataSetCode, Instant createdAt, boolean compressed )
+    {
+        String payload = "{\"contact\": {\"name\": \"" + dataSetCode + "\"}}";
+        if ( compressed )
+        {
+            jdbcTemplate.update(
+                "INSERT INTO REPORT_SUCCESS_LOG (dhis_request_gz, dhis_response_gz, rapidpro_payload_gz, data_set_code, report_period_offset, created_at) VALUES (?, ?, ?, ?, -1, ?)",
+                PayloadCompressor.compress( "{}" ), PayloadCompressor.compress( "{}" ),
+                PayloadCompressor.compress( payload ), dataSetCode, Timestamp.from( createdAt ) );
+        }
+        else
+        {
+            jdbcTemplate.update(
+                "INSERT INTO REPORT_SUCCESS_LOG (dhis_request, dhis_response, rapidpro_payload, data_set_code, report_period_offset, created_at) VALUES ('{}', '{}', ?, ?, -1, ?)",
+                payload, dataSetCode, Timestamp.from( createdAt ) );
+        }
+    }
+
+    private List<Map<String, Object>> readArchive( String prefix )
+        throws
+        IOException
+    {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        try ( Stream<Path> archiveFiles = Files.list( archiveDir ) )
+        {
+            for ( Path archiveFile : archiveFiles.filter( f -> f.getFileName().toString().startsWith( prefix ) )
+                .toList() )
+            {
+                try ( BufferedReader bufferedReader = new BufferedReader( new InputStreamReader(
+                    new GZIPInputStream( Files.newInputStream( archiveFile ) ), StandardCharsets.UTF_8 ) ) )
+                {
+                    String line;
+                    while ( (line = bufferedReader.readLine()) != null )
+                    {
+                        rows.add( objectMapper.readValue( line, Map.class ) );
+                    }
+                }
+            }
+        }
+        return rows;
+    }
+
+    @Test
+    public void testArchiveMovesRowsOlderThanRetentionPeriod()
+        throws
+        IOException
+    {
+        Instant old = Instant.now().minus( Duration.ofDays( 40 ) );
+        insertReport( "OLD_PLAIN", old, false );
+        insertReport( "OLD_COMPRESSED", old, true );
+        insertReport( "OLD_PLAIN_2", old, false );
+        insertReport( "NEW", Instant.now(), true );
+        jdbcTemplate.update(
+            "INSERT INTO EVENT_SUCCESS_LOG (dhis_request, dhis_response, rapidpro_payload, event_id, created_at) VALUES ('{}', '{}', '{}', 'foo', ?)",
+            Timestamp.from( old ) );
+
+        assertEquals( 4, successLogArchiver.archive() );
+
+        assertEquals( List.of( "NEW" ),
+            jdbcTemplate.queryForList( "SELECT data_set_code FROM REPORT_SUCCESS_LOG", String.class ) );
+        assertEquals( 0, jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM EVENT_SUCCESS_LOG", Integer.class ) );
+
+        List<Map<String, Object>> archivedReports = readArchive( "report_success_log-" );
+        assertEquals( 3, archivedReports.size() );
+        assertEquals( "OLD_COMPRESSED", archivedReports.get( 1 ).get( "data_set_code" ) );
+        assertEquals( "{\"contact\": {\"name\": \"OLD_COMPRESSED\"}}",
+            archivedReports.get( 1 ).get( "rapidpro_payload" ) );
+        assertEquals( "{\"contact\": {\"name\": \"OLD_PLAIN_2\"}}",
+            archivedReports.get( 2 ).get( "rapidpro_payload" ) );
+        assertFalse( archivedReports.get( 1 ).containsKey( "rapidpro_payload_gz" ) );
+        assertEquals( "foo", readArchive( "event_success_log-" ).get( 0 ).get( "event_id" ) );
+
+        insertReport( "OLD_PLAIN_3", old, false );
+        assertEquals( 1, successLogArchiver.archive() );
+        assertEquals( 4, readArchive( "report_success_log-" ).size() );
+    }
+
+    @Test
+    public void testArchiveWritesRowsToFileOfTheirMonth()
+        throws
+        IOException
+    {
+        insertReport( "JANUARY", Instant.parse( "2024-01-31T23:00:00Z" ), false );
+        insertReport( "FEBRUARY", Instant.parse( "2024-02-01T01:00:00Z" ), true );
+        insertReport( "JANUARY_2", Instant.parse( "2024-01-15T12:00:00Z" ), false );
+
+        assertEquals( 3, successLogArchiver.archive() );
+
+        assertEquals( List.of( "JANUARY", "JANUARY_2" ),
+            readArchive( "report_success_log-2024-01" ).stream().map( row -> row.get( "data_set_code" ) ).toList() );
+        assertEquals( List.of( "FEBRUARY" ),
+            readArchive( "report_success_log-2024-02" ).stream().map( row -> row.get( "data_set_code" ) ).toList() );
+    }
+}
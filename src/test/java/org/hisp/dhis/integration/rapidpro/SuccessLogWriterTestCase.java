@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class SuccessLogWriterTestCase
+{
+    private static final String INSERT_SQL = "INSERT INTO REPORT_SUCCESS_LOG (dhis_request, dhis_response, rapidpro_payload, data_set_code, report_period_offset, organisation_unit_id, created_at) VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    private JdbcTemplate jdbcTemplate;
+
+    private SuccessLogWriter successLogWriter;
+
+    @BeforeEach
+    public void beforeEach()
+    {
+        jdbcTemplate = new JdbcTemplate(
+            new DriverManagerDataSource( "jdbc:h2:mem:successLogWriterTestCase;DB_CLOSE_DELAY=-1" ) );
+        new ResourceDatabasePopulator( new ClassPathResource( "schema-h2.sql" ) ).execute(
+            jdbcTemplate.getDataSource() );
+        jdbcTemplate.execute( "TRUNCATE TABLE REPORT_SUCCESS_LOG" );
+        // owned by the replay checkpoint kamelets outside of schema-h2.sql
+        jdbcTemplate.execute(
+            "CREATE TABLE IF NOT EXISTS REPORT_DEAD_LETTER_CHANNEL (id BIGINT AUTO_INCREMENT PRIMARY KEY, payload VARCHAR NOT NULL, data_set_code VARCHAR, report_period_offset INTEGER, organisation_unit_id VARCHAR, status VARCHAR NOT NULL)" );
+        jdbcTemplate.execute( "TRUNCATE TABLE REPORT_DEAD_LETTER_CHANNEL" );
+    }
+
+    @AfterEach
+    public void afterEach()
+        throws
+        InterruptedException
+    {
+        successLogWriter.stop();
+    }
+
+    private SuccessLogWriter newSuccessLogWriter( int bufferSize, int batchSize, long flushIntervalInMillis )
+    {
+        SuccessLogWriter newSuccessLogWriter = new SuccessLogWriter( bufferSize, batchSize, flushIntervalInMillis );
+        ReflectionTestUtils.setField( newSuccessLogWriter, "jdbcTemplate", jdbcTemplate );
+        ReflectionTestUtils.setField( newSuccessLogWriter, "reportInsertSql", INSERT_SQL );
+        ReflectionTestUtils.setField( newSuccessLogWriter, "reportCompressedInsertSql",
+            "INSERT INTO REPORT_SUCCESS_LOG (dhis_request_gz, dhis_response_gz, rapidpro_payload_gz, data_set_code, report_period_offset, organisation_unit_id, created_at) VALUES (?, ?, ?, ?, ?, ?, ?)" );
+        ReflectionTestUtils.setField( newSuccessLogWriter, "reportSelectSql",
+            "SELECT * FROM REPORT_SUCCESS_LOG WHERE id = ?" );
+        ReflectionTestUtils.setField( newSuccessLogWriter, "reportReplaySql",
+            "INSERT INTO REPORT_DEAD_LETTER_CHANNEL (payload, data_set_code, report_period_offset, organisation_unit_id, status) VALUES (?, ?, ?, ?, 'RETRY')" );
+        newSuccessLogWriter.start();
+        return newSuccessLogWriter;
+    }
+
+    private void append( int count )
+    {
+        for ( int i = 0; i < count; i++ )
+        {
+            successLogWriter.append( INSERT_SQL, "{}", "{}", "{}", "MAL_YEARLY", -1, "fdc6uOvgoji",
+                new Timestamp( System.currentTimeMillis() ) );
+        }
+    }
+
+    private int countRows()
+    {
+        return jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM REPORT_SUCCESS_LOG", Integer.class );
+    }
+
+    private Exchange newReportExchange()
+    {
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        exchange.getMessage().setHeader( "dhisRequest", "{\"dataSet\": \"MAL_YEARLY\"}" );
+        exchange.getMessage().setHeader( "dhisResponse", "{\"status\": \"OK\"}" );
+        exchange.getMessage().setHeader( "originalPayload", "{\"contact\": {}}" );
+        exchange.getMessage().setHeader( "dataSetCode", "MAL_YEARLY" );
+        exchange.getMessage().setHeader( "reportPeriodOffset", -1 );
+        exchange.getMessage().setHeader( "orgUnitId", "fdc6uOvgoji" );
+        return exchange;
+    }
+
+    @Test
+    public void testAppendReport()
+    {
+        successLogWriter = newSuccessLogWriter( 10, 10, 60000 );
+        successLogWriter.appendReport( newReportExchange() );
+        assertEquals( 0, countRows() );
+
+        successLogWriter.flush();
+        Map<String, Object> row = jdbcTemplate.queryForMap( "SELECT * FROM REPORT_SUCCESS_LOG" );
+        assertEquals( "{\"dataSet\": \"MAL_YEARLY\"}", row.get( "DHIS_REQUEST" ) );
+        assertEquals( "{\"status\": \"OK\"}", row.get( "DHIS_RESPONSE" ) );
+        assertEquals( "{\"contact\": {}}", row.get( "RAPIDPRO_PAYLOAD" ) );
+        assertEquals( "MAL_YEARLY", row.get( "DATA_SET_CODE" ) );
+        assertEquals( -1, row.get( "REPORT_PERIOD_OFFSET" ) );
+        assertEquals( "fdc6uOvgoji", row.get( "ORGANISATION_UNIT_ID" ) );
+    }
+
+    @Test
+    public void testWriteReportCompressesPayloads()
+    {
+        successLogWriter = newSuccessLogWriter( 10, 10, 60000 );
+        ReflectionTestUtils.setField( successLogWriter, "compress", true );
+        successLogWriter.writeReport( newReportExchange() );
+
+        Map<String, Object> row = jdbcTemplate.queryForMap( "SELECT * FROM REPORT_SUCCESS_LOG" );
+        assertNull( row.get( "DHIS_REQUEST" ) );
+        assertNull( row.get( "RAPIDPRO_PAYLOAD" ) );
+        assertEquals( "{\"contact\": {}}", PayloadCompressor.decompress( (byte[]) row.get( "RAPIDPRO_PAYLOAD_GZ" ) ) );
+
+        Map<String, Object> report = successLogWriter.report( ((Number) row.get( "ID" )).longValue() );
+        assertEquals( "{\"dataSet\": \"MAL_YEARLY\"}", report.get( "dhis_request" ) );
+        assertEquals( "{\"status\": \"OK\"}", report.get( "dhis_response" ) );
+        assertEquals( "{\"contact\": {}}", report.get( "rapidpro_payload" ) );
+        assertEquals( "MAL_YEARLY", report.get( "data_set_code" ) );
+        assertFalse( report.containsKey( "rapidpro_payload_gz" ) );
+        assertNull( successLogWriter.report( -1 ) );
+    }
+
+    @Test
+    public void testReplayDecompressesPayload()
+    {
+        successLogWriter = newSuccessLogWriter( 10, 10, 60000 );
+        ReflectionTestUtils.setField( successLogWriter, "compress", true );
+        successLogWriter.writeReport( newReportExchange() );
+        long id = jdbcTemplate.queryForObject( "SELECT id FROM REPORT_SUCCESS_LOG", Long.class );
+
+        successLogWriter.replay( id, null );
+        successLogWriter.replay( id, "{\"contact\": {\"name\": \"John Doe\"}}" );
+        assertNull( successLogWriter.replay( -1, null ) );
+
+        List<Map<String, Object>> deadLetters = jdbcTemplate.queryForList(
+            "SELECT * FROM REPORT_DEAD_LETTER_CHANNEL ORDER BY id" );
+        assertEquals( 2, deadLetters.size() );
+        assertEquals( "{\"contact\": {}}", deadLetters.get( 0 ).get( "PAYLOAD" ) );
+        assertEquals( "MAL_YEARLY", deadLetters.get( 0 ).get( "DATA_SET_CODE" ) );
+        assertEquals( -1, deadLetters.get( 0 ).get( "REPORT_PERIOD_OFFSET" ) );
+        assertEquals( "fdc6uOvgoji", deadLetters.get( 0 ).get( "ORGANISATION_UNIT_ID" ) );
+        assertEquals( "RETRY", deadLetters.get( 0 ).get( "STATUS" ) );
+        assertEquals( "{\"contact\": {\"name\": \"John Doe\"}}", deadLetters.get( 1 ).get( "PAYLOAD" ) );
+    }
+
+    @Test
+    public void testAppendFlushesWhenBatchIsFull()
+        throws
+        InterruptedException
+    {
+        successLogWriter = newSuccessLogWriter( 100, 5, 60000 );
+        append( 4 );
+        Thread.sleep( 500 );
+        assertEquals( 0, countRows() );
+
+        append( 1 );
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( countRows() < 5 && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 50 );
+        }
+        assertEquals( 5, countRows() );
+    }
+
+    @Test
+    public void testFlushOnInterval()
+        throws
+        InterruptedException
+    {
+        successLogWriter = newSuccessLogWriter( 100, 100, 200 );
+        append( 3 );
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( countRows() < 3 && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 50 );
+        }
+        assertEquals( 3, countRows() );
+    }
+
+    @Test
+    public void testAppendFlushesFullBufferOnCallerThread()
+    {
+        successLogWriter = newSuccessLogWriter( 2, 100, 60000 );
+        append( 3 );
+        assertEquals( 2, countRows() );
+        assertEquals( 1, successLogWriter.statistics().get( "buffered" ) );
+    }
+
+    @Test
+    public void testStopFlushesBuffer()
+        throws
+        InterruptedException
+    {
+        successLogWriter = newSuccessLogWriter( 100, 100, 60000 );
+        append( 7 );
+        successLogWriter.stop();
+        assertEquals( 7, countRows() );
+        assertEquals( 7L, successLogWriter.statistics().get( "written" ) );
+    }
+
+    @Test
+    public void testFlushDropsRowsThatCannotBeWritten()
+    {
+        successLogWriter = newSuccessLogWriter( 100, 100, 60000 );
+        append( 2 );
+        successLogWriter.append( INSERT_SQL, "{}", "{}", "{}", "MAL_YEARLY", "not a number", "fdc6uOvgoji",
+            new Timestamp( System.currentTimeMillis() ) );
+        successLogWriter.append( "INSERT INTO UNKNOWN_TABLE (id) VALUES (?)", 1 );
+        append( 2 );
+
+        successLogWriter.flush();
+        assertEquals( 4, countRows() );
+        assertEquals( 4L, successLogWriter.statistics().get( "written" ) );
+        assertEquals( 2L, successLogWriter.statistics().get( "dropped" ) );
+
+        append( 1 );
+        successLogWriter.flush();
+        assertEquals( 5, countRows() );
+        assertEquals( 0, successLogWriter.statistics().get( "buffered" ) );
+    }
+
+    @Test
+    public void testFlushKeepsRowsWhileDatabaseIsUnavailable()
+    {
+        successLogWriter = newSuccessLogWriter( 100, 100, 60000 );
+        append( 3 );
+
+        JdbcTemplate unavailableJdbcTemplate = new JdbcTemplate(
+            new DriverManagerDataSource( "jdbc:unavailable:successLogWriterTestCase" ) );
+        ReflectionTestUtils.setField( successLogWriter, "jdbcTemplate", unavailableJdbcTemplate );
+        ReflectionTestUtils.setField( successLogWriter, "transactionTemplate",
+            new TransactionTemplate( new DataSourceTransactionManager( unavailableJdbcTemplate.getDataSource() ) ) );
+        successLogWriter.flush();
+        assertEquals( 3, successLogWriter.statistics().get( "buffered" ) );
+        assertEquals( 0L, successLogWriter.statistics().get( "dropped" ) );
+
+        ReflectionTestUtils.setField( successLogWriter, "jdbcTemplate", jdbcTemplate );
+        ReflectionTestUtils.setField( successLogWriter, "transactionTemplate",
+            new TransactionTemplate( new DataSourceTransactionManager( jdbcTemplate.getDataSource() ) ) );
+        append( 1 );
+        successLogWriter.flush();
+        assertEquals( 0, countRows() );
+
+        ReflectionTestUtils.setField( successLogWriter, "retryAtInMillis", 0L );
+        successLogWriter.flush();
+        assertEquals( 4, countRows() );
+        assertEquals( 0, successLogWriter.statistics().get( "buffered" ) );
+    }
+
+    @Test
+    public void testAppendAfterStop()
+        throws
+        InterruptedException
+    {
+        successLogWriter = newSuccessLogWriter( 100, 2, 60000 );
+        successLogWriter.stop();
+        append( 2 );
+        assertEquals( 2, countRows() );
+    }
+}
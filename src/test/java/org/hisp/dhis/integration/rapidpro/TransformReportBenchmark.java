@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import com.datasonnet.document.MediaTypes;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.camel.CamelContext;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.model.language.DatasonnetExpression;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per-report CPU time and allocation of the payload handling in the <code>Transform Report</code> route
+ * before and after the report was mapped straight from the <code>originalPayload</code> header to JSON text. The
+ * former stream-cached the body, copied it into <code>originalPayload</code>, mapped the parsed report to a map, and
+ * marshalled the map to JSON. DHIS2 and RapidPro calls are left out. Run {@link #main(String[])} from the IDE or with
+ * <code>java -cp target/test-classes:&lt;test classpath&gt; org.hisp.dhis.integration.rapidpro.TransformReportBenchmark</code>;
+ * the <code>gc.alloc.rate.norm</code> figures give the bytes allocated per report.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class TransformReportBenchmark
+{
+    private static final int RESULT_COUNT = 50;
+
+    private CamelContext camelContext;
+
+    private ProducerTemplate producerTemplate;
+
+    private String report;
+
+    private Map<String, Object> headers;
+
+    @Setup
+    public void setUp()
+        throws
+        Exception
+    {
+        ObjectMapper objectMapper = new ObjectMapper();
+        List<String> dataElementCodes = new ArrayList<>();
+        Map<String, Object> results = new LinkedHashMap<>();
+        for ( int i = 0; i < RESULT_COUNT; i++ )
+        {
+            dataElementCodes.add( "DE_CODE_" + i );
+            results.put( "de_code_" + i, Map.of( "value", String.valueOf( i ) ) );
+        }
+        report = objectMapper.writeValueAsString( Map.of( "contact",
+            Map.of( "name", "John Doe", "urn", "tel:+12065551212", "uuid", "fb3787ab-2eb5-48a6-b4e8-4d2d46a6e3a2" ),
+            "flow", Map.of( "name", "APT", "uuid", "cb0360e3-d82a-4521-aad3-15afd704ec26" ), "results", results ) );
+        headers = Map.of( "orgUnitId", "fdc6uOvgoji", "dataSetCode", "MAL_YEARLY", "period", "2022W28",
+            "dataElementCodes", dataElementCodes, "dataElementCodeIndex", DataElementCodesCache.index( dataElementCodes ) );
+
+        camelContext = new DefaultCamelContext();
+        camelContext.getRegistry().bind( "native", new NativeDataSonnetLibrary() );
+        camelContext.addRoutes( new RouteBuilder()
+        {
+            @Override
+            public void configure()
+            {
+                from( "direct:copying" )
+                    .streamCache( "true" )
+                    .setHeader( "originalPayload", simple( "${body}" ) )
+                    .unmarshal().json()
+                    .transform( datasonnet( "resource:classpath:dataValueSet.ds", Map.class,
+                        "application/x-java-object", "application/x-java-object" ) )
+                    .marshal().json().transform().body( String.class )
+                    .setHeader( "dhisRequest", simple( "${body}" ) );
+
+                DatasonnetExpression dataValueSetExpression = new DatasonnetExpression(
+                    "resource:classpath:dataValueSet.ds" );
+                dataValueSetExpression.setSource( "header:originalPayload" );
+                dataValueSetExpression.setBodyMediaType( MediaTypes.APPLICATION_JSON_VALUE );
+                dataValueSetExpression.setOutputMediaType( MediaTypes.APPLICATION_JSON_VALUE );
+                dataValueSetExpression.setResultType( String.class );
+
+                from( "direct:singleCopy" )
+                    .convertBodyTo( String.class )
+                    .setHeader( "originalPayload", body() )
+                    .unmarshal().json()
+                    .transform( dataValueSetExpression )
+                    .setHeader( "dhisRequest", body() );
+            }
+        } );
+        camelContext.start();
+        producerTemplate = camelContext.createProducerTemplate();
+
+        Map<String, Object> copyingDataValueSet = objectMapper.readValue( copying(), Map.class );
+        Map<String, Object> singleCopyDataValueSet = objectMapper.readValue( singleCopy(), Map.class );
+        if ( !copyingDataValueSet.equals( singleCopyDataValueSet ) )
+        {
+            throw new IllegalStateException(
+                String.format( "Data value sets differ: %s != %s", copyingDataValueSet, singleCopyDataValueSet ) );
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        camelContext.stop();
+    }
+
+    @Benchmark
+    public String copying()
+    {
+        return producerTemplate.requestBodyAndHeaders( "direct:copying", report, headers, String.class );
+    }
+
+    @Benchmark
+    public String singleCopy()
+    {
+        return producerTemplate.requestBodyAndHeaders( "direct:singleCopy", report, headers, String.class );
+    }
+
+    public static void main( String[] args )
+        throws
+        RunnerException
+    {
+        new Runner( new OptionsBuilder().include( TransformReportBenchmark.class.getSimpleName() )
+            .addProfiler( GCProfiler.class ).build() ).run();
+    }
+}
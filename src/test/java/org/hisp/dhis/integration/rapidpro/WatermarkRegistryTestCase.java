@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro;
+
+import org.hisp.dhis.integration.rapidpro.expression.LastRunAtColumnReader;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class WatermarkRegistryTestCase
+{
+    private JdbcTemplate jdbcTemplate;
+
+    private WatermarkRegistry watermarkRegistry;
+
+    @BeforeEach
+    public void beforeEach()
+    {
+        jdbcTemplate = new JdbcTemplate(
+            new DriverManagerDataSource( "jdbc:h2:mem:watermarkRegistryTestCase;DB_CLOSE_DELAY=-1" ) );
+        jdbcTemplate.execute(
+            "CREATE TABLE IF NOT EXISTS POLLER (flow_uuid VARCHAR PRIMARY KEY, last_run_at TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT CURRENT_TIMESTAMP)" );
+        jdbcTemplate.execute( "TRUNCATE TABLE POLLER" );
+
+        watermarkRegistry = newWatermarkRegistry();
+    }
+
+    private WatermarkRegistry newWatermarkRegistry()
+    {
+        WatermarkRegistry newWatermarkRegistry = new WatermarkRegistry();
+        ReflectionTestUtils.setField( newWatermarkRegistry, "jdbcTemplate", jdbcTemplate );
+        ReflectionTestUtils.setField( newWatermarkRegistry, "lastRunAtColumnReader", new LastRunAtColumnReader() );
+        ReflectionTestUtils.setField( newWatermarkRegistry, "selectAllSql",
+            "SELECT flow_uuid, last_run_at FROM POLLER" );
+        ReflectionTestUtils.setField( newWatermarkRegistry, "upsertSql",
+            "MERGE INTO POLLER (flow_uuid, last_run_at) VALUES (?, ?)" );
+        return newWatermarkRegistry;
+    }
+
+    @Test
+    public void testGetLastRunAtLoadsWatermarksFromDatabase()
+    {
+        jdbcTemplate.update( "INSERT INTO POLLER (flow_uuid, last_run_at) VALUES (?, ?)", "foo",
+            Timestamp.from( Instant.parse( "2024-01-02T03:04:05.678Z" ) ) );
+
+        assertEquals( "2024-01-02T03:04:05.678", watermarkRegistry.getLastRunAt( "foo" ) );
+        assertNull( watermarkRegistry.getLastRunAt( "bar" ) );
+    }
+
+    @Test
+    public void testUpdateIsNotWrittenUntilFlush()
+    {
+        watermarkRegistry.update( "foo", Timestamp.from( Instant.parse( "2024-01-02T03:04:05.678Z" ) ) );
+        assertEquals( "2024-01-02T03:04:05.678", watermarkRegistry.getLastRunAt( "foo" ) );
+        assertEquals( 0, jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM POLLER", Integer.class ) );
+
+        watermarkRegistry.update( "foo", Timestamp.from( Instant.parse( "2024-02-02T03:04:05.678Z" ) ) );
+        watermarkRegistry.update( "bar", Timestamp.from( Instant.parse( "2024-03-02T03:04:05.678Z" ) ) );
+        watermarkRegistry.flush();
+        assertEquals( 2, jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM POLLER", Integer.class ) );
+
+        WatermarkRegistry reloadedWatermarkRegistry = newWatermarkRegistry();
+        assertEquals( "2024-02-02T03:04:05.678", reloadedWatermarkRegistry.getLastRunAt( "foo" ) );
+        assertEquals( "2024-03-02T03:04:05.678", reloadedWatermarkRegistry.getLastRunAt( "bar" ) );
+    }
+
+    @Test
+    public void testFlushOnlyWritesChangedWatermarks()
+    {
+        watermarkRegistry.update( "foo", Timestamp.from( Instant.parse( "2024-01-02T03:04:05.678Z" ) ) );
+        watermarkRegistry.flush();
+        jdbcTemplate.update( "DELETE FROM POLLER" );
+
+        watermarkRegistry.flush();
+        assertEquals( 0, jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM POLLER", Integer.class ) );
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.rapidpro.DataSetCache;
+import org.hisp.dhis.integration.rapidpro.Dhis2RapidProException;
+import org.hisp.dhis.integration.sdk.support.period.PeriodBuilder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDate;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class CurrentPeriodCalculatorTestCase
+{
+    private AtomicInteger fetchCount;
+
+    private AtomicInteger computeCount;
+
+    private AtomicReference<LocalDate> today;
+
+    private CurrentPeriodCalculator currentPeriodCalculator;
+
+    @BeforeEach
+    public void beforeEach()
+    {
+        fetchCount = new AtomicInteger();
+        computeCount = new AtomicInteger();
+        today = new AtomicReference<>( LocalDate.now() );
+        DataSetCache dataSetCache = new DataSetCache( 10, 3600, 900 )
+        {
+            @Override
+            protected DataSetDescriptor fetchDataSet( String dataSetCode )
+            {
+                fetchCount.incrementAndGet();
+                return dataSetCode.equals( "MAL_YEARLY" ) ? new DataSetDescriptor( "abc", "Malaria annual data",
+                    "Yearly" ) : null;
+            }
+        };
+
+        currentPeriodCalculator = new CurrentPeriodCalculator()
+        {
+            @Override
+            protected LocalDate today()
+            {
+                return today.get();
+            }
+
+            @Override
+            protected String computePeriod( String periodType, int reportPeriodOffset, LocalDate today )
+            {
+                computeCount.incrementAndGet();
+                return super.computePeriod( periodType, reportPeriodOffset, today );
+            }
+        };
+        ReflectionTestUtils.setField( currentPeriodCalculator, "dataSetCache", dataSetCache );
+    }
+
+    @Test
+    public void testProcess()
+        throws
+        Exception
+    {
+        for ( int i = 0; i < 3; i++ )
+        {
+            Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+            exchange.getMessage().setHeader( "dataSetCode", "MAL_YEARLY" );
+            exchange.getMessage().setHeader( "reportPeriodOffset", -1 );
+            currentPeriodCalculator.process( exchange );
+            assertEquals( PeriodBuilder.yearOf( new Date(), -1 ), exchange.getMessage().getBody() );
+        }
+        assertEquals( 1, fetchCount.get() );
+        assertEquals( 1, computeCount.get() );
+
+        assertEquals( PeriodBuilder.yearOf( new Date(), 0 ), currentPeriodCalculator.getPeriod( "Yearly", 0 ) );
+        assertEquals( 2, computeCount.get() );
+    }
+
+    @Test
+    public void testGetPeriodGivenPeriodRollover()
+    {
+        today.set( LocalDate.of( 2024, 6, 28 ) );
+        assertEquals( "202406", currentPeriodCalculator.getPeriod( "Monthly", 0 ) );
+        assertEquals( "2024W26", currentPeriodCalculator.getPeriod( "Weekly", 0 ) );
+        assertEquals( 2, computeCount.get() );
+
+        today.set( LocalDate.of( 2024, 6, 30 ) );
+        assertEquals( "202406", currentPeriodCalculator.getPeriod( "Monthly", 0 ) );
+        assertEquals( "2024W26", currentPeriodCalculator.getPeriod( "Weekly", 0 ) );
+        assertEquals( 2, computeCount.get() );
+
+        today.set( LocalDate.of( 2024, 7, 1 ) );
+        assertEquals( "202407", currentPeriodCalculator.getPeriod( "Monthly", 0 ) );
+        assertEquals( "2024W27", currentPeriodCalculator.getPeriod( "Weekly", 0 ) );
+        assertEquals( "202406", currentPeriodCalculator.getPeriod( "Monthly", -1 ) );
+        assertEquals( 5, computeCount.get() );
+    }
+
+    @Test
+    public void testNextPeriodStart()
+    {
+        LocalDate today = LocalDate.of( 2024, 12, 31 );
+        assertEquals( LocalDate.of( 2025, 1, 1 ), currentPeriodCalculator.nextPeriodStart( "Daily", today ) );
+        assertEquals( LocalDate.of( 2025, 1, 6 ), currentPeriodCalculator.nextPeriodStart( "Weekly", today ) );
+        assertEquals( LocalDate.of( 2025, 1, 1 ), currentPeriodCalculator.nextPeriodStart( "Monthly", today ) );
+        assertEquals( LocalDate.of( 2025, 1, 1 ), currentPeriodCalculator.nextPeriodStart( "BiMonthly", today ) );
+        assertEquals( LocalDate.of( 2025, 1, 1 ), currentPeriodCalculator.nextPeriodStart( "SixMonthly", today ) );
+        assertEquals( LocalDate.of( 2025, 1, 1 ), currentPeriodCalculator.nextPeriodStart( "Yearly", today ) );
+        assertEquals( LocalDate.of( 2025, 11, 1 ),
+            currentPeriodCalculator.nextPeriodStart( "FinancialYearNov", today ) );
+
+        today = LocalDate.of( 2024, 2, 15 );
+        assertEquals( LocalDate.of( 2024, 3, 1 ), currentPeriodCalculator.nextPeriodStart( "BiMonthly", today ) );
+        assertEquals( LocalDate.of( 2024, 7, 1 ), currentPeriodCalculator.nextPeriodStart( "SixMonthly", today ) );
+        assertEquals( LocalDate.of( 2024, 11, 1 ),
+            currentPeriodCalculator.nextPeriodStart( "FinancialYearNov", today ) );
+    }
+
+    @Test
+    public void testProcessGivenUnknownDataSet()
+    {
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        exchange.getMessage().setHeader( "dataSetCode", "FOO" );
+        exchange.getMessage().setHeader( "reportPeriodOffset", -1 );
+        assertThrows( Dhis2RapidProException.class, () -> currentPeriodCalculator.process( exchange ) );
+        assertThrows( Dhis2RapidProException.class, () -> currentPeriodCalculator.process( exchange ) );
+        assertEquals( 2, fetchCount.get() );
+    }
+}
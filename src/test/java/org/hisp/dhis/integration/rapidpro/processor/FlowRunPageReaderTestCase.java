@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.OkHttpClient;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.rapidpro.FlowRun;
+import org.hisp.dhis.integration.rapidpro.FlowRunReader;
+import org.hisp.dhis.integration.rapidpro.expression.LastRunCalculator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FlowRunPageReaderTestCase
+{
+    private HttpServer httpServer;
+
+    private FlowRunPageReader flowRunPageReader;
+
+    @BeforeEach
+    public void beforeEach()
+        throws
+        IOException
+    {
+        httpServer = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 );
+        String rapidProApiUrl = "http://localhost:" + httpServer.getAddress().getPort() + "/api/v2";
+        httpServer.createContext( "/api/v2/runs.json", httpExchange -> {
+            String response;
+            if ( httpExchange.getRequestURI().getQuery().contains( "cursor=2" ) )
+            {
+                response = "{\"next\": null, \"results\": [{\"uuid\": \"b\", \"exited_on\": null, \"modified_on\": \"2022-09-30T15:01:52.939079Z\"}]}";
+            }
+            else
+            {
+                response = "{\"next\": \"" + rapidProApiUrl + "/runs.json?cursor=2\", \"results\": [{\"uuid\": \"a\", \"exited_on\": \"2022-09-30T15:01:52.939079Z\", \"modified_on\": \"2022-09-30T15:01:52.939079Z\"}]}";
+            }
+            byte[] responseAsBytes = response.getBytes( StandardCharsets.UTF_8 );
+            httpExchange.sendResponseHeaders( 200, responseAsBytes.length );
+            try ( OutputStream outputStream = httpExchange.getResponseBody() )
+            {
+                outputStream.write( responseAsBytes );
+            }
+        } );
+        httpServer.start();
+
+        flowRunPageReader = new FlowRunPageReader();
+        FlowRunReader flowRunReader = new FlowRunReader();
+        ReflectionTestUtils.setField( flowRunReader, "objectMapper", new ObjectMapper() );
+        ReflectionTestUtils.setField( flowRunPageReader, "flowRunReader", flowRunReader );
+        ReflectionTestUtils.setField( flowRunPageReader, "lastRunCalculator", new LastRunCalculator() );
+        ReflectionTestUtils.setField( flowRunPageReader, "rapidProApiUrl", rapidProApiUrl );
+        ReflectionTestUtils.setField( flowRunPageReader, "rapidProApiToken", "secret" );
+        ReflectionTestUtils.setField( flowRunPageReader, "rapidProHttpClient", new OkHttpClient() );
+    }
+
+    @AfterEach
+    public void afterEach()
+    {
+        httpServer.stop( 0 );
+    }
+
+    @Test
+    public void testHasNextPageGivenMaxPages()
+        throws
+        Exception
+    {
+        ReflectionTestUtils.setField( flowRunPageReader, "maxPages", 1 );
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        exchange.getMessage().setHeader( "flow", "foo" );
+        exchange.getMessage().setHeader( "newLastRunAt", Timestamp.from( Instant.now() ) );
+        exchange.setProperty( "nextPageUrl", flowRunPageReader.firstPageUrl( exchange ) );
+        assertTrue( flowRunPageReader.hasNextPage( exchange ) );
+
+        flowRunPageReader.process( exchange );
+        assertNotNull( exchange.getProperty( "nextPageUrl" ) );
+        assertFalse( flowRunPageReader.hasNextPage( exchange ) );
+    }
+
+    @Test
+    public void testProcessGivenOpenRunsAreRechecked()
+        throws
+        Exception
+    {
+        LastRunCalculator lastRunCalculator = new LastRunCalculator();
+        ReflectionTestUtils.setField( lastRunCalculator, "recheckOpenRuns", true );
+        ReflectionTestUtils.setField( flowRunPageReader, "lastRunCalculator", lastRunCalculator );
+
+        Timestamp now = Timestamp.from( Instant.now() );
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        exchange.getMessage().setHeader( "flow", "foo" );
+        exchange.getMessage().setHeader( "newLastRunAt", now );
+        exchange.setProperty( "nextPageUrl", flowRunPageReader.firstPageUrl( exchange ) );
+        flowRunPageReader.process( exchange );
+        flowRunPageReader.process( exchange );
+
+        assertEquals( now, exchange.getMessage().getHeader( "newLastRunAt" ) );
+    }
+
+    @Test
+    public void testProcess()
+        throws
+        Exception
+    {
+        Exchange exchange = new DefaultExchange( new DefaultCamelContext() );
+        exchange.getMessage().setHeader( "flow", "foo" );
+        exchange.getMessage().setHeader( "newLastRunAt", Timestamp.from( Instant.now() ) );
+        exchange.setProperty( "nextPageUrl", flowRunPageReader.firstPageUrl( exchange ) );
+
+        flowRunPageReader.process( exchange );
+        List<FlowRun> flowRuns = exchange.getMessage().getBody( List.class );
+        assertEquals( "a", flowRuns.get( 0 ).uuid() );
+        assertEquals( Timestamp.from( Instant.parse( "2022-09-30T15:01:52.939079Z" ) ),
+            exchange.getMessage().getHeader( "checkpointAt" ) );
+        assertTrue( flowRunPageReader.hasNextPage( exchange ) );
+
+        flowRunPageReader.process( exchange );
+        flowRuns = exchange.getMessage().getBody( List.class );
+        assertEquals( "b", flowRuns.get( 0 ).uuid() );
+        assertNull( exchange.getProperty( "nextPageUrl" ) );
+        assertFalse( flowRunPageReader.hasNextPage( exchange ) );
+        assertEquals( Timestamp.from( Instant.parse( "2022-09-30T15:01:52.939079Z" ) ),
+            exchange.getMessage().getHeader( "newLastRunAt" ) );
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.processor;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.rapidpro.AdaptiveFlowScanScheduler;
+import org.hisp.dhis.integration.rapidpro.Dhis2RapidProException;
+import org.hisp.dhis.integration.rapidpro.management.FlowScanStatistics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FlowScanProcessorTestCase
+{
+    private CamelContext camelContext;
+
+    private FlowScanProcessor flowScanProcessor;
+
+    private FlowScanStatistics flowScanStatistics;
+
+    private AdaptiveFlowScanScheduler adaptiveFlowScanScheduler;
+
+    private final Set<String> scannedFlowUuids = ConcurrentHashMap.newKeySet();
+
+    @BeforeEach
+    public void beforeEach()
+        throws
+        Exception
+    {
+        camelContext = new DefaultCamelContext();
+        camelContext.addRoutes( new RouteBuilder()
+        {
+            @Override
+            public void configure()
+            {
+                from( "direct:pullFlow" ).process( exchange -> {
+                    String flowUuid = exchange.getMessage().getHeader( "flowUuid", String.class );
+                    if ( flowUuid.equals( "fail" ) )
+                    {
+                        throw new IllegalStateException( "foo" );
+                    }
+                    else if ( flowUuid.equals( "slow" ) )
+                    {
+                        Thread.sleep( 2000 );
+                    }
+                    scannedFlowUuids.add( flowUuid );
+                } );
+            }
+        } );
+        camelContext.start();
+
+        flowScanStatistics = new FlowScanStatistics();
+        flowScanProcessor = new FlowScanProcessor();
+        ReflectionTestUtils.setField( flowScanProcessor, "camelContext", camelContext );
+        ReflectionTestUtils.setField( flowScanProcessor, "producerTemplate", camelContext.createProducerTemplate() );
+        ReflectionTestUtils.setField( flowScanProcessor, "flowScanStatistics", flowScanStatistics );
+        adaptiveFlowScanScheduler = new AdaptiveFlowScanScheduler();
+        ReflectionTestUtils.setField( adaptiveFlowScanScheduler, "maxScansPerMinute", 60 );
+        ReflectionTestUtils.setField( flowScanProcessor, "adaptiveFlowScanScheduler", adaptiveFlowScanScheduler );
+        ReflectionTestUtils.setField( flowScanProcessor, "maxConcurrency", 4 );
+    }
+
+    @AfterEach
+    public void afterEach()
+    {
+        camelContext.stop();
+    }
+
+    @Test
+    public void testProcessGivenFailingFlow()
+        throws
+        Exception
+    {
+        Exchange exchange = new DefaultExchange( camelContext );
+        exchange.setProperty( "flowUuids", "foo,fail,,bar" );
+        Dhis2RapidProException exception = assertThrows( Dhis2RapidProException.class,
+            () -> flowScanProcessor.process( exchange ) );
+        assertEquals( "Failed to scan 1 of 3 RapidPro flows: fail", exception.getMessage() );
+        assertEquals( "foo", exception.getSuppressed()[0].getMessage() );
+
+        assertEquals( Set.of( "foo", "bar" ), scannedFlowUuids );
+        Map<String, Object> failedFlowScan = flowScanStatistics.flowScan( "fail" );
+        assertEquals( 1L, failedFlowScan.get( "errorCount" ) );
+        assertEquals( "foo", failedFlowScan.get( "lastError" ) );
+        assertEquals( 1L, flowScanStatistics.flowScan( "bar" ).get( "scanCount" ) );
+    }
+
+    @Test
+    public void testProcessGivenNoFailingFlow()
+        throws
+        Exception
+    {
+        Exchange exchange = new DefaultExchange( camelContext );
+        exchange.setProperty( "flowUuids", "foo,bar" );
+        flowScanProcessor.process( exchange );
+
+        assertEquals( Set.of( "foo", "bar" ), scannedFlowUuids );
+    }
+
+    @Test
+    public void testProcessGivenParallelScanAndSlowFlow()
+        throws
+        Exception
+    {
+        ReflectionTestUtils.setField( flowScanProcessor, "parallel", true );
+        ReflectionTestUtils.setField( flowScanProcessor, "flowTimeout", 500L );
+
+        Exchange exchange = new DefaultExchange( camelContext );
+        exchange.setProperty( "flowUuids", "slow,foo,fail,bar" );
+        adaptiveFlowScanScheduler.dueFlowUuids( List.of( "slow" ) );
+        long startedAt = System.currentTimeMillis();
+        Dhis2RapidProException exception = assertThrows( Dhis2RapidProException.class,
+            () -> flowScanProcessor.process( exchange ) );
+        assertTrue( System.currentTimeMillis() - startedAt < 2000 );
+        assertEquals( "Failed to scan 2 of 4 RapidPro flows: slow, fail", exception.getMessage() );
+        assertEquals( 2, exception.getSuppressed().length );
+
+        assertEquals( Set.of( "foo", "bar" ), scannedFlowUuids );
+        assertEquals( 1L, flowScanStatistics.flowScan( "slow" ).get( "timeoutCount" ) );
+        assertEquals( true, flowScanStatistics.flowScan( "slow" ).get( "inProgress" ) );
+        assertEquals( 1L, flowScanStatistics.flowScan( "fail" ).get( "errorCount" ) );
+
+        exception = assertThrows( Dhis2RapidProException.class, () -> flowScanProcessor.process( exchange ) );
+        assertEquals( "Failed to scan 1 of 4 RapidPro flows: fail", exception.getMessage() );
+        assertEquals( 1L, flowScanStatistics.flowScan( "slow" ).get( "skipCount" ) );
+        assertEquals( true, adaptiveFlowScanScheduler.flowScanIntervals().get( "slow" ).get( "scanning" ) );
+        assertEquals( 2L, flowScanStatistics.flowScan( "foo" ).get( "scanCount" ) );
+    }
+
+    @Test
+    public void testProcessGivenParallelScanAndNoFreeWorker()
+        throws
+        Exception
+    {
+        ReflectionTestUtils.setField( flowScanProcessor, "parallel", true );
+        ReflectionTestUtils.setField( flowScanProcessor, "flowTimeout", 500L );
+        ReflectionTestUtils.setField( flowScanProcessor, "maxConcurrency", 1 );
+
+        Exchange exchange = new DefaultExchange( camelContext );
+        exchange.setProperty( "flowUuids", "slow,foo" );
+        adaptiveFlowScanScheduler.dueFlowUuids( List.of( "slow", "foo" ) );
+        long startedAt = System.currentTimeMillis();
+        Dhis2RapidProException exception = assertThrows( Dhis2RapidProException.class,
+            () -> flowScanProcessor.process( exchange ) );
+        assertEquals( "Failed to scan 1 of 2 RapidPro flows: slow", exception.getMessage() );
+        assertTrue( System.currentTimeMillis() - startedAt < 1500 );
+
+        assertEquals( 1L, flowScanStatistics.flowScan( "slow" ).get( "timeoutCount" ) );
+        assertEquals( 1L, flowScanStatistics.flowScan( "foo" ).get( "skipCount" ) );
+        assertEquals( false, adaptiveFlowScanScheduler.flowScanIntervals().get( "foo" ).get( "scanning" ) );
+
+        Thread.sleep( 2500 );
+        assertTrue( scannedFlowUuids.contains( "slow" ) );
+        assertFalse( scannedFlowUuids.contains( "foo" ) );
+    }
+}
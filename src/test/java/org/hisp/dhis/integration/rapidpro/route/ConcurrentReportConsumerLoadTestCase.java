@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.route;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.activemq.artemis.core.config.impl.ConfigurationImpl;
+import org.apache.activemq.artemis.core.server.embedded.EmbeddedActiveMQ;
+import org.apache.activemq.artemis.jms.client.ActiveMQConnectionFactory;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.jms.JmsComponent;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hisp.dhis.integration.rapidpro.expression.ReportGroupIdExpr;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Delivers a burst of reports from an embedded Artemis broker to a consumer simulating a DHIS2 round trip, once with a
+ * single consumer and once with several concurrent consumers. Reports are grouped by {@link ReportGroupIdExpr} as they
+ * are in production so the test shows both the throughput gained and that the reports of a group stay in order.
+ */
+public class ConcurrentReportConsumerLoadTestCase
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger( ConcurrentReportConsumerLoadTestCase.class );
+
+    private static final int REPORT_COUNT = 120;
+
+    private static final int ORG_UNIT_COUNT = 12;
+
+    private static final long ROUND_TRIP_IN_MILLIS = 20;
+
+    private EmbeddedActiveMQ embeddedActiveMQ;
+
+    private ReportGroupIdExpr reportGroupIdExpr;
+
+    @BeforeEach
+    public void beforeEach()
+        throws
+        Exception
+    {
+        embeddedActiveMQ = new EmbeddedActiveMQ().setConfiguration(
+            new ConfigurationImpl().setPersistenceEnabled( false ).setSecurityEnabled( false )
+                .addAcceptorConfiguration( "in-vm", "vm://0" ) );
+        embeddedActiveMQ.start();
+
+        reportGroupIdExpr = new ReportGroupIdExpr();
+        ReflectionTestUtils.setField( reportGroupIdExpr, "objectMapper", new ObjectMapper() );
+    }
+
+    @AfterEach
+    public void afterEach()
+        throws
+        Exception
+    {
+        embeddedActiveMQ.stop();
+    }
+
+    @Test
+    public void testConcurrentConsumersScaleDeliveryAndPreserveGroupOrder()
+        throws
+        Exception
+    {
+        long singleConsumerMillis = deliver( 1 );
+        long concurrentConsumersMillis = deliver( 4 );
+
+        LOGGER.info( "Delivered {} reports in {} ms with 1 consumer and in {} ms with 4 consumers", REPORT_COUNT,
+            singleConsumerMillis, concurrentConsumersMillis );
+        assertTrue( concurrentConsumersMillis * 2 < singleConsumerMillis,
+            String.format( "Expected 4 consumers (%s ms) to be at least twice as fast as 1 consumer (%s ms)",
+                concurrentConsumersMillis, singleConsumerMillis ) );
+    }
+
+    private long deliver( int concurrentConsumers )
+        throws
+        Exception
+    {
+        String queueName = "loadTest" + concurrentConsumers;
+        Map<String, List<Integer>> deliveredSequencesByGroup = new ConcurrentHashMap<>();
+        CountDownLatch countDownLatch = new CountDownLatch( REPORT_COUNT );
+
+        CamelContext camelContext = new DefaultCamelContext();
+        camelContext.addComponent( "jms",
+            JmsComponent.jmsComponentAutoAcknowledge( new ActiveMQConnectionFactory( "vm://0" ) ) );
+        camelContext.addRoutes( new RouteBuilder()
+        {
+            @Override
+            public void configure()
+            {
+                from( "jms:queue:" + queueName + "?concurrentConsumers=" + concurrentConsumers ).process( exchange -> {
+                    Thread.sleep( ROUND_TRIP_IN_MILLIS );
+                    deliveredSequencesByGroup.computeIfAbsent(
+                            exchange.getMessage().getHeader( "JMSXGroupID", String.class ),
+                            k -> new ArrayList<>() )
+                        .add( exchange.getMessage().getHeader( "sequence", Integer.class ) );
+                    countDownLatch.countDown();
+                } );
+            }
+        } );
+        camelContext.start();
+        try
+        {
+            // groups are pinned to the consumers that are connected when the groups' first reports arrive
+            while ( embeddedActiveMQ.getActiveMQServer().locateQueue( queueName ) == null
+                || embeddedActiveMQ.getActiveMQServer().locateQueue( queueName ).getConsumerCount()
+                < concurrentConsumers )
+            {
+                Thread.sleep( 10 );
+            }
+
+            ProducerTemplate producerTemplate = camelContext.createProducerTemplate();
+            long startTime = System.currentTimeMillis();
+            for ( int i = 0; i < REPORT_COUNT; i++ )
+            {
+                Map<String, Object> headers = new HashMap<>();
+                headers.put( "dataSetCode", "MAL_YEARLY" );
+                headers.put( "orgUnitId", "OU_" + (i % ORG_UNIT_COUNT) );
+                headers.put( "reportPeriodOffset", -1 );
+                headers.put( "sequence", i );
+                Exchange exchange = new DefaultExchange( camelContext );
+                exchange.getMessage().setHeaders( headers );
+                exchange.getMessage().setBody( "{}" );
+                headers.put( "JMSXGroupID", reportGroupIdExpr.evaluate( exchange, String.class ) );
+                producerTemplate.sendBodyAndHeaders( "jms:queue:" + queueName, "{}", headers );
+            }
+            assertTrue( countDownLatch.await( 1, TimeUnit.MINUTES ) );
+            long elapsedMillis = System.currentTimeMillis() - startTime;
+
+            assertEquals( ORG_UNIT_COUNT, deliveredSequencesByGroup.size() );
+            for ( List<Integer> deliveredSequences : deliveredSequencesByGroup.values() )
+            {
+                List<Integer> sortedSequences = new ArrayList<>( deliveredSequences );
+                sortedSequences.sort( Integer::compareTo );
+                assertEquals( sortedSequences, deliveredSequences );
+            }
+            return elapsedMillis;
+        }
+        finally
+        {
+            camelContext.stop();
+        }
+    }
+}
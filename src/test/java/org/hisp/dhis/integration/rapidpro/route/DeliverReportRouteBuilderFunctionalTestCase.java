@@ -44,6 +44,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.camel.CamelExecutionException;
 import org.apache.camel.ExchangePattern;
@@ -51,10 +52,12 @@ import org.apache.camel.ExchangeTimedOutException;
 import org.apache.camel.Message;
 import org.apache.camel.builder.AdviceWith;
 import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.camel.spi.BrowsableEndpoint;
 import org.hisp.dhis.api.model.v40_0.DataValue;
 import org.hisp.dhis.api.model.v40_0.DataValueSet;
 import org.hisp.dhis.api.model.v40_0.WebMessage;
 import org.hisp.dhis.integration.rapidpro.AbstractFunctionalTestCase;
+import org.hisp.dhis.integration.rapidpro.Dhis2CallNotPermittedException;
 import org.hisp.dhis.integration.rapidpro.Environment;
 import org.hisp.dhis.integration.sdk.support.period.PeriodBuilder;
 import org.hisp.hieboot.camel.spi.MessageRepository;
@@ -226,6 +229,64 @@ public class DeliverReportRouteBuilderFunctionalTestCase extends AbstractFunctio
         assertEquals( 1, spyEndpoint.getReceivedCounter() );
     }
 
+    @Test
+    public void testScheduledReportDeliveryRollsBackBatchGivenDhis2CallNotPermitted()
+        throws
+        Exception
+    {
+        System.setProperty( "sync.rapidpro.contacts", "true" );
+        System.setProperty( "report.delivery.schedule.expression", "0 0/1 * * * ?" );
+        AtomicInteger transmitCount = new AtomicInteger();
+        AdviceWith.adviceWith( camelContext, "Transmit Report", r -> r.weaveAddFirst().process( exchange -> {
+            if ( transmitCount.incrementAndGet() > 1 )
+            {
+                throw new Dhis2CallNotPermittedException( "Circuit for DHIS2 operation 'dataValueSets' is open" );
+            }
+        } ) );
+
+        camelContext.start();
+        camelContext.getRouteController().stopRoute( "Schedule Report Delivery" );
+
+        String contactUuid = syncContactsAndFetchFirstContactUuid();
+        String webhookMessage = StreamUtils.copyToString(
+            Thread.currentThread().getContextClassLoader().getResourceAsStream( "webhook.json" ),
+            Charset.defaultCharset() );
+        for ( int i = 0; i < 3; i++ )
+        {
+            producerTemplate.sendBodyAndHeaders( "jms:queue:dhis2AggregateReports?exchangePattern=InOnly",
+                String.format( webhookMessage, contactUuid ), Map.of( "dataSetCode", "MAL_YEARLY" ) );
+        }
+        BrowsableEndpoint queueEndpoint = camelContext.getEndpoint( "jms:queue:dhis2AggregateReports",
+            BrowsableEndpoint.class );
+        assertEquals( 3, queueEndpoint.getExchanges().size() );
+
+        producerTemplate.sendBody( "direct:drainReports", null );
+
+        assertEquals( 2, transmitCount.get() );
+        assertEquals( 3, queueEndpoint.getExchanges().size() );
+    }
+
+    @Test
+    public void testImportJobIsGivenUpAfterMaxAttempts()
+        throws
+        Exception
+    {
+        System.setProperty( "report.delivery.async.job.max.attempts", "2" );
+        AdviceWith.adviceWith( camelContext, "Finish Import Job", r -> r.weaveAddFirst().to( "mock:spy" ) );
+        MockEndpoint spyEndpoint = camelContext.getEndpoint( "mock:spy", MockEndpoint.class );
+        camelContext.start();
+
+        jdbcTemplate.update(
+            "INSERT INTO REPORT_IMPORT_JOB (job_id, job_type, dhis_request, rapidpro_payload, data_set_code, report_period_offset, organisation_unit_id, period, attempts) VALUES ('jHlzNkPkDlz', 'DATAVALUE_IMPORT', '{}', '{}', 'MAL_YEARLY', -1, ?, '2023', 2)",
+            Environment.ORG_UNIT_ID );
+        Map<String, Object> importJob = jdbcTemplate.queryForMap( "SELECT * FROM REPORT_IMPORT_JOB" );
+        importJob.put( "importSummary", "{\"status\": \"OK\"}" );
+        producerTemplate.sendBody( "direct:completeImportJob", importJob );
+
+        assertEquals( 0, spyEndpoint.getReceivedCounter() );
+        assertEquals( 0, jdbcTemplate.queryForObject( "SELECT COUNT(*) FROM REPORT_IMPORT_JOB", Integer.class ) );
+    }
+
     @Test
     public void testRecordInDeadLetterChannelIsCreatedGivenErrorWhileCreatingDataValueSet()
         throws
@@ -42,6 +42,7 @@ import org.hisp.dhis.api.model.v40_0.DataValueSet;
 import org.hisp.dhis.api.model.v40_0.WebMessage;
 import org.hisp.dhis.integration.rapidpro.AbstractFunctionalTestCase;
 import org.hisp.dhis.integration.rapidpro.Environment;
+import org.hisp.dhis.integration.rapidpro.FlowRun;
 import org.hisp.dhis.integration.sdk.support.period.PeriodBuilder;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -156,6 +157,29 @@ public class PullRapidProFlowsRouteBuilderFunctionalTestCase extends AbstractFun
         assertEquals( "rtfSaMjPyq6", getDataValue( "dFaBg0HpoIL", dataValueSet ).getCategoryOptionCombo().get() );
     }
 
+    @Test
+    public void testPullAggregateReportFlowGivenPriorFlowRunAndStreaming()
+        throws
+        Exception
+    {
+        System.setProperty( "sync.rapidpro.contacts", "true" );
+        System.setProperty( "scan.reports.streaming", "true" );
+        ReflectionTestUtils.setField( pullRapidProFlowsRouteBuilder, "aggregateReportFlowUuids",
+            aggregateReportFlowUuid );
+        AdviceWith.adviceWith( camelContext, "Transmit Report", r -> r.weaveAddLast().to( "mock:spy" ) );
+        MockEndpoint spyEndpoint = camelContext.getEndpoint( "mock:spy", MockEndpoint.class );
+
+        camelContext.start();
+        syncContactsAndFetchFirstContactUuid();
+
+        runFlowAndWaitUntilCompleted( aggregateReportFlowUuid );
+        spyEndpoint.setExpectedCount( 1 );
+        producerTemplate.sendBody( "direct:pull", ExchangePattern.InOnly, null );
+
+        spyEndpoint.await( 15, TimeUnit.SECONDS );
+        assertEquals( 1, spyEndpoint.getReceivedCounter() );
+    }
+
     private DataValue getDataValue( String dataElementId, DataValueSet dataValueSet )
     {
         for ( int i = 0; i < 4; i++ )
@@ -343,29 +367,19 @@ public class PullRapidProFlowsRouteBuilderFunctionalTestCase extends AbstractFun
         producerTemplate.sendBody( "direct:pull", ExchangePattern.InOnly, null );
         spyEndpoint.await( 15, TimeUnit.SECONDS );
 
-        String firstModifiedOnAsString = (String) spyEndpoint.getReceivedExchanges().get( 0 ).getMessage()
-            .getBody( Map.class )
-            .get( "modified_on" );
-        Instant firstModifiedOn = Instant.parse( firstModifiedOnAsString );
-
-        String secondModifiedOnAsString = (String) spyEndpoint.getReceivedExchanges().get( 1 ).getMessage()
-            .getBody( Map.class )
-            .get( "modified_on" );
-        Instant secondModifiedOn = Instant.parse( secondModifiedOnAsString );
-
-        String thirdModifiedOnAsString = (String) spyEndpoint.getReceivedExchanges().get( 2 ).getMessage()
-            .getBody( Map.class )
-            .get( "modified_on" );
-        Instant thirdModifiedOn = Instant.parse( thirdModifiedOnAsString );
+        Instant firstModifiedOn = spyEndpoint.getReceivedExchanges().get( 0 ).getMessage().getBody( FlowRun.class )
+            .modifiedOn();
+        Instant secondModifiedOn = spyEndpoint.getReceivedExchanges().get( 1 ).getMessage().getBody( FlowRun.class )
+            .modifiedOn();
+        Instant thirdModifiedOn = spyEndpoint.getReceivedExchanges().get( 2 ).getMessage().getBody( FlowRun.class )
+            .modifiedOn();
 
         assertTrue( firstModifiedOn.isBefore( secondModifiedOn ),
-            String.format( "Flow run modified_on is %s (%s) while next immediate flow run modified_on is %s (%s)",
-                firstModifiedOnAsString, firstModifiedOn,
-                secondModifiedOnAsString, secondModifiedOn ) );
+            String.format( "Flow run modified_on is %s while next immediate flow run modified_on is %s",
+                firstModifiedOn, secondModifiedOn ) );
         assertTrue( secondModifiedOn.isBefore( thirdModifiedOn ),
-            String.format( "Flow run modified_on is %s (%s) while next immediate flow run modified_on is %s (%s)",
-                secondModifiedOnAsString, secondModifiedOn,
-                thirdModifiedOnAsString, thirdModifiedOn ) );
+            String.format( "Flow run modified_on is %s while next immediate flow run modified_on is %s",
+                secondModifiedOn, thirdModifiedOn ) );
     }
 
     @Test
@@ -376,7 +390,7 @@ public class PullRapidProFlowsRouteBuilderFunctionalTestCase extends AbstractFun
         System.setProperty( "sync.rapidpro.contacts", "true" );
         ReflectionTestUtils.setField( pullRapidProFlowsRouteBuilder, "aggregateReportFlowUuids",
             aggregateReportFlowUuid );
-        AdviceWith.adviceWith( camelContext, "Scan RapidPro Flows",
+        AdviceWith.adviceWith( camelContext, "Scan RapidPro Flow",
             r -> r.weaveByToUri( "kamelet:hie-rapidpro-get-flow-runs-sink*" ).replace().to( "mock:rapidPro" ) );
         MockEndpoint rapidProMockEndpoint = camelContext.getEndpoint( "mock:rapidPro", MockEndpoint.class );
         rapidProMockEndpoint.whenAnyExchangeReceived( exchange -> {
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2004-2022, University of Oslo
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * Neither the name of the HISP project nor the names of its contributors may
+ * be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.hisp.dhis.integration.rapidpro.route;
+
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.hisp.dhis.integration.rapidpro.AbstractFunctionalTestCase;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class QueueFlowRunBatchFunctionalTestCase extends AbstractFunctionalTestCase
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger( QueueFlowRunBatchFunctionalTestCase.class );
+
+    private static final int MESSAGE_COUNT = 1000;
+
+    @Autowired
+    private PullRapidProFlowsRouteBuilder pullRapidProFlowsRouteBuilder;
+
+    @Test
+    public void testTransactedBatchEnqueueThroughput()
+        throws
+        Exception
+    {
+        camelContext.getRegistry()
+            .bind( "throughputTransactionPolicy", pullRapidProFlowsRouteBuilder.newJmsTransactionPolicy() );
+        camelContext.addRoutes( new RouteBuilder()
+        {
+            @Override
+            public void configure()
+            {
+                from( "direct:perMessageEnqueue" )
+                    .split( body() )
+                        .to( "jms:queue:throughput?exchangePattern=InOnly" )
+                    .end();
+
+                from( "direct:batchedEnqueue" )
+                    .split( simple( "${collate(50)}" ) )
+                        .to( "direct:transactedEnqueue" )
+                    .end();
+
+                from( "direct:transactedEnqueue" )
+                    .transacted( "throughputTransactionPolicy" )
+                    .split( body() )
+                        .to( "jms:queue:throughput?exchangePattern=InOnly" )
+                    .end();
+
+                from( "jms:queue:throughput" ).to( "mock:throughput" );
+            }
+        } );
+        MockEndpoint throughputEndpoint = camelContext.getEndpoint( "mock:throughput", MockEndpoint.class );
+        throughputEndpoint.setExpectedCount( MESSAGE_COUNT * 2 );
+        camelContext.start();
+
+        List<String> messages = new ArrayList<>();
+        for ( int i = 0; i < MESSAGE_COUNT; i++ )
+        {
+            messages.add( "{\"uuid\": \"" + i + "\"}" );
+        }
+
+        long startedAt = System.nanoTime();
+        producerTemplate.sendBody( "direct:perMessageEnqueue", messages );
+        long perMessageDurationInMillis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - startedAt );
+
+        startedAt = System.nanoTime();
+        producerTemplate.sendBody( "direct:batchedEnqueue", messages );
+        long batchedDurationInMillis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - startedAt );
+
+        LOGGER.info( "Enqueued {} messages in {} ms with per-message sends and in {} ms with transacted batches of 50",
+            MESSAGE_COUNT, perMessageDurationInMillis, batchedDurationInMillis );
+
+        throughputEndpoint.assertIsSatisfied( 60000 );
+    }
+}